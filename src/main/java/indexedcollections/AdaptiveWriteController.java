@@ -0,0 +1,430 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import me.prettyprint.hector.api.exceptions.HPoolExhaustedException;
+import me.prettyprint.hector.api.exceptions.HTimedOutException;
+import me.prettyprint.hector.api.exceptions.HUnavailableException;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.mutation.MutationResult;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * AdaptiveWriteController sizes and paces the batches of the bulk and
+ * asynchronous write paths, the index backfill and the write-behind journal
+ * flusher, from the latency and errors of the batches it runs.
+ *
+ * Batch size and concurrency are adjusted AIMD-style. A batch that completes
+ * within the target latency grows the batch size by a fixed step, and a full
+ * window of them raises the concurrency by one. A slow batch halves the batch
+ * size, and a timeout or overload error halves both the batch size and the
+ * concurrency. Only one decrease is made per window, the batches already in
+ * flight when the limits were cut don't cut them again.
+ *
+ * A batch that fails with a timeout or overload error is retried after a
+ * delay rather than failed. Batches are passed in as factories that build
+ * the batch's Mutator, and a retry builds it again, since executing a Mutator
+ * clears its pending mutations. Batches waiting for an in-flight slot are held
+ * in a bounded queue, and submit blocks while the queue is full, so
+ * producers slow down to the rate the cluster is taking writes.
+ */
+public class AdaptiveWriteController {
+
+	private static final Logger logger = Logger
+			.getLogger(AdaptiveWriteController.class.getName());
+
+	public static final int DEFAULT_MIN_BATCH_SIZE = 10;
+	public static final int DEFAULT_MAX_BATCH_SIZE = 2000;
+	public static final int DEFAULT_BATCH_SIZE_STEP = 10;
+	public static final int DEFAULT_MAX_CONCURRENCY = 16;
+	public static final long DEFAULT_TARGET_LATENCY = 200;
+	public static final int DEFAULT_QUEUE_CAPACITY = 32;
+	public static final int DEFAULT_MAX_RETRIES = 10;
+	public static final long DEFAULT_RETRY_DELAY = 100;
+	public static final double DECREASE_FACTOR = 0.5;
+
+	private final ExecutorService executor;
+
+	private int minBatchSize = DEFAULT_MIN_BATCH_SIZE;
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private int batchSizeStep = DEFAULT_BATCH_SIZE_STEP;
+	private int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+	private long targetLatency = DEFAULT_TARGET_LATENCY;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private long retryDelay = DEFAULT_RETRY_DELAY;
+
+	private int batchSize;
+	private int concurrency = 1;
+	private int windowSuccesses = 0;
+	private long lastDecrease = 0;
+	private int inFlight = 0;
+	private final LinkedList<FutureTask<MutationResult>> queue = new LinkedList<FutureTask<MutationResult>>();
+
+	private long batches = 0;
+	private long overloads = 0;
+	private long retries = 0;
+
+	/**
+	 * @param executor
+	 *            the executor submitted batches are run on
+	 * @param initialBatchSize
+	 *            the batch size to start from
+	 */
+	public AdaptiveWriteController(ExecutorService executor,
+			int initialBatchSize) {
+		this.executor = executor;
+		batchSize = initialBatchSize;
+	}
+
+	public synchronized int getMinBatchSize() {
+		return minBatchSize;
+	}
+
+	public synchronized void setMinBatchSize(int minBatchSize) {
+		this.minBatchSize = minBatchSize;
+		batchSize = Math.max(batchSize, minBatchSize);
+	}
+
+	public synchronized int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public synchronized void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+		batchSize = Math.min(batchSize, maxBatchSize);
+	}
+
+	public synchronized int getBatchSizeStep() {
+		return batchSizeStep;
+	}
+
+	/**
+	 * @param batchSizeStep
+	 *            the number of mutations a batch within the target latency
+	 *            adds to the batch size
+	 */
+	public synchronized void setBatchSizeStep(int batchSizeStep) {
+		this.batchSizeStep = batchSizeStep;
+	}
+
+	public synchronized int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	public synchronized void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+		concurrency = Math.min(concurrency, maxConcurrency);
+	}
+
+	public synchronized long getTargetLatency() {
+		return targetLatency;
+	}
+
+	/**
+	 * @param targetLatency
+	 *            the batch latency, in milliseconds, above which the batch
+	 *            size is cut
+	 */
+	public synchronized void setTargetLatency(long targetLatency) {
+		this.targetLatency = targetLatency;
+	}
+
+	public synchronized int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @param queueCapacity
+	 *            the number of submitted batches that can wait for an
+	 *            in-flight slot before submit blocks
+	 */
+	public synchronized void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+		notifyAll();
+	}
+
+	public synchronized int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param maxRetries
+	 *            the number of times a batch that timed out or was rejected
+	 *            as overloaded is retried before its error is thrown
+	 */
+	public synchronized void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public synchronized long getRetryDelay() {
+		return retryDelay;
+	}
+
+	/**
+	 * @param retryDelay
+	 *            the delay, in milliseconds, before the first retry, doubled
+	 *            for each further retry
+	 */
+	public synchronized void setRetryDelay(long retryDelay) {
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * @return the number of mutations to put in the next batch
+	 */
+	public synchronized int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return the number of batches allowed to execute at once
+	 */
+	public synchronized int getConcurrency() {
+		return concurrency;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	public synchronized long getBatchCount() {
+		return batches;
+	}
+
+	/**
+	 * @return the number of batches that timed out or were rejected as
+	 *         overloaded
+	 */
+	public synchronized long getOverloadCount() {
+		return overloads;
+	}
+
+	public synchronized long getRetryCount() {
+		return retries;
+	}
+
+	/**
+	 * Queue a batch to be executed on the executor once there's an in-flight
+	 * slot for it, waiting while the queue is full.
+	 * 
+	 * @param batches
+	 *            builds the batch, called again for each retry
+	 * @return the batch's result
+	 * @throws InterruptedException
+	 */
+	public Future<MutationResult> submit(
+			final Callable<? extends Mutator<?>> batches)
+			throws InterruptedException {
+		FutureTask<MutationResult> task = new FutureTask<MutationResult>(
+				new Callable<MutationResult>() {
+					@Override
+					public MutationResult call() {
+						return run(batches);
+					}
+				}) {
+			@Override
+			public void run() {
+
+				// Only a dispatched task runs, and it holds its slot until
+				// the batch has finished, even if it's cancelled meanwhile
+
+				try {
+					super.run();
+				} finally {
+					release();
+				}
+			}
+
+			@Override
+			protected void done() {
+				if (isCancelled()) {
+					dequeue(this);
+				}
+			}
+		};
+		synchronized (this) {
+			while (queue.size() >= queueCapacity) {
+				wait();
+			}
+			queue.add(task);
+			dispatch();
+		}
+		return task;
+	}
+
+	/**
+	 * Execute a batch on the calling thread, once there's an in-flight slot
+	 * for it.
+	 * 
+	 * @param batches
+	 *            builds the batch, called again for each retry
+	 * @return the batch's result
+	 * @throws InterruptedException
+	 */
+	public MutationResult execute(Callable<? extends Mutator<?>> batches)
+			throws InterruptedException {
+		synchronized (this) {
+			while (inFlight >= concurrency) {
+				wait();
+			}
+			inFlight++;
+		}
+		try {
+			return run(batches);
+		} finally {
+			release();
+		}
+	}
+
+	private synchronized void release() {
+		inFlight--;
+		notifyAll();
+		dispatch();
+	}
+
+	private synchronized void dequeue(FutureTask<MutationResult> task) {
+		if (queue.remove(task)) {
+			notifyAll();
+		}
+	}
+
+	private void dispatch() {
+		while ((inFlight < concurrency) && !queue.isEmpty()) {
+			FutureTask<MutationResult> task = queue.removeFirst();
+			inFlight++;
+			notifyAll();
+			try {
+				executor.execute(task);
+			} catch (RuntimeException e) {
+				inFlight--;
+				task.cancel(false);
+				throw e;
+			}
+		}
+	}
+
+	private MutationResult run(Callable<? extends Mutator<?>> batches) {
+		int attempt = 0;
+		while (true) {
+			Mutator<?> batch = createBatch(batches);
+			long started = System.currentTimeMillis();
+			try {
+				MutationResult result = batch.execute();
+				onSuccess(started, System.currentTimeMillis() - started);
+				return result;
+			} catch (HectorException e) {
+				if (!isOverload(e)) {
+					throw e;
+				}
+				long delay;
+				synchronized (this) {
+					onOverload(started);
+					if (attempt >= maxRetries) {
+						throw e;
+					}
+					retries++;
+					delay = retryDelay << Math.min(attempt, 16);
+				}
+				attempt++;
+				logger.info("Write batch overloaded, retry " + attempt
+						+ " in " + delay + "ms: " + e.getMessage());
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new HectorException(ie);
+				}
+			}
+		}
+	}
+
+	private static Mutator<?> createBatch(
+			Callable<? extends Mutator<?>> batches) {
+		try {
+			return batches.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new HectorException(e);
+		}
+	}
+
+	/**
+	 * @return true if an error means the cluster is overloaded, so the batch
+	 *         should be retried more slowly
+	 */
+	static boolean isOverload(HectorException e) {
+		return (e instanceof HTimedOutException)
+				|| (e instanceof HUnavailableException)
+				|| (e instanceof HPoolExhaustedException);
+	}
+
+	private synchronized void onSuccess(long started, long latency) {
+		batches++;
+		if (latency > targetLatency) {
+			if (started >= lastDecrease) {
+				batchSize = Math.max(minBatchSize,
+						(int) (batchSize * DECREASE_FACTOR));
+				lastDecrease = System.currentTimeMillis();
+				windowSuccesses = 0;
+				logger.info("Write batch took " + latency
+						+ "ms, batch size cut to " + batchSize);
+			}
+			return;
+		}
+		batchSize = Math.min(maxBatchSize, batchSize + batchSizeStep);
+		windowSuccesses++;
+		if (windowSuccesses >= concurrency) {
+			windowSuccesses = 0;
+			if (concurrency < maxConcurrency) {
+				concurrency++;
+				dispatch();
+			}
+		}
+	}
+
+	private void onOverload(long started) {
+		overloads++;
+		if (started < lastDecrease) {
+			return;
+		}
+		batchSize = Math.max(minBatchSize, (int) (batchSize * DECREASE_FACTOR));
+		concurrency = Math.max(1, (int) (concurrency * DECREASE_FACTOR));
+		lastDecrease = System.currentTimeMillis();
+		windowSuccesses = 0;
+		logger.info("Write overload, batch size cut to " + batchSize
+				+ " and concurrency to " + concurrency);
+	}
+}
@@ -0,0 +1,195 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+/**
+ * GeoPoint is a latitude and longitude, in degrees, that can be stored as an
+ * item column value. It's indexed as a geohash with the VALUE_CODE_GEO value
+ * code, so that nearby points are close together in the container index and
+ * an area can be searched with a few range slices.
+ */
+public class GeoPoint {
+
+	public static final int GEOHASH_PRECISION = 12;
+	public static final double EARTH_RADIUS_KM = 6371.0088;
+
+	static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+	private final double latitude;
+	private final double longitude;
+
+	public GeoPoint(double latitude, double longitude) {
+		if ((latitude < -90) || (latitude > 90)) {
+			throw new IllegalArgumentException("Latitude out of range: "
+					+ latitude);
+		}
+		if ((longitude < -180) || (longitude > 180)) {
+			throw new IllegalArgumentException("Longitude out of range: "
+					+ longitude);
+		}
+		this.latitude = latitude;
+		this.longitude = longitude;
+	}
+
+	public double getLatitude() {
+		return latitude;
+	}
+
+	public double getLongitude() {
+		return longitude;
+	}
+
+	/**
+	 * @return the point's geohash at full precision
+	 */
+	public String getGeohash() {
+		return getGeohash(GEOHASH_PRECISION);
+	}
+
+	/**
+	 * @param precision
+	 *            the number of geohash characters, up to 12
+	 * @return the geohash of the cell containing the point
+	 */
+	public String getGeohash(int precision) {
+		return geohash(cellIndex(latitude + 90, 180, latitudeBits(precision)),
+				cellIndex(longitude + 180, 360, longitudeBits(precision)),
+				precision);
+	}
+
+	/**
+	 * @param geohash
+	 * @return the center of the geohash cell
+	 */
+	public static GeoPoint fromGeohash(String geohash) {
+		int precision = geohash.length();
+		long bits = 0;
+		for (int i = 0; i < precision; i++) {
+			int c = BASE32.indexOf(Character.toLowerCase(geohash.charAt(i)));
+			if (c < 0) {
+				throw new IllegalArgumentException("Invalid geohash: "
+						+ geohash);
+			}
+			bits = (bits << 5) | c;
+		}
+
+		// Bits alternate between longitude and latitude, longitude first
+
+		long lat = 0;
+		long lon = 0;
+		int total = precision * 5;
+		for (int i = 0; i < total; i++) {
+			long bit = (bits >>> (total - 1 - i)) & 1;
+			if ((i & 1) == 0) {
+				lon = (lon << 1) | bit;
+			} else {
+				lat = (lat << 1) | bit;
+			}
+		}
+
+		double latHeight = 180.0 / (1L << latitudeBits(precision));
+		double lonWidth = 360.0 / (1L << longitudeBits(precision));
+		return new GeoPoint(-90 + (lat + 0.5) * latHeight, -180 + (lon + 0.5)
+				* lonWidth);
+	}
+
+	/**
+	 * Great circle distance using the haversine formula.
+	 *
+	 * @param other
+	 * @return distance in kilometers
+	 */
+	public double distanceKm(GeoPoint other) {
+		double dLat = Math.toRadians(other.latitude - latitude);
+		double dLon = Math.toRadians(other.longitude - longitude);
+		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+				+ Math.cos(Math.toRadians(latitude))
+				* Math.cos(Math.toRadians(other.latitude)) * Math.sin(dLon / 2)
+				* Math.sin(dLon / 2);
+		return 2 * EARTH_RADIUS_KM
+				* Math.atan2(Math.sqrt(a), Math.sqrt(Math.max(0, 1 - a)));
+	}
+
+	static int latitudeBits(int precision) {
+		return precision * 5 / 2;
+	}
+
+	static int longitudeBits(int precision) {
+		return (precision * 5 + 1) / 2;
+	}
+
+	/**
+	 * @return the index of the cell containing an offset along an axis
+	 *         divided into 2^bits cells
+	 */
+	static long cellIndex(double offset, double range, int bits) {
+		long cells = 1L << bits;
+		long i = (long) Math.floor(offset / range * cells);
+		return Math.max(0, Math.min(cells - 1, i));
+	}
+
+	/**
+	 * @return the geohash of a cell given its latitude and longitude indexes
+	 */
+	static String geohash(long lat, long lon, int precision) {
+		int latBits = latitudeBits(precision);
+		int lonBits = longitudeBits(precision);
+		long bits = 0;
+		for (int i = 0; i < precision * 5; i++) {
+			long bit;
+			if ((i & 1) == 0) {
+				bit = (lon >>> (lonBits - 1 - i / 2)) & 1;
+			} else {
+				bit = (lat >>> (latBits - 1 - i / 2)) & 1;
+			}
+			bits = (bits << 1) | bit;
+		}
+		char[] chars = new char[precision];
+		for (int i = precision - 1; i >= 0; i--) {
+			chars[i] = BASE32.charAt((int) (bits & 31));
+			bits >>>= 5;
+		}
+		return new String(chars);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof GeoPoint)) {
+			return false;
+		}
+		GeoPoint other = (GeoPoint) obj;
+		return (Double.compare(latitude, other.latitude) == 0)
+				&& (Double.compare(longitude, other.longitude) == 0);
+	}
+
+	@Override
+	public int hashCode() {
+		long bits = Double.doubleToLongBits(latitude) * 31
+				+ Double.doubleToLongBits(longitude);
+		return (int) (bits ^ (bits >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return "(" + latitude + ", " + longitude + ")";
+	}
+}
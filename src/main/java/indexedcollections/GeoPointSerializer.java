@@ -0,0 +1,60 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import java.nio.ByteBuffer;
+
+import me.prettyprint.cassandra.serializers.AbstractSerializer;
+
+/**
+ * Serializes a GeoPoint as its latitude and longitude doubles, for storing
+ * GeoPoint values in the Item column family.
+ */
+public class GeoPointSerializer extends AbstractSerializer<GeoPoint> {
+
+	private static final GeoPointSerializer instance = new GeoPointSerializer();
+
+	public static GeoPointSerializer get() {
+		return instance;
+	}
+
+	@Override
+	public ByteBuffer toByteBuffer(GeoPoint obj) {
+		if (obj == null) {
+			return null;
+		}
+		ByteBuffer b = ByteBuffer.allocate(16);
+		b.putDouble(obj.getLatitude());
+		b.putDouble(obj.getLongitude());
+		b.rewind();
+		return b;
+	}
+
+	@Override
+	public GeoPoint fromByteBuffer(ByteBuffer bytes) {
+		if ((bytes == null) || (bytes.remaining() < 16)) {
+			return null;
+		}
+		ByteBuffer b = bytes.duplicate();
+		return new GeoPoint(b.getDouble(), b.getDouble());
+	}
+}
@@ -0,0 +1,429 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import static indexedcollections.IndexedCollections.ALL_COUNT;
+import static indexedcollections.IndexedCollections.DEFAULT_COUNT;
+import static indexedcollections.IndexedCollections.VALUE_CODE_GEO;
+import static indexedcollections.IndexedCollections.be;
+import static indexedcollections.IndexedCollections.ce;
+import static indexedcollections.IndexedCollections.se;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+import indexedcollections.IndexedCollections.CollectionCFSet;
+import indexedcollections.IndexedCollections.ContainerCollection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.query.SliceQuery;
+
+import org.apache.log4j.Logger;
+
+/**
+ * GeoSearch finds the items in a container whose GeoPoint column is within a
+ * radius of a point or inside a bounding box.
+ *
+ * The search area is covered with at most maxCells geohash cells, at the
+ * finest precision that fits. Adjacent cells that are also adjacent in
+ * geohash order are merged, and each remaining range is read with its own
+ * Collection_Index slice. The slices can be read in parallel. Each index
+ * entry's geohash is decoded and the exact distance or bounds are checked on
+ * the client, because the cells cover more than the search area.
+ */
+public class GeoSearch {
+
+	private static final Logger logger = Logger.getLogger(GeoSearch.class
+			.getName());
+
+	public static final int DEFAULT_MAX_CELLS = 8;
+
+	/**
+	 * Search a container for items whose column value is within a distance of
+	 * a point, nearest first.
+	 *
+	 * @param <IK>
+	 *            the item's key type
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <N>
+	 *            the item's column name type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param columnName
+	 *            the item's GeoPoint column name
+	 * @param center
+	 *            the point to search around
+	 * @param radiusKm
+	 *            the search radius in kilometers
+	 * @param count
+	 *            the maximum number of items to return
+	 * @param maxCells
+	 *            the maximum number of geohash cells, and so slices, used to
+	 *            cover the search area
+	 * @param cf
+	 *            the column families to use
+	 * @param containerKeySerializer
+	 *            the container key serializer
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @param nameSerializer
+	 *            the column name serializer
+	 * @param executor
+	 *            the executor the slices are read on, or null to read them in
+	 *            turn
+	 * @return the items found, nearest first
+	 */
+	public static <IK, CK, N> List<IK> searchContainerWithinRadius(
+			Keyspace ko, ContainerCollection<CK> container, N columnName,
+			final GeoPoint center, final double radiusKm, int count,
+			int maxCells, CollectionCFSet cf,
+			Serializer<CK> containerKeySerializer,
+			Serializer<IK> itemKeySerializer, Serializer<N> nameSerializer,
+			ExecutorService executor) {
+
+		// Bounding box of the circle, which covers all longitudes if it
+		// reaches a pole
+
+		double angle = radiusKm / GeoPoint.EARTH_RADIUS_KM;
+		double dLat = Math.toDegrees(angle);
+		double minLat = center.getLatitude() - dLat;
+		double maxLat = center.getLatitude() + dLat;
+		double minLon = -180;
+		double maxLon = 180;
+		if ((minLat > -90) && (maxLat < 90) && (angle < Math.PI / 2)) {
+			double dLon = Math.toDegrees(Math.asin(Math.sin(angle)
+					/ Math.cos(Math.toRadians(center.getLatitude()))));
+			minLon = normalizeLongitude(center.getLongitude() - dLon);
+			maxLon = normalizeLongitude(center.getLongitude() + dLon);
+		}
+
+		List<Match<IK>> matches = scan(ko, container.getKey() + ":"
+				+ columnName.toString(),
+				cover(Math.max(minLat, -90), minLon, Math.min(maxLat, 90),
+						maxLon, maxCells), cf, itemKeySerializer, executor);
+
+		List<Match<IK>> inside = new ArrayList<Match<IK>>();
+		for (Match<IK> match : matches) {
+			match.distance = center.distanceKm(match.point);
+			if (match.distance <= radiusKm) {
+				inside.add(match);
+			}
+		}
+		Collections.sort(inside, new Comparator<Match<IK>>() {
+			@Override
+			public int compare(Match<IK> m1, Match<IK> m2) {
+				return Double.compare(m1.distance, m2.distance);
+			}
+		});
+
+		return getItems(inside, count);
+	}
+
+	/**
+	 * Search a container for items whose column value is inside a bounding
+	 * box, in geohash order. A box whose west edge is east of its east edge
+	 * crosses the antimeridian.
+	 *
+	 * @param <IK>
+	 *            the item's key type
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <N>
+	 *            the item's column name type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param columnName
+	 *            the item's GeoPoint column name
+	 * @param southWest
+	 *            the south west corner of the box
+	 * @param northEast
+	 *            the north east corner of the box
+	 * @param count
+	 *            the maximum number of items to return
+	 * @param maxCells
+	 *            the maximum number of geohash cells, and so slices, used to
+	 *            cover the search area
+	 * @param cf
+	 *            the column families to use
+	 * @param containerKeySerializer
+	 *            the container key serializer
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @param nameSerializer
+	 *            the column name serializer
+	 * @param executor
+	 *            the executor the slices are read on, or null to read them in
+	 *            turn
+	 * @return the items found
+	 */
+	public static <IK, CK, N> List<IK> searchContainerInBoundingBox(
+			Keyspace ko, ContainerCollection<CK> container, N columnName,
+			GeoPoint southWest, GeoPoint northEast, int count, int maxCells,
+			CollectionCFSet cf, Serializer<CK> containerKeySerializer,
+			Serializer<IK> itemKeySerializer, Serializer<N> nameSerializer,
+			ExecutorService executor) {
+
+		List<Match<IK>> matches = scan(
+				ko,
+				container.getKey() + ":" + columnName.toString(),
+				cover(southWest.getLatitude(), southWest.getLongitude(),
+						northEast.getLatitude(), northEast.getLongitude(),
+						maxCells), cf, itemKeySerializer, executor);
+
+		List<Match<IK>> inside = new ArrayList<Match<IK>>();
+		for (Match<IK> match : matches) {
+			double lat = match.point.getLatitude();
+			double lon = match.point.getLongitude();
+			boolean inLongitude = southWest.getLongitude() <= northEast
+					.getLongitude() ? (lon >= southWest.getLongitude())
+					&& (lon <= northEast.getLongitude()) : (lon >= southWest
+					.getLongitude()) || (lon <= northEast.getLongitude());
+			if ((lat >= southWest.getLatitude())
+					&& (lat <= northEast.getLatitude()) && inLongitude) {
+				inside.add(match);
+			}
+		}
+
+		return getItems(inside, count);
+	}
+
+	private static <IK> List<IK> getItems(List<Match<IK>> matches, int count) {
+		if (count == 0) {
+			count = DEFAULT_COUNT;
+		}
+		Set<IK> items = new LinkedHashSet<IK>();
+		for (Match<IK> match : matches) {
+			if (items.size() >= count) {
+				break;
+			}
+			items.add(match.itemKey);
+		}
+		return new ArrayList<IK>(items);
+	}
+
+	private static double normalizeLongitude(double lon) {
+		if (lon < -180) {
+			return lon + 360;
+		}
+		if (lon > 180) {
+			return lon - 360;
+		}
+		return lon;
+	}
+
+	/**
+	 * Cover a bounding box with geohash prefix ranges.
+	 *
+	 * @return a list of {first, last} geohash prefix pairs, each of which is
+	 *         read as one slice
+	 */
+	static List<String[]> cover(double minLat, double minLon, double maxLat,
+			double maxLon, int maxCells) {
+		if (minLon > maxLon) {
+			List<String[]> ranges = cover(minLat, minLon, maxLat, 180,
+					maxCells / 2);
+			ranges.addAll(cover(minLat, -180, maxLat, maxLon,
+					maxCells - maxCells / 2));
+			return ranges;
+		}
+
+		// Use the finest precision whose cells covering the box fit in
+		// maxCells
+
+		int precision = 0;
+		for (int p = 1; p <= GeoPoint.GEOHASH_PRECISION; p++) {
+			long rows = cells(minLat + 90, maxLat + 90, 180,
+					GeoPoint.latitudeBits(p));
+			long cols = cells(minLon + 180, maxLon + 180, 360,
+					GeoPoint.longitudeBits(p));
+			if (rows * cols > maxCells) {
+				break;
+			}
+			precision = p;
+		}
+
+		List<String[]> ranges = new ArrayList<String[]>();
+		if (precision == 0) {
+			ranges.add(new String[] { "", "" });
+			return ranges;
+		}
+
+		int latBits = GeoPoint.latitudeBits(precision);
+		int lonBits = GeoPoint.longitudeBits(precision);
+		TreeSet<String> prefixes = new TreeSet<String>();
+		for (long lat = GeoPoint.cellIndex(minLat + 90, 180, latBits); lat <= GeoPoint
+				.cellIndex(maxLat + 90, 180, latBits); lat++) {
+			for (long lon = GeoPoint.cellIndex(minLon + 180, 360, lonBits); lon <= GeoPoint
+					.cellIndex(maxLon + 180, 360, lonBits); lon++) {
+				prefixes.add(GeoPoint.geohash(lat, lon, precision));
+			}
+		}
+
+		// Merge cells that are next to each other in geohash order
+
+		String[] range = null;
+		for (String prefix : prefixes) {
+			if ((range != null) && isSuccessor(range[1], prefix)) {
+				range[1] = prefix;
+			} else {
+				range = new String[] { prefix, prefix };
+				ranges.add(range);
+			}
+		}
+
+		logger.info("Covered (" + minLat + ", " + minLon + ") - (" + maxLat
+				+ ", " + maxLon + ") with " + prefixes.size()
+				+ " cells at precision " + precision + " in " + ranges.size()
+				+ " slices");
+		return ranges;
+	}
+
+	private static long cells(double min, double max, double range, int bits) {
+		return GeoPoint.cellIndex(max, range, bits)
+				- GeoPoint.cellIndex(min, range, bits) + 1;
+	}
+
+	private static boolean isSuccessor(String prefix, String next) {
+		int n = prefix.length();
+		return (n == next.length())
+				&& prefix.regionMatches(0, next, 0, n - 1)
+				&& (GeoPoint.BASE32.indexOf(next.charAt(n - 1)) == GeoPoint.BASE32
+						.indexOf(prefix.charAt(n - 1)) + 1);
+	}
+
+	private static <IK> List<Match<IK>> scan(final Keyspace ko,
+			final String columnIndexKey, List<String[]> ranges,
+			final CollectionCFSet cf, final Serializer<IK> itemKeySerializer,
+			ExecutorService executor) {
+		List<Match<IK>> matches = new ArrayList<Match<IK>>();
+		if (executor == null) {
+			for (String[] range : ranges) {
+				matches.addAll(scanRange(ko, columnIndexKey, range, cf,
+						itemKeySerializer));
+			}
+			return matches;
+		}
+
+		List<Future<List<Match<IK>>>> pending = new ArrayList<Future<List<Match<IK>>>>();
+		for (final String[] range : ranges) {
+			pending.add(executor.submit(new Callable<List<Match<IK>>>() {
+				@Override
+				public List<Match<IK>> call() {
+					return scanRange(ko, columnIndexKey, range, cf,
+							itemKeySerializer);
+				}
+			}));
+		}
+		for (Future<List<Match<IK>>> f : pending) {
+			try {
+				matches.addAll(f.get());
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new HectorException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new HectorException(e);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Read the index entries whose geohash starts with a prefix in the range.
+	 */
+	private static <IK> List<Match<IK>> scanRange(Keyspace ko,
+			String columnIndexKey, String[] range, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer) {
+		int code = VALUE_CODE_GEO;
+		DynamicComposite start = new DynamicComposite(code, range[0]);
+		DynamicComposite finish = new DynamicComposite(code, range[1] + "~");
+
+		List<Match<IK>> matches = new ArrayList<Match<IK>>();
+		boolean continuing = false;
+		int read = 0;
+		while (read < ALL_COUNT) {
+			int limit = DEFAULT_COUNT * 10 + (continuing ? 1 : 0);
+			SliceQuery<ByteBuffer, DynamicComposite, ByteBuffer> q = createSliceQuery(
+					ko, be, ce, be);
+			q.setColumnFamily(cf.getIndex());
+			q.setKey(se.toByteBuffer(columnIndexKey));
+			q.setRange(start, finish, false, limit);
+			List<HColumn<DynamicComposite, ByteBuffer>> results = q.execute()
+					.get().getColumns();
+
+			for (HColumn<DynamicComposite, ByteBuffer> result : results) {
+				DynamicComposite name = result.getName();
+				if (continuing
+						&& ce.toByteBuffer(name).equals(ce.toByteBuffer(start))) {
+					continue;
+				}
+				IK itemKey = name.get(2, itemKeySerializer);
+				if (itemKey != null) {
+					matches.add(new Match<IK>(itemKey, GeoPoint
+							.fromGeohash((String) name.get(1))));
+				}
+				read++;
+			}
+			if (results.size() < limit) {
+				break;
+			}
+			start = results.get(results.size() - 1).getName();
+			continuing = true;
+		}
+		return matches;
+	}
+
+	/**
+	 * Match is an index entry found in a scanned cell.
+	 */
+	private static class Match<IK> {
+		final IK itemKey;
+		final GeoPoint point;
+		double distance;
+
+		Match(IK itemKey, GeoPoint point) {
+			this.itemKey = itemKey;
+			this.point = point;
+		}
+	}
+}
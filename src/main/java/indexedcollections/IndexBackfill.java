@@ -0,0 +1,667 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import static indexedcollections.IndexedCollections.ALL_COUNT;
+import static indexedcollections.IndexedCollections.addEntriesInsertion;
+import static indexedcollections.IndexedCollections.addIndexInsertion;
+import static indexedcollections.IndexedCollections.be;
+import static indexedcollections.IndexedCollections.ce;
+import static indexedcollections.IndexedCollections.getEntriesRangeFinish;
+import static indexedcollections.IndexedCollections.getEntriesRangeStart;
+import static indexedcollections.IndexedCollections.getEntryValue;
+import static indexedcollections.IndexedCollections.getItemsInCollection;
+import static indexedcollections.IndexedCollections.invalidateCachedRows;
+import static indexedcollections.IndexedCollections.newTimeUUID;
+import static indexedcollections.IndexedCollections.ue;
+import static me.prettyprint.hector.api.factory.HFactory.createMultigetSliceQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import indexedcollections.IndexedCollections.CollectionCFSet;
+import indexedcollections.IndexedCollections.ContainerCollection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.beans.Rows;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.MultigetSliceQuery;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Backfills container indexes for items that were already in a collection
+ * before the index was being written, for example because the columns were
+ * set before the item was added to the container.
+ *
+ * The container's items are paged through in key order. For each page, the
+ * item's existing Item_Index_Entries are read with a multiget and reused so
+ * that the new Collection_Index entries share the ts_uuid that setItemColumn
+ * will later delete. Items with no entry for a column have their value read
+ * from the Item CF and get a new entry. Index writes are issued as bounded,
+ * parallel batches, and a checkpoint is saved after each completed page so an
+ * interrupted job can be resumed.
+ *
+ * @param <CK>
+ *            the container's key type
+ * @param <IK>
+ *            the item's key type
+ * @param <N>
+ *            the item's column name type
+ */
+public class IndexBackfill<CK, IK, N> {
+
+	private static final Logger logger = Logger.getLogger(IndexBackfill.class
+			.getName());
+
+	public static final int DEFAULT_PAGE_SIZE = 100;
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+	private final Keyspace ko;
+	private final CollectionCFSet cf;
+	private final ExecutorService executor;
+	private final Serializer<IK> itemKeySerializer;
+	private final Serializer<N> nameSerializer;
+
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private double maxItemsPerSecond = 0;
+	private AdaptiveWriteController writeController;
+	private CheckpointStore checkpoints = new MemoryCheckpointStore();
+
+	/**
+	 * @param ko
+	 *            the keyspace operator
+	 * @param cf
+	 *            the column families to use
+	 * @param executor
+	 *            the executor the index write batches are run on
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @param nameSerializer
+	 *            the column name serializer
+	 */
+	public IndexBackfill(Keyspace ko, CollectionCFSet cf,
+			ExecutorService executor, Serializer<IK> itemKeySerializer,
+			Serializer<N> nameSerializer) {
+		this.ko = ko;
+		this.cf = cf;
+		this.executor = executor;
+		this.itemKeySerializer = itemKeySerializer;
+		this.nameSerializer = nameSerializer;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @param pageSize
+	 *            the number of items read from the collection per page
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            the maximum number of mutations sent in one batch
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * @param maxInFlight
+	 *            the maximum number of batches executing concurrently
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	public AdaptiveWriteController getWriteController() {
+		return writeController;
+	}
+
+	/**
+	 * @param writeController
+	 *            the controller that sizes and runs the index write batches in
+	 *            place of the fixed batch size and maximum in flight, or null
+	 */
+	public void setWriteController(AdaptiveWriteController writeController) {
+		this.writeController = writeController;
+	}
+
+	public double getMaxItemsPerSecond() {
+		return maxItemsPerSecond;
+	}
+
+	/**
+	 * @param maxItemsPerSecond
+	 *            the throttle on items processed per second, or 0 for no
+	 *            throttle
+	 */
+	public void setMaxItemsPerSecond(double maxItemsPerSecond) {
+		this.maxItemsPerSecond = maxItemsPerSecond;
+	}
+
+	public CheckpointStore getCheckpoints() {
+		return checkpoints;
+	}
+
+	public void setCheckpoints(CheckpointStore checkpoints) {
+		this.checkpoints = checkpoints;
+	}
+
+	/**
+	 * Backfill the indexes for the specified columns of every item in a
+	 * container. If a checkpoint exists for the job id, the job resumes after
+	 * the last completed item.
+	 *
+	 * @param jobId
+	 *            the id the job's checkpoint is stored under
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param columns
+	 *            the columns to index, mapped to their value serializers
+	 * @return the number of items processed by this run
+	 * @throws InterruptedException
+	 */
+	public long backfill(String jobId, ContainerCollection<CK> container,
+			Map<N, Serializer<?>> columns) throws InterruptedException {
+
+		Checkpoint checkpoint = checkpoints.load(jobId);
+		IK startItem = null;
+		long processed = 0;
+		if (checkpoint != null) {
+			startItem = itemKeySerializer.fromByteBuffer(checkpoint
+					.getLastItem());
+			processed = checkpoint.getItemCount();
+			logger.info("Resuming backfill " + jobId + " after " + startItem
+					+ " (" + processed + " items already processed)");
+		}
+
+		long started = System.currentTimeMillis();
+		long processedThisRun = 0;
+
+		while (true) {
+			List<IK> page = getItemsInCollection(ko, container, startItem,
+					startItem != null ? pageSize + 1 : pageSize, cf,
+					itemKeySerializer);
+
+			// The page start is inclusive, skip the item we resumed from
+
+			if ((startItem != null) && !page.isEmpty()
+					&& page.get(0).equals(startItem)) {
+				page.remove(0);
+			}
+			if (page.isEmpty()) {
+				break;
+			}
+
+			backfillPage(container, page, columns);
+
+			startItem = page.get(page.size() - 1);
+			processed += page.size();
+			processedThisRun += page.size();
+			checkpoints.save(jobId, new Checkpoint(
+					itemKeySerializer.toByteBuffer(startItem), processed));
+
+			logger.info("Backfill " + jobId + " processed " + processed
+					+ " items");
+
+			throttle(started, processedThisRun);
+		}
+
+		return processedThisRun;
+	}
+
+	private void throttle(long started, long processedThisRun)
+			throws InterruptedException {
+		if (maxItemsPerSecond <= 0) {
+			return;
+		}
+		long due = started + (long) (processedThisRun * 1000 / maxItemsPerSecond);
+		long wait = due - System.currentTimeMillis();
+		if (wait > 0) {
+			Thread.sleep(wait);
+		}
+	}
+
+	private void backfillPage(ContainerCollection<CK> container,
+			List<IK> page, Map<N, Serializer<?>> columns)
+			throws InterruptedException {
+
+		List<ByteBuffer> keys = new ArrayList<ByteBuffer>(page.size());
+		for (IK itemKey : page) {
+			keys.add(itemKeySerializer.toByteBuffer(itemKey));
+		}
+
+		Map<N, Map<ByteBuffer, List<HColumn<DynamicComposite, DynamicComposite>>>> entries = new HashMap<N, Map<ByteBuffer, List<HColumn<DynamicComposite, DynamicComposite>>>>();
+		List<N> missing = new ArrayList<N>();
+		for (N columnName : columns.keySet()) {
+			Map<ByteBuffer, List<HColumn<DynamicComposite, DynamicComposite>>> columnEntries = getEntries(
+					keys, columnName);
+			entries.put(columnName, columnEntries);
+			if (columnEntries.size() < keys.size()) {
+				missing.add(columnName);
+			}
+		}
+
+		Map<ByteBuffer, Map<N, HColumn<N, ByteBuffer>>> values = getItemValues(
+				keys, missing);
+
+		List<Future<?>> pending = new ArrayList<Future<?>>();
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		List<IndexWrite<IK, N>> batch = new ArrayList<IndexWrite<IK, N>>();
+		int batchCount = 0;
+		int batchLimit = getCurrentBatchSize();
+
+		for (int i = 0; i < page.size(); i++) {
+			IK itemKey = page.get(i);
+			ByteBuffer key = keys.get(i);
+
+			for (Map.Entry<N, Serializer<?>> column : columns.entrySet()) {
+				N columnName = column.getKey();
+				String columnIndexKey = container.getKey() + ":"
+						+ columnName.toString();
+
+				List<HColumn<DynamicComposite, DynamicComposite>> itemEntries = entries
+						.get(columnName).get(key);
+				if (itemEntries != null) {
+
+					// Reuse the existing entries' ts_uuids and clocks so that
+					// a later setItemColumn deletes these index entries as
+					// well. A set-valued column has an entry per element.
+
+					for (HColumn<DynamicComposite, DynamicComposite> entry : itemEntries) {
+						Object columnValue = getEntryValue(entry.getValue());
+						batch.add(new IndexWrite<IK, N>(itemKey, columnName,
+								columnIndexKey, columnValue, entry.getName()
+										.get(1, ue), entry.getClock(), false));
+						recordValue(columnIndexKey, columnValue);
+						batchCount++;
+					}
+				} else {
+					Map<N, HColumn<N, ByteBuffer>> itemValues = values.get(key);
+					HColumn<N, ByteBuffer> itemValue = itemValues != null ? itemValues
+							.get(columnName) : null;
+					if (itemValue == null) {
+						continue;
+					}
+					Object columnValue = column.getValue().fromByteBuffer(
+							itemValue.getValue());
+					batch.add(new IndexWrite<IK, N>(itemKey, columnName,
+							columnIndexKey, columnValue, newTimeUUID(),
+							itemValue.getClock(), true));
+					recordValue(columnIndexKey, columnValue);
+					batchCount += 2;
+				}
+
+				if (batchCount >= batchLimit) {
+					pending.add(submit(batch, inFlight));
+					batch = new ArrayList<IndexWrite<IK, N>>();
+					batchCount = 0;
+					batchLimit = getCurrentBatchSize();
+				}
+			}
+		}
+
+		if (batchCount > 0) {
+			pending.add(submit(batch, inFlight));
+		}
+
+		// Every batch of the page has to be applied before the checkpoint
+		// moves past it
+
+		try {
+			for (Future<?> f : pending) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof HectorException) {
+						throw (HectorException) e.getCause();
+					}
+					throw new HectorException(e.getCause());
+				}
+			}
+		} finally {
+			Set<ContainerCollection<CK>> containers = Collections
+					.singleton(container);
+			for (IK itemKey : page) {
+				for (N columnName : columns.keySet()) {
+					invalidateCachedRows(itemKey, columnName, containers, cf,
+							itemKeySerializer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record a backfilled value in the container index's membership filter,
+	 * before it's written so a filter being built can't miss it.
+	 */
+	private void recordValue(String columnIndexKey, Object columnValue) {
+		MembershipFilters filters = cf.getMembershipFilters();
+		if (filters != null) {
+			filters.recordValue(columnIndexKey, columnValue);
+		}
+	}
+
+	private int getCurrentBatchSize() {
+		return writeController != null ? writeController.getBatchSize()
+				: batchSize;
+	}
+
+	/**
+	 * Build a batch's mutations. The write controller calls this again for
+	 * each retry, since executing a Mutator clears it.
+	 */
+	private Mutator<ByteBuffer> createBatch(List<IndexWrite<IK, N>> writes) {
+		Mutator<ByteBuffer> batch = createMutator(ko, be);
+		for (IndexWrite<IK, N> write : writes) {
+			if (write.newEntry) {
+				addEntriesInsertion(batch, cf, write.itemKey,
+						write.columnName, write.columnValue, write.ts_uuid,
+						itemKeySerializer, write.clock);
+			}
+			addIndexInsertion(batch, cf, write.columnIndexKey, write.itemKey,
+					write.columnValue, write.ts_uuid, write.clock);
+		}
+		return batch;
+	}
+
+	private Future<?> submit(final List<IndexWrite<IK, N>> batch,
+			final Semaphore inFlight) throws InterruptedException {
+		if (writeController != null) {
+			return writeController.submit(new Callable<Mutator<?>>() {
+				@Override
+				public Mutator<?> call() {
+					return createBatch(batch);
+				}
+			});
+		}
+		inFlight.acquire();
+		try {
+			return executor.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					try {
+						createBatch(batch).execute();
+						return null;
+					} finally {
+						inFlight.release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			inFlight.release();
+			throw e;
+		}
+	}
+
+	private Map<ByteBuffer, List<HColumn<DynamicComposite, DynamicComposite>>> getEntries(
+			List<ByteBuffer> keys, N columnName) {
+		Map<ByteBuffer, List<HColumn<DynamicComposite, DynamicComposite>>> entries = new HashMap<ByteBuffer, List<HColumn<DynamicComposite, DynamicComposite>>>();
+
+		MultigetSliceQuery<ByteBuffer, DynamicComposite, DynamicComposite> q = createMultigetSliceQuery(
+				ko, be, ce, ce);
+		q.setColumnFamily(cf.getEntries());
+		q.setKeys(keys);
+		q.setRange(getEntriesRangeStart(columnName),
+				getEntriesRangeFinish(columnName), false, ALL_COUNT);
+		Rows<ByteBuffer, DynamicComposite, DynamicComposite> rows = q
+				.execute().get();
+
+		for (Row<ByteBuffer, DynamicComposite, DynamicComposite> row : rows) {
+			List<HColumn<DynamicComposite, DynamicComposite>> columns = row
+					.getColumnSlice().getColumns();
+			if (!columns.isEmpty()) {
+				entries.put(row.getKey(), columns);
+			}
+		}
+		return entries;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<ByteBuffer, Map<N, HColumn<N, ByteBuffer>>> getItemValues(
+			List<ByteBuffer> keys, List<N> columnNames) {
+		Map<ByteBuffer, Map<N, HColumn<N, ByteBuffer>>> values = new HashMap<ByteBuffer, Map<N, HColumn<N, ByteBuffer>>>();
+		if (columnNames.isEmpty()) {
+			return values;
+		}
+
+		MultigetSliceQuery<ByteBuffer, N, ByteBuffer> q = createMultigetSliceQuery(
+				ko, be, nameSerializer, be);
+		q.setColumnFamily(cf.getItem());
+		q.setKeys(keys);
+		q.setColumnNames((N[]) columnNames.toArray());
+		Rows<ByteBuffer, N, ByteBuffer> rows = q.execute().get();
+
+		for (Row<ByteBuffer, N, ByteBuffer> row : rows) {
+			Map<N, HColumn<N, ByteBuffer>> columns = new HashMap<N, HColumn<N, ByteBuffer>>();
+			for (HColumn<N, ByteBuffer> column : row.getColumnSlice()
+					.getColumns()) {
+				columns.put(column.getName(), column);
+			}
+			values.put(row.getKey(), columns);
+		}
+		return values;
+	}
+
+	/**
+	 * IndexWrite is an index entry a backfill batch writes, kept so the
+	 * batch can be built again. A new entry is written to the
+	 * Item_Index_Entries as well as the Collection_Index.
+	 */
+	static class IndexWrite<IK, N> {
+		final IK itemKey;
+		final N columnName;
+		final String columnIndexKey;
+		final Object columnValue;
+		final UUID ts_uuid;
+		final long clock;
+		final boolean newEntry;
+
+		IndexWrite(IK itemKey, N columnName, String columnIndexKey,
+				Object columnValue, UUID ts_uuid, long clock, boolean newEntry) {
+			this.itemKey = itemKey;
+			this.columnName = columnName;
+			this.columnIndexKey = columnIndexKey;
+			this.columnValue = columnValue;
+			this.ts_uuid = ts_uuid;
+			this.clock = clock;
+			this.newEntry = newEntry;
+		}
+	}
+
+	/**
+	 * Checkpoint records the last item of the last completed page of a
+	 * backfill job.
+	 */
+	public static class Checkpoint {
+		private final ByteBuffer lastItem;
+		private final long itemCount;
+
+		public Checkpoint(ByteBuffer lastItem, long itemCount) {
+			this.lastItem = lastItem;
+			this.itemCount = itemCount;
+		}
+
+		public ByteBuffer getLastItem() {
+			return lastItem.duplicate();
+		}
+
+		public long getItemCount() {
+			return itemCount;
+		}
+	}
+
+	/**
+	 * CheckpointStore persists backfill checkpoints by job id.
+	 */
+	public interface CheckpointStore {
+
+		/**
+		 * @param jobId
+		 * @return the saved checkpoint, or null if the job hasn't completed a
+		 *         page yet
+		 */
+		public Checkpoint load(String jobId);
+
+		public void save(String jobId, Checkpoint checkpoint);
+	}
+
+	/**
+	 * MemoryCheckpointStore keeps checkpoints for the life of the JVM, which
+	 * allows a job to be resumed after a failure but not after a restart.
+	 */
+	public static class MemoryCheckpointStore implements CheckpointStore {
+		private final Map<String, Checkpoint> checkpoints = new ConcurrentHashMap<String, Checkpoint>();
+
+		@Override
+		public Checkpoint load(String jobId) {
+			return checkpoints.get(jobId);
+		}
+
+		@Override
+		public void save(String jobId, Checkpoint checkpoint) {
+			checkpoints.put(jobId, checkpoint);
+		}
+	}
+
+	/**
+	 * FileCheckpointStore keeps one properties file per job in a local
+	 * directory.
+	 */
+	public static class FileCheckpointStore implements CheckpointStore {
+		private final File dir;
+
+		public FileCheckpointStore(File dir) {
+			this.dir = dir;
+			dir.mkdirs();
+		}
+
+		private File getFile(String jobId) {
+			return new File(dir, jobId + ".checkpoint");
+		}
+
+		@Override
+		public Checkpoint load(String jobId) {
+			File file = getFile(jobId);
+			if (!file.exists()) {
+				return null;
+			}
+			Properties props = new Properties();
+			try {
+				FileInputStream in = new FileInputStream(file);
+				try {
+					props.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new HectorException("Unable to read checkpoint "
+						+ file, e);
+			}
+			String hex = props.getProperty("lastItem");
+			byte[] lastItem = new byte[hex.length() / 2];
+			for (int i = 0; i < lastItem.length; i++) {
+				lastItem[i] = (byte) Integer.parseInt(
+						hex.substring(i * 2, i * 2 + 2), 16);
+			}
+			return new Checkpoint(ByteBuffer.wrap(lastItem),
+					Long.parseLong(props.getProperty("itemCount")));
+		}
+
+		@Override
+		public void save(String jobId, Checkpoint checkpoint) {
+			ByteBuffer lastItem = checkpoint.getLastItem();
+			StringBuilder hex = new StringBuilder();
+			while (lastItem.hasRemaining()) {
+				hex.append(String.format("%02x", lastItem.get() & 0xff));
+			}
+
+			Properties props = new Properties();
+			props.setProperty("lastItem", hex.toString());
+			props.setProperty("itemCount",
+					Long.toString(checkpoint.getItemCount()));
+
+			// Write to a temp file and rename so a crash never leaves a
+			// truncated checkpoint behind
+
+			File file = getFile(jobId);
+			File tmp = new File(dir, jobId + ".checkpoint.tmp");
+			try {
+				FileOutputStream out = new FileOutputStream(tmp);
+				try {
+					props.store(out, "backfill " + jobId);
+					out.getFD().sync();
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				throw new HectorException("Unable to write checkpoint "
+						+ file, e);
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					throw new HectorException("Unable to write checkpoint "
+							+ file);
+				}
+			}
+		}
+	}
+}
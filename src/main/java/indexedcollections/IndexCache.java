@@ -0,0 +1,903 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import static indexedcollections.IndexedCollections.be;
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.query.SliceQuery;
+
+import org.apache.log4j.Logger;
+
+/**
+ * IndexCache is a client-side cache of the Item_Index_Entries slices read by
+ * getItemColumnValues and the Collection_Index slices read by
+ * searchContainer. Slices are kept as the raw column bytes, keyed by the
+ * column family, row key and slice range. The previous entries setItemColumn
+ * and the set-valued column updates read before every write always go to
+ * Cassandra, since a cached slice could be missing another node's write and
+ * leave its index entries behind, so the cache doesn't save those reads.
+ *
+ * The rows written by setItemColumn, the set-valued column updates, the
+ * write-behind journal and the backfill are invalidated once their batch has
+ * been applied, and a slice read that overlaps an invalidation of its row
+ * isn't cached. Invalidations are counted per stripe of rows, so writes to
+ * other rows don't stop a slice from being cached. Like the membership
+ * filters, the cache only sees the writes made by this JVM, so slices are
+ * dropped once they're older than the maximum age, which bounds how long a
+ * write from another node can be missed.
+ *
+ * The hottest slices can be written to a snapshot file, periodically and at
+ * shutdown, so a restarted node doesn't start cold. warmStart memory-maps
+ * the snapshot and only reads each record's key; a record's columns are
+ * decoded and checksummed the first time the slice is asked for. Records
+ * keep the time they were read from Cassandra, so they still expire with
+ * the maximum age, and the hottest are re-read in the background.
+ */
+public class IndexCache {
+
+	private static final Logger logger = Logger.getLogger(IndexCache.class
+			.getName());
+
+	public static final int DEFAULT_MAX_SLICES = 10000;
+	public static final long DEFAULT_MAX_AGE = 60 * 1000;
+	public static final int DEFAULT_SNAPSHOT_SLICES = 1000;
+	public static final long DEFAULT_SNAPSHOT_INTERVAL = 60 * 1000;
+	public static final int DEFAULT_PREFETCH_SLICES = 100;
+
+	private static final int MAGIC = 0x49434e53;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 20;
+	private static final int RECORD_HEADER_SIZE = 12;
+	private static final int GENERATION_STRIPES = 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private int maxSlices = DEFAULT_MAX_SLICES;
+	private long maxAge = DEFAULT_MAX_AGE;
+	private int snapshotSlices = DEFAULT_SNAPSHOT_SLICES;
+	private long snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+	private int prefetchSlices = DEFAULT_PREFETCH_SLICES;
+
+	private final LinkedHashMap<SliceKey, CachedSlice> slices = new LinkedHashMap<SliceKey, CachedSlice>(
+			16, 0.75f, true);
+	private final Map<SliceKey, Integer> snapshotOffsets = new HashMap<SliceKey, Integer>();
+	private final Map<RowKey, Set<SliceKey>> rows = new HashMap<RowKey, Set<SliceKey>>();
+	private final AtomicLongArray generations = new AtomicLongArray(
+			GENERATION_STRIPES);
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong snapshotHits = new AtomicLong();
+	private MappedByteBuffer snapshot;
+
+	private volatile boolean running = false;
+	private Thread snapshotter;
+
+	public int getMaxSlices() {
+		return maxSlices;
+	}
+
+	/**
+	 * @param maxSlices
+	 *            the maximum number of slices kept, the least recently used
+	 *            are evicted
+	 */
+	public void setMaxSlices(int maxSlices) {
+		this.maxSlices = maxSlices;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * @param maxAge
+	 *            how long, in milliseconds, a slice is trusted after it was
+	 *            read from Cassandra
+	 */
+	public void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	public int getSnapshotSlices() {
+		return snapshotSlices;
+	}
+
+	/**
+	 * @param snapshotSlices
+	 *            the number of the most used slices written to a snapshot
+	 */
+	public void setSnapshotSlices(int snapshotSlices) {
+		this.snapshotSlices = snapshotSlices;
+	}
+
+	public long getSnapshotInterval() {
+		return snapshotInterval;
+	}
+
+	/**
+	 * @param snapshotInterval
+	 *            how often, in milliseconds, startSnapshots writes the
+	 *            snapshot
+	 */
+	public void setSnapshotInterval(long snapshotInterval) {
+		this.snapshotInterval = snapshotInterval;
+	}
+
+	public int getPrefetchSlices() {
+		return prefetchSlices;
+	}
+
+	/**
+	 * @param prefetchSlices
+	 *            the number of the hottest snapshot slices warmStart re-reads
+	 *            in the background
+	 */
+	public void setPrefetchSlices(int prefetchSlices) {
+		this.prefetchSlices = prefetchSlices;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of hits served from a warm start snapshot
+	 */
+	public long getSnapshotHits() {
+		return snapshotHits.get();
+	}
+
+	public synchronized int size() {
+		return slices.size() + snapshotOffsets.size();
+	}
+
+	/**
+	 * @param columnFamily
+	 * @param rowKey
+	 * @return the value to pass to put for a slice of the row about to be
+	 *         read
+	 */
+	public long getGeneration(String columnFamily, ByteBuffer rowKey) {
+		return generations.get(getStripe(new RowKey(columnFamily, rowKey)));
+	}
+
+	private static int getStripe(RowKey row) {
+		return (row.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+	}
+
+	/**
+	 * Gets a cached slice.
+	 * 
+	 * @return the slice's columns, or null if it isn't cached
+	 */
+	public <N, V> List<HColumn<N, V>> get(String columnFamily,
+			ByteBuffer rowKey, ByteBuffer start, ByteBuffer finish,
+			boolean reversed, int count, Serializer<N> nameSerializer,
+			Serializer<V> valueSerializer) {
+		SliceKey key = new SliceKey(new RowKey(columnFamily, rowKey), start,
+				finish, reversed, count);
+		CachedSlice slice;
+		boolean fromSnapshot = false;
+		synchronized (this) {
+			slice = slices.get(key);
+			if (slice == null) {
+				Integer offset = snapshotOffsets.remove(key);
+				if (offset != null) {
+					slice = decode(offset);
+					if (slice != null) {
+						slices.put(key, slice);
+						fromSnapshot = true;
+					} else {
+						removeKey(key);
+					}
+				}
+			}
+			if ((slice != null)
+					&& (System.currentTimeMillis() - slice.readAt > maxAge)) {
+				slices.remove(key);
+				removeKey(key);
+				slice = null;
+			}
+		}
+		if (slice == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		if (fromSnapshot) {
+			snapshotHits.incrementAndGet();
+		}
+		slice.hits.incrementAndGet();
+
+		List<HColumn<N, V>> columns = new ArrayList<HColumn<N, V>>(
+				slice.names.length);
+		for (int i = 0; i < slice.names.length; i++) {
+			columns.add(createColumn(
+					nameSerializer.fromByteBuffer(ByteBuffer
+							.wrap(slice.names[i])),
+					valueSerializer.fromByteBuffer(ByteBuffer
+							.wrap(slice.values[i])), slice.clocks[i],
+					nameSerializer, valueSerializer));
+		}
+		return columns;
+	}
+
+	/**
+	 * Caches a slice read from Cassandra, unless its row was invalidated since
+	 * the read started.
+	 * 
+	 * @param generation
+	 *            the value of getGeneration for the row before the slice was
+	 *            read
+	 */
+	public <N, V> void put(String columnFamily, ByteBuffer rowKey,
+			ByteBuffer start, ByteBuffer finish, boolean reversed, int count,
+			List<HColumn<N, V>> columns, Serializer<N> nameSerializer,
+			Serializer<V> valueSerializer, long generation) {
+		byte[][] names = new byte[columns.size()][];
+		byte[][] values = new byte[columns.size()][];
+		long[] clocks = new long[columns.size()];
+		for (int i = 0; i < columns.size(); i++) {
+			HColumn<N, V> column = columns.get(i);
+			names[i] = toBytes(nameSerializer.toByteBuffer(column.getName()));
+			values[i] = toBytes(valueSerializer.toByteBuffer(column.getValue()));
+			clocks[i] = column.getClock();
+		}
+		put(new SliceKey(new RowKey(columnFamily, copy(rowKey)), copy(start),
+				copy(finish), reversed, count), new CachedSlice(names, values, clocks,
+				System.currentTimeMillis(), 0), generation);
+	}
+
+	private synchronized void put(SliceKey key, CachedSlice slice,
+			long generation) {
+		if (generation != generations.get(getStripe(key.row))) {
+			return;
+		}
+		CachedSlice previous = slices.put(key, slice);
+		if (previous != null) {
+			slice.hits.addAndGet(previous.hits.get());
+		}
+		if ((snapshotOffsets.remove(key) != null) && snapshotOffsets.isEmpty()) {
+			snapshot = null;
+		}
+		Set<SliceKey> keys = rows.get(key.row);
+		if (keys == null) {
+			keys = new HashSet<SliceKey>();
+			rows.put(key.row, keys);
+		}
+		keys.add(key);
+
+		Iterator<Map.Entry<SliceKey, CachedSlice>> i = slices.entrySet()
+				.iterator();
+		while ((slices.size() > maxSlices) && i.hasNext()) {
+			SliceKey eldest = i.next().getKey();
+			i.remove();
+			removeKey(eldest);
+		}
+	}
+
+	private void removeKey(SliceKey key) {
+		if (slices.containsKey(key) || snapshotOffsets.containsKey(key)) {
+			return;
+		}
+		Set<SliceKey> keys = rows.get(key.row);
+		if (keys != null) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				rows.remove(key.row);
+			}
+		}
+		if (snapshotOffsets.isEmpty()) {
+			snapshot = null;
+		}
+	}
+
+	/**
+	 * Drop every cached slice of a row.
+	 * 
+	 * @param columnFamily
+	 * @param rowKey
+	 */
+	public synchronized void invalidateRow(String columnFamily,
+			ByteBuffer rowKey) {
+		RowKey row = new RowKey(columnFamily, rowKey);
+		generations.incrementAndGet(getStripe(row));
+		Set<SliceKey> keys = rows.remove(row);
+		if (keys == null) {
+			return;
+		}
+		for (SliceKey key : keys) {
+			slices.remove(key);
+			snapshotOffsets.remove(key);
+		}
+		if (snapshotOffsets.isEmpty()) {
+			snapshot = null;
+		}
+	}
+
+	public synchronized void clear() {
+		for (int i = 0; i < GENERATION_STRIPES; i++) {
+			generations.incrementAndGet(i);
+		}
+		slices.clear();
+		snapshotOffsets.clear();
+		rows.clear();
+		snapshot = null;
+	}
+
+	/**
+	 * Write the most used slices to a snapshot file. The snapshot is written
+	 * to a temporary file first and renamed over the previous snapshot.
+	 * 
+	 * @param file
+	 *            the snapshot file
+	 * @return the number of slices written
+	 * @throws IOException
+	 */
+	public int snapshot(File file) throws IOException {
+		List<Map.Entry<SliceKey, CachedSlice>> hottest;
+		synchronized (this) {
+			hottest = new ArrayList<Map.Entry<SliceKey, CachedSlice>>(
+					slices.entrySet().size());
+			long now = System.currentTimeMillis();
+			for (Map.Entry<SliceKey, CachedSlice> entry : slices.entrySet()) {
+				if (now - entry.getValue().readAt <= maxAge) {
+					hottest.add(new AbstractMap.SimpleImmutableEntry<SliceKey, CachedSlice>(
+							entry.getKey(), entry.getValue()));
+				}
+			}
+		}
+		Collections.sort(hottest,
+				new Comparator<Map.Entry<SliceKey, CachedSlice>>() {
+					@Override
+					public int compare(Map.Entry<SliceKey, CachedSlice> e1,
+							Map.Entry<SliceKey, CachedSlice> e2) {
+						long h1 = e1.getValue().hits.get();
+						long h2 = e2.getValue().hits.get();
+						return h1 > h2 ? -1 : (h1 < h2 ? 1 : 0);
+					}
+				});
+		if (hottest.size() > snapshotSlices) {
+			hottest = hottest.subList(0, snapshotSlices);
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putLong(System.currentTimeMillis());
+			header.putInt(hottest.size());
+			out.write(header.array());
+			for (Map.Entry<SliceKey, CachedSlice> entry : hottest) {
+				ByteBuffer record = encode(entry.getKey(), entry.getValue());
+				out.write(record.array(), 0, record.limit());
+			}
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Unable to rename " + tmp + " to "
+						+ file);
+			}
+		}
+
+		logger.info("Wrote " + hottest.size() + " index cache slices to "
+				+ file);
+		return hottest.size();
+	}
+
+	/**
+	 * Start writing a snapshot every snapshot interval, from a background
+	 * thread.
+	 * 
+	 * @param file
+	 *            the snapshot file
+	 */
+	public synchronized void startSnapshots(final File file) {
+		if (running) {
+			return;
+		}
+		running = true;
+		snapshotter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				snapshotLoop(file);
+			}
+		}, "IndexCache-snapshot");
+		snapshotter.setDaemon(true);
+		snapshotter.start();
+	}
+
+	/**
+	 * Stop the background snapshots, writing a final snapshot.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void stopSnapshots() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			running = false;
+			notifyAll();
+			t = snapshotter;
+			snapshotter = null;
+		}
+		if (t != null) {
+			t.join();
+		}
+	}
+
+	private void snapshotLoop(File file) {
+		while (true) {
+			synchronized (this) {
+				if (running) {
+					try {
+						wait(snapshotInterval);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+			try {
+				snapshot(file);
+			} catch (IOException e) {
+				logger.error("Unable to write index cache snapshot " + file, e);
+			}
+			if (!running) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Load a snapshot and re-read its hottest slices in the background. Only
+	 * the keys of the snapshot's slices are read, and slices that are already
+	 * older than the maximum age are skipped. A missing or unreadable
+	 * snapshot leaves the cache empty, and loading stops at the first record
+	 * that can't be read, keeping the records before it.
+	 * 
+	 * @param file
+	 *            the snapshot file
+	 * @param ko
+	 *            the keyspace operator used to re-read slices
+	 * @param executor
+	 *            the executor the slices are re-read on, or null to re-read
+	 *            them before returning
+	 * @return the number of slices loaded
+	 */
+	public int warmStart(File file, final Keyspace ko, ExecutorService executor) {
+		final List<SliceKey> loaded;
+		try {
+			loaded = load(file);
+		} catch (IOException e) {
+			logger.error("Unable to load index cache snapshot " + file, e);
+			return 0;
+		}
+
+		logger.info("Loaded " + loaded.size() + " index cache slices from "
+				+ file);
+
+		final List<SliceKey> prefetch = loaded.subList(0,
+				Math.min(prefetchSlices, loaded.size()));
+		if (executor != null) {
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					revalidate(ko, prefetch);
+				}
+			});
+		} else {
+			revalidate(ko, prefetch);
+		}
+		return loaded.size();
+	}
+
+	/**
+	 * Map the snapshot and index its records by slice key.
+	 * 
+	 * @return the slice keys loaded, hottest first
+	 */
+	private List<SliceKey> load(File file) throws IOException {
+		List<SliceKey> loaded = new ArrayList<SliceKey>();
+		if (!file.exists()) {
+			return loaded;
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer buffer;
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+		if ((buffer.capacity() < HEADER_SIZE) || (buffer.getInt(0) != MAGIC)
+				|| (buffer.getInt(4) != VERSION)) {
+			throw new IOException(file + " is not an index cache snapshot");
+		}
+
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			try {
+				int position = HEADER_SIZE;
+				while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+					int length = buffer.getInt(position);
+					if ((length <= 0)
+							|| (position + RECORD_HEADER_SIZE + length > buffer
+									.capacity())) {
+						break;
+					}
+					ByteBuffer data = buffer.duplicate();
+					data.position(position + RECORD_HEADER_SIZE);
+					data.limit(position + RECORD_HEADER_SIZE + length);
+					data = data.slice();
+
+					// Keys aren't checksummed until the slice is decoded, so
+					// a corrupt record can fail here
+
+					long readAt;
+					SliceKey key;
+					try {
+						readAt = data.getLong();
+						key = decodeKey(data);
+					} catch (RuntimeException e) {
+						logger.warn("Corrupt index cache snapshot record at "
+								+ position + ", stopped loading " + file, e);
+						break;
+					}
+					if ((now - readAt <= maxAge) && !slices.containsKey(key)
+							&& !snapshotOffsets.containsKey(key)) {
+						snapshotOffsets.put(key, position);
+						Set<SliceKey> keys = rows.get(key.row);
+						if (keys == null) {
+							keys = new HashSet<SliceKey>();
+							rows.put(key.row, keys);
+						}
+						keys.add(key);
+						loaded.add(key);
+					}
+					position += RECORD_HEADER_SIZE + length;
+				}
+			} catch (RuntimeException e) {
+				unload(loaded);
+				throw new IOException("Unable to load " + file, e);
+			}
+			if (!snapshotOffsets.isEmpty()) {
+				snapshot = buffer;
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Remove the slice keys loaded from a snapshot that couldn't be read.
+	 */
+	private synchronized void unload(List<SliceKey> loaded) {
+		for (SliceKey key : loaded) {
+			snapshotOffsets.remove(key);
+			removeKey(key);
+		}
+		loaded.clear();
+	}
+
+	/**
+	 * Re-read slices from Cassandra, replacing the cached copies.
+	 */
+	private void revalidate(Keyspace ko, List<SliceKey> keys) {
+		int refreshed = 0;
+		for (SliceKey key : keys) {
+			synchronized (this) {
+				if (!snapshotOffsets.containsKey(key)
+						&& !slices.containsKey(key)) {
+					continue;
+				}
+			}
+			long generation = getGeneration(key.row.columnFamily,
+					key.row.rowKey);
+			try {
+				SliceQuery<ByteBuffer, ByteBuffer, ByteBuffer> q = createSliceQuery(
+						ko, be, be, be);
+				q.setColumnFamily(key.row.columnFamily);
+				q.setKey(key.row.rowKey.duplicate());
+				q.setRange(dup(key.start), dup(key.finish), key.reversed,
+						key.count);
+				put(key.row.columnFamily, key.row.rowKey, key.start,
+						key.finish, key.reversed, key.count, q.execute().get()
+								.getColumns(), be, be, generation);
+				refreshed++;
+			} catch (RuntimeException e) {
+				logger.error("Unable to re-read index cache slice from "
+						+ key.row.columnFamily, e);
+			}
+		}
+		logger.info("Re-read " + refreshed + " index cache slices");
+	}
+
+	private ByteBuffer encode(SliceKey key, CachedSlice slice) {
+		List<ByteBuffer> fields = new ArrayList<ByteBuffer>();
+		fields.add(ByteBuffer.wrap(key.row.columnFamily.getBytes(UTF8)));
+		fields.add(key.row.rowKey);
+		fields.add(key.start);
+		fields.add(key.finish);
+		for (int i = 0; i < slice.names.length; i++) {
+			fields.add(ByteBuffer.wrap(slice.names[i]));
+			fields.add(ByteBuffer.wrap(slice.values[i]));
+		}
+
+		int length = 8 + 1 + 4 + 8 + 4 + 8 * slice.clocks.length;
+		for (ByteBuffer field : fields) {
+			length += 4 + (field != null ? field.remaining() : 0);
+		}
+
+		ByteBuffer data = ByteBuffer.allocate(length);
+		data.putLong(slice.readAt);
+		putField(data, fields.get(0));
+		putField(data, fields.get(1));
+		putField(data, fields.get(2));
+		putField(data, fields.get(3));
+		data.put((byte) (key.reversed ? 1 : 0));
+		data.putInt(key.count);
+		data.putLong(slice.hits.get());
+		data.putInt(slice.names.length);
+		for (int i = 0; i < slice.names.length; i++) {
+			putField(data, fields.get(4 + i * 2));
+			putField(data, fields.get(5 + i * 2));
+			data.putLong(slice.clocks[i]);
+		}
+		data.flip();
+
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+		record.putInt(length);
+		record.putLong(crc(data));
+		record.put(data);
+		record.flip();
+		return record;
+	}
+
+	private static SliceKey decodeKey(ByteBuffer data) {
+		ByteBuffer columnFamily = readField(data);
+		ByteBuffer rowKey = readField(data);
+		ByteBuffer start = readField(data);
+		ByteBuffer finish = readField(data);
+		boolean reversed = data.get() != 0;
+		int count = data.getInt();
+		return new SliceKey(new RowKey(new String(toBytes(columnFamily),
+				UTF8), copy(rowKey)), copy(start), copy(finish), reversed,
+				count);
+	}
+
+	/**
+	 * Decode a snapshot record's columns, checking its checksum.
+	 * 
+	 * @return the slice, or null if the record is corrupt
+	 */
+	private CachedSlice decode(int position) {
+		if (snapshot == null) {
+			return null;
+		}
+		int length = snapshot.getInt(position);
+		long crc = snapshot.getLong(position + 4);
+		ByteBuffer data = snapshot.duplicate();
+		data.position(position + RECORD_HEADER_SIZE);
+		data.limit(position + RECORD_HEADER_SIZE + length);
+		data = data.slice();
+		if (crc(data) != crc) {
+			logger.warn("Corrupt index cache snapshot record at " + position);
+			return null;
+		}
+
+		long readAt = data.getLong();
+		decodeKey(data);
+		long sliceHits = data.getLong();
+		int count = data.getInt();
+		byte[][] names = new byte[count][];
+		byte[][] values = new byte[count][];
+		long[] clocks = new long[count];
+		for (int i = 0; i < count; i++) {
+			names[i] = toBytes(readField(data));
+			values[i] = toBytes(readField(data));
+			clocks[i] = data.getLong();
+		}
+		return new CachedSlice(names, values, clocks, readAt, sliceHits);
+	}
+
+	private static void putField(ByteBuffer data, ByteBuffer field) {
+		if (field == null) {
+			data.putInt(-1);
+		} else {
+			data.putInt(field.remaining());
+			data.put(field.duplicate());
+		}
+	}
+
+	private static ByteBuffer readField(ByteBuffer data) {
+		int length = data.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > data.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		ByteBuffer field = data.slice();
+		field.limit(length);
+		data.position(data.position() + length);
+		return field;
+	}
+
+	private static long crc(ByteBuffer data) {
+		CRC32 crc = new CRC32();
+		crc.update(toBytes(data));
+		return crc.getValue();
+	}
+
+	private static byte[] toBytes(ByteBuffer data) {
+		if (data == null) {
+			return new byte[0];
+		}
+		ByteBuffer b = data.duplicate();
+		byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		return bytes;
+	}
+
+	private static ByteBuffer copy(ByteBuffer data) {
+		return data != null ? ByteBuffer.wrap(toBytes(data)) : null;
+	}
+
+	private static ByteBuffer dup(ByteBuffer data) {
+		return data != null ? data.duplicate() : null;
+	}
+
+	/**
+	 * RowKey is a row of a column family.
+	 */
+	static class RowKey {
+		final String columnFamily;
+		final ByteBuffer rowKey;
+
+		RowKey(String columnFamily, ByteBuffer rowKey) {
+			this.columnFamily = columnFamily;
+			this.rowKey = rowKey;
+		}
+
+		@Override
+		public int hashCode() {
+			return columnFamily.hashCode() * 31 + rowKey.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof RowKey)) {
+				return false;
+			}
+			RowKey other = (RowKey) obj;
+			return columnFamily.equals(other.columnFamily)
+					&& rowKey.equals(other.rowKey);
+		}
+	}
+
+	/**
+	 * SliceKey is a slice range of a row.
+	 */
+	static class SliceKey {
+		final RowKey row;
+		final ByteBuffer start;
+		final ByteBuffer finish;
+		final boolean reversed;
+		final int count;
+
+		SliceKey(RowKey row, ByteBuffer start, ByteBuffer finish,
+				boolean reversed, int count) {
+			this.row = row;
+			this.start = start;
+			this.finish = finish;
+			this.reversed = reversed;
+			this.count = count;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = row.hashCode();
+			h = h * 31 + (start != null ? start.hashCode() : 0);
+			h = h * 31 + (finish != null ? finish.hashCode() : 0);
+			return (h * 31 + count) * 2 + (reversed ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof SliceKey)) {
+				return false;
+			}
+			SliceKey other = (SliceKey) obj;
+			return row.equals(other.row)
+					&& (start != null ? start.equals(other.start)
+							: other.start == null)
+					&& (finish != null ? finish.equals(other.finish)
+							: other.finish == null)
+					&& (reversed == other.reversed) && (count == other.count);
+		}
+	}
+
+	/**
+	 * CachedSlice is the columns of a slice and when they were read.
+	 */
+	static class CachedSlice {
+		final byte[][] names;
+		final byte[][] values;
+		final long[] clocks;
+		final long readAt;
+		final AtomicLong hits;
+
+		CachedSlice(byte[][] names, byte[][] values, long[] clocks,
+				long readAt, long hits) {
+			this.names = names;
+			this.values = values;
+			this.clocks = clocks;
+			this.readAt = readAt;
+			this.hits = new AtomicLong(hits);
+		}
+	}
+}
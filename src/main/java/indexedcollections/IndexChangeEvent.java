@@ -0,0 +1,108 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * IndexChangeEvent describes one applied setItemColumn update: the item and
+ * column, the indexed values it replaced, the new value, and the container
+ * indexes ("container:column" Collection_Index row keys) that were changed.
+ *
+ * The previous values are in their indexable form (see
+ * IndexedCollections.getIndexableValue) since that's how they're stored in
+ * the item's index entries.
+ */
+public class IndexChangeEvent {
+
+	private final Object itemKey;
+	private final Object columnName;
+	private final List<Object> oldValues;
+	private final Object newValue;
+	private final List<String> columnIndexKeys;
+	private final UUID ts_uuid;
+	private final long timestamp;
+
+	/**
+	 * @param itemKey
+	 *            the item row key
+	 * @param columnName
+	 *            the item column name
+	 * @param oldValues
+	 *            the previously indexed values removed by the update
+	 * @param newValue
+	 *            the new column value, or null if the column was deleted
+	 * @param columnIndexKeys
+	 *            the container index row keys the update was applied to
+	 * @param ts_uuid
+	 *            the time UUID of the new index entries
+	 * @param timestamp
+	 *            the Cassandra timestamp of the update
+	 */
+	public IndexChangeEvent(Object itemKey, Object columnName,
+			List<Object> oldValues, Object newValue,
+			List<String> columnIndexKeys, UUID ts_uuid, long timestamp) {
+		this.itemKey = itemKey;
+		this.columnName = columnName;
+		this.oldValues = Collections.unmodifiableList(oldValues);
+		this.newValue = newValue;
+		this.columnIndexKeys = Collections.unmodifiableList(columnIndexKeys);
+		this.ts_uuid = ts_uuid;
+		this.timestamp = timestamp;
+	}
+
+	public Object getItemKey() {
+		return itemKey;
+	}
+
+	public Object getColumnName() {
+		return columnName;
+	}
+
+	public List<Object> getOldValues() {
+		return oldValues;
+	}
+
+	public Object getNewValue() {
+		return newValue;
+	}
+
+	public List<String> getColumnIndexKeys() {
+		return columnIndexKeys;
+	}
+
+	public UUID getTimeUUID() {
+		return ts_uuid;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return "SET " + columnName + " = '" + newValue + "' FOR ITEM "
+				+ itemKey + " (was " + oldValues + ") IN " + columnIndexKeys;
+	}
+}
@@ -0,0 +1,224 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import static indexedcollections.IndexedCollections.ce;
+import static indexedcollections.IndexedCollections.getIndexableValue;
+import static indexedcollections.IndexedCollections.le;
+import static indexedcollections.IndexedCollections.ue;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.SliceQuery;
+
+/**
+ * IndexChangeLog is an append-only log of index changes kept in its own
+ * column family, so that other JVMs can tail it to invalidate their local
+ * caches incrementally. When set on the CollectionCFSet, each setItemColumn
+ * adds its change event to the same batch as the index update.
+ *
+ * Rows are time buckets (a Long bucket number) and columns are named by the
+ * ts_uuid of the update, so the column family should use TimeUUIDType as its
+ * comparator. The values are DynamicComposites.
+ *
+ * Events are logged with the time the update started, not the time it was
+ * written, so a tailer should resume a little behind the last event it saw
+ * (by at least the write timeout) and ignore events it has already seen.
+ */
+public class IndexChangeLog {
+
+	public static final String DEFAULT_CHANGE_LOG_CF = "Index_Change_Log";
+	public static final long DEFAULT_BUCKET_MILLIS = 60 * 60 * 1000;
+
+	// 100ns intervals between the UUID epoch (1582-10-15) and the Unix epoch
+
+	private static final long UUID_EPOCH_OFFSET = 0x01b21dd213814000L;
+
+	private final Keyspace ko;
+	private final String columnFamily;
+	private long bucketMillis = DEFAULT_BUCKET_MILLIS;
+	private int ttl = 0;
+
+	public IndexChangeLog(Keyspace ko) {
+		this(ko, DEFAULT_CHANGE_LOG_CF);
+	}
+
+	/**
+	 * @param ko
+	 *            the keyspace operator used for tailing
+	 * @param columnFamily
+	 *            the change log column family
+	 */
+	public IndexChangeLog(Keyspace ko, String columnFamily) {
+		this.ko = ko;
+		this.columnFamily = columnFamily;
+	}
+
+	public String getColumnFamily() {
+		return columnFamily;
+	}
+
+	public long getBucketMillis() {
+		return bucketMillis;
+	}
+
+	/**
+	 * @param bucketMillis
+	 *            the length of time covered by each log row, must be the same
+	 *            for all writers and tailers
+	 */
+	public void setBucketMillis(long bucketMillis) {
+		this.bucketMillis = bucketMillis;
+	}
+
+	public int getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * @param ttl
+	 *            how long, in seconds, log entries are kept, or 0 to keep them
+	 *            forever
+	 */
+	public void setTtl(int ttl) {
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Add an event to a batch.
+	 *
+	 * @param batch
+	 * @param event
+	 */
+	public void addInsertion(Mutator<ByteBuffer> batch, IndexChangeEvent event) {
+		List<Object> components = new ArrayList<Object>();
+		components.add(event.getTimestamp());
+		components.add(getIndexableValue(event.getItemKey()));
+		components.add(getIndexableValue(event.getColumnName()));
+		components.add((long) event.getOldValues().size());
+		for (Object oldValue : event.getOldValues()) {
+			components.add(getIndexableValue(oldValue));
+		}
+		if (event.getNewValue() != null) {
+			components.add(1L);
+			components.add(getIndexableValue(event.getNewValue()));
+		} else {
+			components.add(0L);
+		}
+		components.addAll(event.getColumnIndexKeys());
+
+		HColumn<UUID, DynamicComposite> column = HFactory.createColumn(
+				event.getTimeUUID(), new DynamicComposite(components),
+				event.getTimestamp(), ue, ce);
+		if (ttl > 0) {
+			column.setTtl(ttl);
+		}
+		batch.addInsertion(le.toByteBuffer(getBucket(event.getTimeUUID())),
+				columnFamily, column);
+	}
+
+	/**
+	 * Read the events logged after a point in the log, oldest first. Item
+	 * keys, column names and values are returned in their indexable form.
+	 *
+	 * @param since
+	 *            the ts_uuid of the last event seen, or null to start one
+	 *            bucket ago
+	 * @param count
+	 *            the maximum number of events to return
+	 * @return the events
+	 */
+	public List<IndexChangeEvent> tail(UUID since, int count) {
+		long now = System.currentTimeMillis();
+		long start = since != null ? getTime(since) : now - bucketMillis;
+
+		List<IndexChangeEvent> events = new ArrayList<IndexChangeEvent>();
+		for (long bucket = start / bucketMillis; (bucket <= now / bucketMillis)
+				&& (events.size() < count); bucket++) {
+			SliceQuery<Long, UUID, DynamicComposite> q = createSliceQuery(ko,
+					le, ue, ce);
+			q.setColumnFamily(columnFamily);
+			q.setKey(bucket);
+			q.setRange(since, null, false, count - events.size() + 1);
+			List<HColumn<UUID, DynamicComposite>> columns = q.execute().get()
+					.getColumns();
+			for (HColumn<UUID, DynamicComposite> column : columns) {
+				if (column.getName().equals(since)) {
+					continue;
+				}
+				events.add(decode(column.getName(), column.getValue()));
+				if (events.size() >= count) {
+					break;
+				}
+			}
+		}
+		return events;
+	}
+
+	private static IndexChangeEvent decode(UUID ts_uuid, DynamicComposite value) {
+		int i = 0;
+		long timestamp = ((Number) value.get(i++)).longValue();
+		Object itemKey = value.get(i++);
+		Object columnName = value.get(i++);
+
+		int oldCount = ((Number) value.get(i++)).intValue();
+		List<Object> oldValues = new ArrayList<Object>(oldCount);
+		for (int j = 0; j < oldCount; j++) {
+			oldValues.add(value.get(i++));
+		}
+
+		Object newValue = null;
+		if (((Number) value.get(i++)).intValue() > 0) {
+			newValue = value.get(i++);
+		}
+
+		List<String> columnIndexKeys = new ArrayList<String>();
+		while (i < value.size()) {
+			columnIndexKeys.add((String) value.get(i++));
+		}
+
+		return new IndexChangeEvent(itemKey, columnName, oldValues, newValue,
+				columnIndexKeys, ts_uuid, timestamp);
+	}
+
+	private long getBucket(UUID ts_uuid) {
+		return getTime(ts_uuid) / bucketMillis;
+	}
+
+	/**
+	 * @param ts_uuid
+	 *            a version 1 time UUID
+	 * @return the UUID's time in milliseconds since the Unix epoch
+	 */
+	static long getTime(UUID ts_uuid) {
+		return (ts_uuid.timestamp() - UUID_EPOCH_OFFSET) / 10000;
+	}
+}
@@ -0,0 +1,195 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import static indexedcollections.IndexedCollections.ALL_COUNT;
+import static indexedcollections.IndexedCollections.be;
+import static indexedcollections.IndexedCollections.bae;
+import static indexedcollections.IndexedCollections.se;
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.query.SliceQuery;
+
+import org.apache.log4j.Logger;
+
+/**
+ * IndexDefinitions is a registry of which item columns are indexed in which
+ * collections. When set on the CollectionCFSet, setItemColumn only writes
+ * index entries into the containers whose collection has the column
+ * declared, and a column that isn't indexed in any of the item's containers
+ * is only written to the Item column family.
+ *
+ * Definitions are stored in their own column family, one row per collection
+ * name with a column per indexed column name. Declaring the column "*"
+ * indexes every column of the collection. Each collection's definitions are
+ * cached and reloaded once they're older than the refresh interval, so an
+ * index declared on another node starts being written here within that
+ * interval, and immediately on the node that declared it. Items written
+ * before an index was declared can be indexed with IndexBackfill.
+ *
+ * Dropping an index stops new entries from being written but doesn't remove
+ * the existing ones.
+ */
+public class IndexDefinitions {
+
+	private static final Logger logger = Logger
+			.getLogger(IndexDefinitions.class.getName());
+
+	public static final String DEFAULT_INDEX_DEFINITIONS_CF = "Index_Definitions";
+	public static final String ALL_COLUMNS = "*";
+	public static final long DEFAULT_REFRESH_INTERVAL = 30 * 1000;
+
+	private final Keyspace ko;
+	private final String columnFamily;
+	private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+	private final ConcurrentHashMap<String, Definitions> cache = new ConcurrentHashMap<String, Definitions>();
+
+	public IndexDefinitions(Keyspace ko) {
+		this(ko, DEFAULT_INDEX_DEFINITIONS_CF);
+	}
+
+	/**
+	 * @param ko
+	 *            the keyspace operator
+	 * @param columnFamily
+	 *            the index definitions column family
+	 */
+	public IndexDefinitions(Keyspace ko, String columnFamily) {
+		this.ko = ko;
+		this.columnFamily = columnFamily;
+	}
+
+	public long getRefreshInterval() {
+		return refreshInterval;
+	}
+
+	/**
+	 * @param refreshInterval
+	 *            how long, in milliseconds, a collection's cached definitions
+	 *            are used before they're reloaded
+	 */
+	public void setRefreshInterval(long refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	/**
+	 * Declare an index on a column of a collection.
+	 * 
+	 * @param collectionName
+	 * @param columnName
+	 *            the column name, or ALL_COLUMNS
+	 */
+	public void defineIndex(String collectionName, Object columnName) {
+		logger.info("DEFINE INDEX ON " + collectionName + "." + columnName);
+		createMutator(ko, se).insert(collectionName, columnFamily,
+				createColumn(columnName.toString(), new byte[0], se, bae));
+		cache.remove(collectionName);
+	}
+
+	/**
+	 * Drop an index on a column of a collection.
+	 * 
+	 * @param collectionName
+	 * @param columnName
+	 *            the column name, or ALL_COLUMNS
+	 */
+	public void dropIndex(String collectionName, Object columnName) {
+		logger.info("DROP INDEX ON " + collectionName + "." + columnName);
+		createMutator(ko, se).delete(collectionName, columnFamily,
+				columnName.toString(), se);
+		cache.remove(collectionName);
+	}
+
+	/**
+	 * @param collectionName
+	 * @param columnName
+	 * @return true if the column is indexed in the collection
+	 */
+	public boolean isIndexed(String collectionName, Object columnName) {
+		Set<String> columns = getIndexedColumns(collectionName);
+		return columns.contains(ALL_COLUMNS)
+				|| columns.contains(columnName.toString());
+	}
+
+	/**
+	 * @param collectionName
+	 * @return the names of the indexed columns of the collection
+	 */
+	public Set<String> getIndexedColumns(String collectionName) {
+		Definitions definitions = cache.get(collectionName);
+		if ((definitions == null)
+				|| (System.currentTimeMillis() - definitions.loadedAt > refreshInterval)) {
+			definitions = load(collectionName);
+			cache.put(collectionName, definitions);
+		}
+		return definitions.columns;
+	}
+
+	/**
+	 * Drop all cached definitions so they're reloaded on next use.
+	 */
+	public void refresh() {
+		cache.clear();
+	}
+
+	private Definitions load(String collectionName) {
+		SliceQuery<String, String, ByteBuffer> q = createSliceQuery(ko, se,
+				se, be);
+		q.setColumnFamily(columnFamily);
+		q.setKey(collectionName);
+		q.setRange(null, null, false, ALL_COUNT);
+		List<HColumn<String, ByteBuffer>> results = q.execute().get()
+				.getColumns();
+
+		Set<String> columns = new HashSet<String>();
+		for (HColumn<String, ByteBuffer> result : results) {
+			columns.add(result.getName());
+		}
+		logger.info("Loaded " + columns.size() + " index definitions for "
+				+ collectionName);
+		return new Definitions(Collections.unmodifiableSet(columns));
+	}
+
+	/**
+	 * Definitions is the cached set of indexed columns of a collection.
+	 */
+	private static class Definitions {
+		final Set<String> columns;
+		final long loadedAt = System.currentTimeMillis();
+
+		Definitions(Set<String> columns) {
+			this.columns = columns;
+		}
+	}
+}
@@ -0,0 +1,406 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import static indexedcollections.IndexedCollections.be;
+import static indexedcollections.IndexedCollections.ce;
+import static indexedcollections.IndexedCollections.compareIndexableValues;
+import static indexedcollections.IndexedCollections.getValueCode;
+import static indexedcollections.IndexedCollections.se;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+import indexedcollections.IndexedCollections.CollectionCFSet;
+import indexedcollections.IndexedCollections.ContainerCollection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.AbstractComposite;
+import me.prettyprint.hector.api.beans.AbstractComposite.Component;
+import me.prettyprint.hector.api.beans.ColumnSlice;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.query.SliceQuery;
+
+import org.apache.log4j.Logger;
+
+/**
+ * IndexFacets lists the distinct values of a column in a container, for
+ * example the cities the items in a collection are in, optionally with the
+ * number of index entries for each value.
+ *
+ * Without counts the container's Collection_Index row is walked by
+ * skip-scan: each slice reads a single entry, and the next slice starts past
+ * every entry with the same value code and value, so there's one read per
+ * distinct value no matter how many items share it. With counts the entries
+ * are read in pages, and once a value goes past the count limit the rest of
+ * its entries are skipped the same way.
+ *
+ * The walk stops early at the time budget, and the result says whether the
+ * whole row was covered.
+ */
+public class IndexFacets {
+
+	private static final Logger logger = Logger.getLogger(IndexFacets.class
+			.getName());
+
+	public static final int DEFAULT_COUNT_PAGE_SIZE = 1000;
+
+	/**
+	 * Lists the distinct values of a column in a container, in index order.
+	 *
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <N>
+	 *            the item's column name type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param columnName
+	 *            the item's column name
+	 * @param limit
+	 *            the maximum number of values to return, or 0 for all of them
+	 * @param timeBudgetMillis
+	 *            how long to spend reading the index, or 0 for no limit
+	 * @param cf
+	 *            the column families to use
+	 * @param policy
+	 *            the operation policy, or null to use the keyspace defaults
+	 * @return the values found
+	 */
+	public static <CK, N> FacetResult getFacetValues(Keyspace ko,
+			ContainerCollection<CK> container, N columnName, int limit,
+			long timeBudgetMillis, CollectionCFSet cf, OperationPolicy policy) {
+
+		String columnIndexKey = container.getKey() + ":"
+				+ columnName.toString();
+		long deadline = getDeadline(timeBudgetMillis);
+
+		List<FacetValue> values = new ArrayList<FacetValue>();
+		DynamicComposite start = null;
+		boolean complete = false;
+		while (true) {
+			if ((limit > 0) && (values.size() >= limit)) {
+				break;
+			}
+			if (System.currentTimeMillis() > deadline) {
+				logger.info("Facet scan of " + columnIndexKey
+						+ " stopped at time budget after " + values.size()
+						+ " values");
+				break;
+			}
+			List<HColumn<DynamicComposite, ByteBuffer>> results = slice(ko,
+					columnIndexKey, start, null, 1, cf, policy);
+			if (results.isEmpty()) {
+				complete = true;
+				break;
+			}
+			DynamicComposite entry = results.get(0).getName();
+			values.add(new FacetValue(getValueCode(entry.get(0)), entry
+					.get(1), -1, false));
+			start = getSkipBound(entry);
+		}
+
+		return new FacetResult(values, complete);
+	}
+
+	/**
+	 * Lists the distinct values of a column in a container with the number of
+	 * index entries for each. A set-valued column has an entry per element,
+	 * so the count is the number of items with the value.
+	 *
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <N>
+	 *            the item's column name type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param columnName
+	 *            the item's column name
+	 * @param topK
+	 *            the number of values with the highest counts to return, or 0
+	 *            for all of them in index order
+	 * @param maxCount
+	 *            the count above which a value stops being counted and its
+	 *            remaining entries are skipped, or 0 for no limit
+	 * @param timeBudgetMillis
+	 *            how long to spend reading the index, or 0 for no limit
+	 * @param cf
+	 *            the column families to use
+	 * @param policy
+	 *            the operation policy, or null to use the keyspace defaults
+	 * @return the values found, highest count first if topK is set
+	 */
+	public static <CK, N> FacetResult getFacetCounts(Keyspace ko,
+			ContainerCollection<CK> container, N columnName, int topK,
+			int maxCount, long timeBudgetMillis, CollectionCFSet cf,
+			OperationPolicy policy) {
+
+		String columnIndexKey = container.getKey() + ":"
+				+ columnName.toString();
+		long deadline = getDeadline(timeBudgetMillis);
+		int pageSize = maxCount > 0 ? Math.min(DEFAULT_COUNT_PAGE_SIZE,
+				maxCount + 2) : DEFAULT_COUNT_PAGE_SIZE;
+
+		FacetCounter counter = new FacetCounter(topK);
+		DynamicComposite start = null;
+		DynamicComposite last = null;
+		boolean skipFirst = false;
+		int valueCode = 0;
+		Object value = null;
+		int count = 0;
+		boolean complete = false;
+		while (true) {
+			if (System.currentTimeMillis() > deadline) {
+				logger.info("Facet count of " + columnIndexKey
+						+ " stopped at time budget");
+				break;
+			}
+			List<HColumn<DynamicComposite, ByteBuffer>> results = slice(ko,
+					columnIndexKey, start, null, pageSize, cf, policy);
+			boolean skipped = false;
+			for (HColumn<DynamicComposite, ByteBuffer> result : results) {
+
+				// A page continuing a value starts at the last entry read
+
+				if (skipFirst) {
+					skipFirst = false;
+					continue;
+				}
+				DynamicComposite entry = result.getName();
+				last = entry;
+
+				int code = getValueCode(entry.get(0));
+				Object v = entry.get(1);
+				if ((count > 0) && (code == valueCode)
+						&& (compareIndexableValues(v, value) == 0)) {
+					count++;
+				} else {
+					if (count > 0) {
+						counter.add(new FacetValue(valueCode, value, count,
+								true));
+					}
+					valueCode = code;
+					value = v;
+					count = 1;
+				}
+
+				if ((maxCount > 0) && (count > maxCount)) {
+					counter.add(new FacetValue(valueCode, value, count, false));
+					count = 0;
+					start = getSkipBound(entry);
+					skipped = true;
+					break;
+				}
+			}
+			if (skipped) {
+				continue;
+			}
+			if (results.size() < pageSize) {
+				complete = true;
+				break;
+			}
+			start = last;
+			skipFirst = true;
+		}
+
+		// A value still being counted when the budget ran out is a lower
+		// bound
+
+		if (count > 0) {
+			counter.add(new FacetValue(valueCode, value, count, complete));
+		}
+
+		return new FacetResult(counter.getValues(), complete);
+	}
+
+	private static long getDeadline(long timeBudgetMillis) {
+		return timeBudgetMillis > 0 ? System.currentTimeMillis()
+				+ timeBudgetMillis : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Builds a slice start that sorts after every Collection_Index entry with
+	 * the same value code and value as the given entry.
+	 *
+	 * @param entry
+	 *            a Collection_Index column name
+	 * @return composite slice start
+	 */
+	@SuppressWarnings("unchecked")
+	static DynamicComposite getSkipBound(DynamicComposite entry) {
+		DynamicComposite bound = new DynamicComposite();
+		@SuppressWarnings("rawtypes")
+		Component code = entry.getComponent(0);
+		bound.addComponent(code.getValue(), code.getSerializer(),
+				code.getComparator(), AbstractComposite.ComponentEquality.EQUAL);
+		@SuppressWarnings("rawtypes")
+		Component value = entry.getComponent(1);
+		bound.addComponent(value.getValue(), value.getSerializer(),
+				value.getComparator(),
+				AbstractComposite.ComponentEquality.GREATER_THAN_EQUAL);
+		return bound;
+	}
+
+	private static List<HColumn<DynamicComposite, ByteBuffer>> slice(
+			Keyspace ko, String columnIndexKey, DynamicComposite start,
+			DynamicComposite finish, int count, CollectionCFSet cf,
+			OperationPolicy policy) {
+		SliceQuery<ByteBuffer, DynamicComposite, ByteBuffer> q = createSliceQuery(
+				policy != null ? policy.getReadKeyspace(ko) : ko, be, ce, be);
+		q.setColumnFamily(cf.getIndex());
+		q.setKey(se.toByteBuffer(columnIndexKey));
+		q.setRange(start, finish, false, count);
+		ColumnSlice<DynamicComposite, ByteBuffer> slice = policy != null ? policy
+				.read(q).get() : q.execute().get();
+		List<HColumn<DynamicComposite, ByteBuffer>> results = slice
+				.getColumns();
+		return results != null ? results
+				: new ArrayList<HColumn<DynamicComposite, ByteBuffer>>();
+	}
+
+	/**
+	 * FacetCounter collects counted values, keeping only the topK highest
+	 * counts if topK is set.
+	 */
+	static class FacetCounter {
+		private final int topK;
+		private final List<FacetValue> values = new ArrayList<FacetValue>();
+		private final PriorityQueue<FacetValue> top;
+
+		FacetCounter(int topK) {
+			this.topK = topK;
+			top = topK > 0 ? new PriorityQueue<FacetValue>(topK + 1,
+					new Comparator<FacetValue>() {
+						@Override
+						public int compare(FacetValue v1, FacetValue v2) {
+							return v1.getCount() < v2.getCount() ? -1 : (v1
+									.getCount() > v2.getCount() ? 1 : 0);
+						}
+					}) : null;
+		}
+
+		void add(FacetValue value) {
+			if (top == null) {
+				values.add(value);
+				return;
+			}
+			top.add(value);
+			if (top.size() > topK) {
+				top.poll();
+			}
+		}
+
+		List<FacetValue> getValues() {
+			if (top == null) {
+				return values;
+			}
+			List<FacetValue> sorted = new ArrayList<FacetValue>(top);
+			Collections.sort(sorted, Collections.reverseOrder(top.comparator()));
+			return sorted;
+		}
+	}
+
+	/**
+	 * FacetValue is one distinct value of a column, as stored in the index.
+	 */
+	public static class FacetValue {
+		private final int valueCode;
+		private final Object value;
+		private final long count;
+		private final boolean exact;
+
+		public FacetValue(int valueCode, Object value, long count,
+				boolean exact) {
+			this.valueCode = valueCode;
+			this.value = value;
+			this.count = count;
+			this.exact = exact;
+		}
+
+		public int getValueCode() {
+			return valueCode;
+		}
+
+		/**
+		 * @return the indexable value, for example a BigInteger for any
+		 *         integer value or the geohash of a GeoPoint
+		 */
+		public Object getValue() {
+			return value;
+		}
+
+		/**
+		 * @return the number of index entries with the value, or -1 if the
+		 *         entries weren't counted
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return false if counting stopped at the count limit or time budget,
+		 *         in which case the count is a lower bound
+		 */
+		public boolean isCountExact() {
+			return exact;
+		}
+
+		@Override
+		public String toString() {
+			return value + (count >= 0 ? " (" + count + (exact ? "" : "+")
+					+ ")" : "");
+		}
+	}
+
+	/**
+	 * FacetResult is the values found by a facet scan.
+	 */
+	public static class FacetResult {
+		private final List<FacetValue> values;
+		private final boolean complete;
+
+		public FacetResult(List<FacetValue> values, boolean complete) {
+			this.values = values;
+			this.complete = complete;
+		}
+
+		public List<FacetValue> getValues() {
+			return values;
+		}
+
+		/**
+		 * @return true if the whole index row was read, false if the scan
+		 *         stopped at the limit or time budget
+		 */
+		public boolean isComplete() {
+			return complete;
+		}
+	}
+}
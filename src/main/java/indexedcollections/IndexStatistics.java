@@ -0,0 +1,477 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import static indexedcollections.IndexedCollections.be;
+import static indexedcollections.IndexedCollections.ce;
+import static indexedcollections.IndexedCollections.compareIndexableValues;
+import static indexedcollections.IndexedCollections.getIndexableValue;
+import static indexedcollections.IndexedCollections.getIndexableValueCode;
+import static indexedcollections.IndexedCollections.getValueCode;
+import static indexedcollections.IndexedCollections.se;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+import indexedcollections.IndexedCollections.CollectionCFSet;
+import indexedcollections.IndexedCollections.ContainerCollection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import me.prettyprint.cassandra.serializers.TypeInferringSerializer;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.query.SliceQuery;
+
+import org.apache.log4j.Logger;
+
+/**
+ * IndexStatistics keeps approximate statistics for each container index (a
+ * Collection_Index row, identified by its "container:column" key): the number
+ * of entries, a uniform sample of the indexed values that serves as a
+ * histogram, and a distinct value estimate.
+ *
+ * Statistics are kept up to date by setItemColumn when set on the
+ * CollectionCFSet, and can be (re)built from the index rows with sample().
+ * Updates from the write path only see the writes made by this JVM, so
+ * periodically sampling the hot indexes keeps the estimates honest.
+ *
+ * Statistics are kept for at most maxIndexes indexes, the least recently used
+ * are evicted and rebuilt from the write path or by sampling.
+ */
+public class IndexStatistics {
+
+	private static final Logger logger = Logger.getLogger(IndexStatistics.class
+			.getName());
+
+	public static final int DEFAULT_SAMPLE_SIZE = 256;
+	public static final int DEFAULT_MAX_SAMPLED_ENTRIES = 10000;
+	public static final int DEFAULT_MAX_INDEXES = 10000;
+
+	private final int sampleSize;
+	private final int maxIndexes;
+	private final Map<String, ColumnStatistics> columns = new LinkedHashMap<String, ColumnStatistics>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, ColumnStatistics> eldest) {
+			return size() > maxIndexes;
+		}
+	};
+
+	public IndexStatistics() {
+		this(DEFAULT_SAMPLE_SIZE, DEFAULT_MAX_INDEXES);
+	}
+
+	/**
+	 * @param sampleSize
+	 *            the number of values kept in each index's sample and distinct
+	 *            value sketch
+	 */
+	public IndexStatistics(int sampleSize) {
+		this(sampleSize, DEFAULT_MAX_INDEXES);
+	}
+
+	/**
+	 * @param sampleSize
+	 *            the number of values kept in each index's sample and distinct
+	 *            value sketch
+	 * @param maxIndexes
+	 *            the maximum number of indexes statistics are kept for
+	 */
+	public IndexStatistics(int sampleSize, int maxIndexes) {
+		this.sampleSize = sampleSize;
+		this.maxIndexes = maxIndexes;
+	}
+
+	/**
+	 * @param columnIndexKey
+	 *            the "container:column" index row key
+	 * @return the statistics for the index, or null if nothing is known
+	 */
+	public synchronized ColumnStatistics getStatistics(String columnIndexKey) {
+		return columns.get(columnIndexKey);
+	}
+
+	/**
+	 * @return the number of indexes statistics are kept for
+	 */
+	public synchronized int getIndexCount() {
+		return columns.size();
+	}
+
+	private synchronized ColumnStatistics getOrCreate(String columnIndexKey) {
+		ColumnStatistics stats = columns.get(columnIndexKey);
+		if (stats == null) {
+			stats = new ColumnStatistics(sampleSize);
+			columns.put(columnIndexKey, stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * Record a new index entry written by setItemColumn.
+	 *
+	 * @param columnIndexKey
+	 * @param columnValue
+	 */
+	public void recordInsert(String columnIndexKey, Object columnValue) {
+		getOrCreate(columnIndexKey).add(getIndexableValueCode(columnValue),
+				getIndexableValue(columnValue));
+	}
+
+	/**
+	 * Record a previous index entry deleted by setItemColumn.
+	 *
+	 * @param columnIndexKey
+	 * @param columnValue
+	 */
+	public void recordDelete(String columnIndexKey, Object columnValue) {
+		ColumnStatistics stats = getStatistics(columnIndexKey);
+		if (stats != null) {
+			stats.remove(getIndexableValueCode(columnValue),
+					getIndexableValue(columnValue));
+		}
+	}
+
+	/**
+	 * Rebuild the statistics for a container index by reading up to
+	 * maxEntries entries of its Collection_Index row. If the row has more
+	 * entries than that, the entry count is a lower bound.
+	 *
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param columnName
+	 *            the item's column name
+	 * @param maxEntries
+	 *            the maximum number of index entries to read
+	 * @param cf
+	 *            the column families to use
+	 * @return the rebuilt statistics
+	 */
+	public <CK> ColumnStatistics sample(Keyspace ko,
+			ContainerCollection<CK> container, Object columnName,
+			int maxEntries, CollectionCFSet cf) {
+		String columnIndexKey = container.getKey() + ":"
+				+ columnName.toString();
+		ColumnStatistics stats = new ColumnStatistics(sampleSize);
+
+		DynamicComposite start = null;
+		boolean continuing = false;
+		int read = 0;
+		while (read < maxEntries) {
+			int limit = Math.min(IndexedCollections.DEFAULT_COUNT * 10,
+					maxEntries - read) + (continuing ? 1 : 0);
+			SliceQuery<ByteBuffer, DynamicComposite, ByteBuffer> q = createSliceQuery(
+					ko, be, ce, be);
+			q.setColumnFamily(cf.getIndex());
+			q.setKey(se.toByteBuffer(columnIndexKey));
+			q.setRange(start, null, false, limit);
+			List<HColumn<DynamicComposite, ByteBuffer>> results = q.execute()
+					.get().getColumns();
+
+			for (HColumn<DynamicComposite, ByteBuffer> result : results) {
+				DynamicComposite name = result.getName();
+				if (continuing
+						&& ce.toByteBuffer(name).equals(ce.toByteBuffer(start))) {
+					continue;
+				}
+				stats.add(getValueCode(name.get(0)), name.get(1));
+				read++;
+			}
+			if (results.size() < limit) {
+				stats.complete = true;
+				break;
+			}
+			start = results.get(results.size() - 1).getName();
+			continuing = true;
+		}
+
+		stats.sampledAt = System.currentTimeMillis();
+		synchronized (this) {
+			columns.put(columnIndexKey, stats);
+		}
+
+		logger.info("Sampled " + read + " entries from " + columnIndexKey
+				+ ", ~" + stats.getDistinctValues() + " distinct values");
+		return stats;
+	}
+
+	/**
+	 * 64 bit hash of a value's serialized bytes.
+	 *
+	 * @param value
+	 * @return hash
+	 */
+	static long hash64(Object value) {
+		ByteBuffer bytes = value instanceof ByteBuffer ? ((ByteBuffer) value)
+				.duplicate() : TypeInferringSerializer.get().toByteBuffer(value);
+
+		// FNV-1a followed by a murmur3 style finalizer to spread the bits
+
+		long h = 0xcbf29ce484222325L;
+		while (bytes.hasRemaining()) {
+			h ^= bytes.get() & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * ColumnStatistics holds the statistics for one container index. Both
+	 * sketches allow for deletes, since every update deletes a value as well
+	 * as adding one.
+	 *
+	 * The sample is kept by random pairing: a delete that hits the sample
+	 * shrinks it, and each later insert is paired with an uncompensated
+	 * delete, joining the sample with the probability that delete was from
+	 * it, so the sample stays uniform rather than filling with recent writes.
+	 *
+	 * The distinct value sketch holds every distinct hash up to a bound,
+	 * counting the entries behind each so a hash is only dropped when the
+	 * last entry with that value is deleted. The bound only ever comes down,
+	 * to the largest hash kept when the sketch overflows, so the hashes freed
+	 * by deletes aren't refilled by larger ones.
+	 */
+	public static class ColumnStatistics {
+		private final int sampleSize;
+		private final Random random = new Random();
+		private final List<Object[]> sample = new ArrayList<Object[]>();
+		private long sampleDeletions = 0;
+		private long otherDeletions = 0;
+		private final TreeMap<Long, Integer> minHashes = new TreeMap<Long, Integer>();
+		private boolean saturated = false;
+		private long hashBound = Long.MAX_VALUE;
+		private long entryCount = 0;
+		private boolean complete = false;
+		private long sampledAt = 0;
+
+		ColumnStatistics(int sampleSize) {
+			this.sampleSize = sampleSize;
+		}
+
+		synchronized void add(int valueCode, Object value) {
+			entryCount++;
+
+			// Reservoir sample of the indexed values, with random pairing
+			// of inserts to the deletes since the sample was last full
+
+			Object[] v = new Object[] { valueCode, value };
+			long deletions = sampleDeletions + otherDeletions;
+			if (deletions > 0) {
+				if (random.nextDouble() * deletions < sampleDeletions) {
+					sample.add(v);
+					sampleDeletions--;
+				} else {
+					otherDeletions--;
+				}
+			} else if (sample.size() < sampleSize) {
+				sample.add(v);
+			} else {
+				long i = (long) (random.nextDouble() * entryCount);
+				if (i < sampleSize) {
+					sample.set((int) i, v);
+				}
+			}
+
+			// K minimum values sketch for the distinct value estimate
+
+			long h = hash64(value) ^ valueCode;
+			Integer entries = minHashes.get(h);
+			if (entries != null) {
+				minHashes.put(h, entries + 1);
+			} else if (h <= hashBound) {
+				minHashes.put(h, 1);
+				if (minHashes.size() > sampleSize) {
+					minHashes.pollLastEntry();
+					hashBound = minHashes.lastKey();
+					saturated = true;
+				}
+			}
+		}
+
+		synchronized void remove(int valueCode, Object value) {
+			if (entryCount > 0) {
+				entryCount--;
+			}
+
+			boolean sampled = false;
+			for (int i = 0; i < sample.size(); i++) {
+				Object[] v = sample.get(i);
+				if (((Integer) v[0] == valueCode)
+						&& (compareIndexableValues(v[1], value) == 0)) {
+					sample.remove(i);
+					sampled = true;
+					break;
+				}
+			}
+			if (sampled) {
+				sampleDeletions++;
+			} else {
+				otherDeletions++;
+			}
+
+			long h = hash64(value) ^ valueCode;
+			Integer entries = minHashes.get(h);
+			if (entries != null) {
+				if (entries > 1) {
+					minHashes.put(h, entries - 1);
+				} else {
+					minHashes.remove(h);
+				}
+			}
+		}
+
+		/**
+		 * @return the approximate number of entries in the index
+		 */
+		public synchronized long getEntryCount() {
+			return entryCount;
+		}
+
+		/**
+		 * @return whether the entry count was taken from a complete read of
+		 *         the index row
+		 */
+		public synchronized boolean isComplete() {
+			return complete;
+		}
+
+		/**
+		 * @return when the index was last sampled, or 0 if the statistics
+		 *         come from the write path only
+		 */
+		public synchronized long getSampledAt() {
+			return sampledAt;
+		}
+
+		/**
+		 * @return the approximate number of distinct values in the index
+		 */
+		public synchronized long getDistinctValues() {
+			if (!saturated || minHashes.isEmpty()) {
+				return minHashes.size();
+			}
+
+			// Map the bound from the signed range into [0, 1). While the
+			// bound's own hash is kept it's the kth smallest hash, otherwise
+			// the sketch is just the hashes that fall below it
+
+			double bound = (((double) hashBound) - Long.MIN_VALUE)
+					/ Math.pow(2, 64);
+			int k = minHashes.size();
+			long estimate = (long) ((minHashes.containsKey(hashBound) ? k - 1
+					: k) / bound);
+			return Math.min(entryCount, Math.max(k, estimate));
+		}
+
+		/**
+		 * Estimate how many index entries fall in a value range.
+		 *
+		 * @param startValue
+		 *            the start value (inclusive), or null
+		 * @param endValue
+		 *            the end value, or null
+		 * @param inclusive
+		 *            whether the end value is inclusive
+		 * @return the estimated number of matching entries
+		 */
+		public synchronized long estimateMatches(Object startValue,
+				Object endValue, boolean inclusive) {
+			if (sample.isEmpty()) {
+				return 0;
+			}
+
+			int matches = 0;
+			for (Object[] v : sample) {
+				if (inRange((Integer) v[0], v[1], startValue, endValue,
+						inclusive)) {
+					matches++;
+				}
+			}
+
+			boolean equality = (startValue != null) && inclusive
+					&& startValue.equals(endValue);
+			if (equality && (matches == 0)) {
+
+				// Values too rare to show up in the sample, assume the
+				// average frequency
+
+				return Math.max(1,
+						entryCount / Math.max(1, getDistinctValues()));
+			}
+			return (long) Math.ceil((double) matches * entryCount
+					/ sample.size());
+		}
+	}
+
+	/**
+	 * Whether an indexed value falls in a search range, using the same
+	 * ordering as the Collection_Index composite.
+	 *
+	 * @param valueCode
+	 * @param value
+	 *            the indexable value
+	 * @param startValue
+	 *            the start value (inclusive), or null
+	 * @param endValue
+	 *            the end value, or null
+	 * @param inclusive
+	 *            whether the end value is inclusive
+	 * @return true if the value is in the range
+	 */
+	static boolean inRange(int valueCode, Object value, Object startValue,
+			Object endValue, boolean inclusive) {
+		if (startValue != null) {
+			int c = valueCode - getIndexableValueCode(startValue);
+			if (c == 0) {
+				c = compareIndexableValues(value, getIndexableValue(startValue));
+			}
+			if (c < 0) {
+				return false;
+			}
+		}
+		if (endValue != null) {
+			int c = valueCode - getIndexableValueCode(endValue);
+			if (c == 0) {
+				c = compareIndexableValues(value, getIndexableValue(endValue));
+			}
+			if ((c > 0) || ((c == 0) && !inclusive)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -22,15 +22,34 @@ package indexedcollections;
  */
 
 import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createColumnQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createMultigetSliceQuery;
 import static me.prettyprint.hector.api.factory.HFactory.createMutator;
 import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+import indexedcollections.MembershipFilters.BloomFilter;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
 import me.prettyprint.cassandra.serializers.BytesArraySerializer;
@@ -47,8 +66,14 @@ import me.prettyprint.hector.api.beans.AbstractComposite.Component;
 import me.prettyprint.hector.api.beans.ColumnSlice;
 import me.prettyprint.hector.api.beans.DynamicComposite;
 import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.exceptions.HectorException;
 import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.MutationResult;
 import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.ColumnQuery;
+import me.prettyprint.hector.api.query.MultigetSliceQuery;
+import me.prettyprint.hector.api.query.Query;
 import me.prettyprint.hector.api.query.QueryResult;
 import me.prettyprint.hector.api.query.SliceQuery;
 
@@ -78,18 +103,24 @@ public class IndexedCollections {
 	public static final String DEFAULT_COLLECTION_CF = "Collection";
 	public static final String DEFAULT_ITEM_INDEX_ENTRIES = "Item_Index_Entries";
 	public static final String DEFAULT_COLLECTION_INDEX_CF = "Collection_Index";
+	public static final String DEFAULT_COLLECTION_BY_TIME_CF = "Collection_By_Time";
 
 	public static final byte VALUE_CODE_BYTES = 0;
 	public static final byte VALUE_CODE_UTF8 = 1;
 	public static final byte VALUE_CODE_UUID = 2;
 	public static final byte VALUE_CODE_INT = 3;
+	public static final byte VALUE_CODE_GEO = 4;
 	public static final byte VALUE_CODE_MAX = 127;
 
 	public static final int DEFAULT_COUNT = 100;
+	public static final int MIN_MERGE_PAGE_SIZE = 4;
 	public static final int ALL_COUNT = 100000;
 
 	public static final CollectionCFSet defaultCFSet = new CollectionCFSet();
 
+	private static final AtomicLong unchangedIndexWrites = new AtomicLong();
+	private static final AtomicLong avoidedIndexMutations = new AtomicLong();
+
 	public static final StringSerializer se = new StringSerializer();
 	public static final ByteBufferSerializer be = new ByteBufferSerializer();
 	public static final BytesArraySerializer bae = new BytesArraySerializer();
@@ -104,7 +135,8 @@ public class IndexedCollections {
 
 	/**
 	 * Convert values to be indexed into types that can be compared by
-	 * Cassandra: UTF8Type, UUIDType, IntegerType, and BytesType
+	 * Cassandra: UTF8Type, UUIDType, IntegerType, and BytesType. GeoPoints
+	 * are indexed as their geohash string.
 	 * 
 	 * @param value
 	 * @return value transformed into String, UUID, BigInteger, or ByteBuffer
@@ -122,6 +154,10 @@ public class IndexedCollections {
 			return value;
 		}
 
+		if (value instanceof GeoPoint) {
+			return ((GeoPoint) value).getGeohash();
+		}
+
 		// For any numeric values, turn them into a long
 		// and make them BigIntegers for IntegerType
 		if (value instanceof Number) {
@@ -152,12 +188,14 @@ public class IndexedCollections {
 			return VALUE_CODE_UUID;
 		} else if (value instanceof Number) {
 			return VALUE_CODE_INT;
+		} else if (value instanceof GeoPoint) {
+			return VALUE_CODE_GEO;
 		} else {
 			return VALUE_CODE_BYTES;
 		}
 	}
 
-	private static <IK> void addIndexInsertion(Mutator<ByteBuffer> batch,
+	static <IK> void addIndexInsertion(Mutator<ByteBuffer> batch,
 			CollectionCFSet cf, String columnIndexKey, IK itemKey,
 			Object columnValue, UUID ts_uuid, long timestamp) {
 
@@ -193,7 +231,7 @@ public class IndexedCollections {
 				indexComposite, ce, timestamp);
 	}
 
-	private static <IK> void addEntriesInsertion(Mutator<ByteBuffer> batch,
+	static <IK> void addEntriesInsertion(Mutator<ByteBuffer> batch,
 			CollectionCFSet cf, IK itemKey, Object columnName,
 			Object columnValue, UUID ts_uuid, Serializer<IK> itemKeySerializer,
 			long timestamp) {
@@ -202,10 +240,33 @@ public class IndexedCollections {
 				+ columnName + ", " + ts_uuid + ") = composite(" + columnValue
 				+ ") WHERE KEY = " + itemKey);
 
+		// GeoPoints are stored as their geohash, followed by the value code so
+		// the entry can be turned back into a GeoPoint
+
+		DynamicComposite entryValue = columnValue instanceof GeoPoint ? new DynamicComposite(
+				getIndexableValue(columnValue), getIndexableValueCode(columnValue))
+				: new DynamicComposite(columnValue);
+
 		batch.addInsertion(itemKeySerializer.toByteBuffer(itemKey), cf
 				.getEntries(), HFactory.createColumn(new DynamicComposite(
-				columnName, ts_uuid), new DynamicComposite(columnValue),
-				timestamp, ce, ce));
+				columnName, ts_uuid), entryValue, timestamp, ce, ce));
+	}
+
+	/**
+	 * Reads back the column value stored in an Item_Index_Entries entry.
+	 * 
+	 * @param entryValue
+	 *            the entry column's value
+	 * @return the column value, in a form that getIndexableValue and
+	 *         getIndexableValueCode map to the same index entry
+	 */
+	static Object getEntryValue(DynamicComposite entryValue) {
+		Object value = entryValue.get(0);
+		if ((entryValue.size() > 1)
+				&& (getValueCode(entryValue.get(1)) == VALUE_CODE_GEO)) {
+			return GeoPoint.fromGeohash((String) value);
+		}
+		return value;
 	}
 
 	private static <IK> void addEntriesDeletion(Mutator<ByteBuffer> batch,
@@ -221,6 +282,29 @@ public class IndexedCollections {
 
 	}
 
+	/**
+	 * The first possible Item_Index_Entries column name for the specified item
+	 * column.
+	 * 
+	 * @param columnName
+	 * @return composite slice start
+	 */
+	static DynamicComposite getEntriesRangeStart(Object columnName) {
+		return new DynamicComposite(columnName, new UUID(0, 0));
+	}
+
+	/**
+	 * The last possible Item_Index_Entries column name for the specified item
+	 * column.
+	 * 
+	 * @param columnName
+	 * @return composite slice finish
+	 */
+	static DynamicComposite getEntriesRangeFinish(Object columnName) {
+		return new DynamicComposite(columnName, new UUID(Long.MAX_VALUE
+				| Long.MIN_VALUE, Long.MAX_VALUE | Long.MIN_VALUE));
+	}
+
 	/**
 	 * Sets the item column value for an item contained in a set of collections.
 	 * 
@@ -258,30 +342,178 @@ public class IndexedCollections {
 			Set<ContainerCollection<CK>> containers, CollectionCFSet cf,
 			Serializer<IK> itemKeySerializer, Serializer<N> nameSerializer,
 			Serializer<V> valueSerializer, Serializer<CK> containerKeySerializer) {
+		setItemColumn(ko, itemKey, columnName, columnValue, containers, cf,
+				itemKeySerializer, nameSerializer, valueSerializer,
+				containerKeySerializer, null);
+	}
+
+	/**
+	 * Sets the item column value for an item contained in a set of
+	 * collections, using the specified operation policy for the previous
+	 * entries read and the batch write.
+	 * 
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <IK>
+	 *            the item's key type
+	 * @param <N>
+	 *            the item's column name type
+	 * @param <V>
+	 *            the item's column value type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param itemKey
+	 *            the item row key
+	 * @param columnName
+	 *            the name of the column to set
+	 * @param columnValue
+	 *            the value to set the column to
+	 * @param containers
+	 *            the set of containers the item is in
+	 * @param cf
+	 *            the column families to use
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @param nameSerializer
+	 *            the column name serializer
+	 * @param valueSerializer
+	 *            the column value serializer
+	 * @param containerKeySerializer
+	 *            the container key serializer
+	 * @param policy
+	 *            the operation policy, or null to use the keyspace defaults
+	 */
+	public static <CK, IK, N, V> void setItemColumn(Keyspace ko, IK itemKey,
+			N columnName, V columnValue,
+			Set<ContainerCollection<CK>> containers, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer, Serializer<N> nameSerializer,
+			Serializer<V> valueSerializer,
+			Serializer<CK> containerKeySerializer, OperationPolicy policy) {
 
 		logger.info("SET " + columnName + " = '" + columnValue + "' FOR ITEM "
 				+ itemKey);
 
 		long timestamp = HFactory.createClock();
-		Mutator<ByteBuffer> batch = createMutator(ko, be);
+		Mutator<ByteBuffer> batch = createMutator(
+				policy != null ? policy.getWriteKeyspace(ko) : ko, be);
 		UUID ts_uuid = newTimeUUID();
 
 		// Get all know previous index entries for this item's
 		// indexed column from the item's index entry list
 
-		SliceQuery<IK, DynamicComposite, DynamicComposite> q = createSliceQuery(
-				ko, itemKeySerializer, ce, ce);
-		q.setColumnFamily(cf.getEntries());
-		q.setKey(itemKey);
-		q.setRange(new DynamicComposite(columnName, new UUID(0, 0)),
-				new DynamicComposite(columnName, new UUID(Long.MAX_VALUE
-						| Long.MIN_VALUE, Long.MAX_VALUE | Long.MIN_VALUE)),
-				false, ALL_COUNT);
-		QueryResult<ColumnSlice<DynamicComposite, DynamicComposite>> r = q
-				.execute();
-		ColumnSlice<DynamicComposite, DynamicComposite> slice = r.get();
-		List<HColumn<DynamicComposite, DynamicComposite>> entries = slice
-				.getColumns();
+		List<HColumn<DynamicComposite, DynamicComposite>> entries = getPreviousEntries(
+				ko, itemKey, columnName, cf, itemKeySerializer, policy);
+
+		// A column that isn't indexed in any of the item's collections is
+		// only stored in the item
+
+		Set<ContainerCollection<CK>> indexed = getIndexedContainers(
+				columnName, containers, cf);
+		if (indexed.isEmpty() && (cf.getIndexDefinitions() != null)) {
+			addStaleEntryDeletions(batch, itemKey, columnName, containers,
+					entries, timestamp, cf, itemKeySerializer);
+			addItemValueMutation(batch, itemKey, columnName, columnValue,
+					timestamp, cf, itemKeySerializer, nameSerializer,
+					valueSerializer);
+			try {
+				execute(batch, policy);
+			} finally {
+				if (!entries.isEmpty()) {
+					invalidateCachedRows(itemKey, columnName, containers, cf,
+							itemKeySerializer);
+				}
+			}
+			return;
+		}
+
+		// The previous entries are deleted from the containers that
+		// dropped the index too, but the new entry only goes in the
+		// indexed ones
+
+		addUnindexedEntryDeletions(batch, itemKey, columnName, containers,
+				indexed, entries, timestamp, cf);
+		entries = addItemColumnMutations(batch, itemKey, columnName,
+				columnValue, indexed, entries, ts_uuid, timestamp, cf,
+				itemKeySerializer, nameSerializer, valueSerializer);
+
+		try {
+			execute(batch, policy);
+		} finally {
+			invalidateCachedRows(itemKey, columnName, containers, cf,
+					itemKeySerializer);
+		}
+
+		if (entries != null) {
+			afterItemColumnUpdate(itemKey, columnName, columnValue, indexed,
+					entries, ts_uuid, timestamp, cf);
+		}
+
+	}
+
+	/**
+	 * Adds the mutations for setting an item column to a batch, given the
+	 * item's previous Item_Index_Entries for the column. A previous entry with
+	 * the same ts_uuid as the new one is an earlier attempt at the same update
+	 * and is left alone, so replaying an update is idempotent.
+	 * 
+	 * If the column's only previous entry has the same indexable value as the
+	 * new one, the entries aren't rewritten. The existing index entries are
+	 * re-asserted with their original ts_uuid and clock, in case the item has
+	 * been added to containers since, which overwrites them without leaving
+	 * tombstones, and only the item column is updated. The entry is still
+	 * returned so the filters, statistics and listeners see the re-asserted
+	 * index entries.
+	 * 
+	 * @return the previous entries that are replaced by the batch
+	 */
+	static <CK, IK, N, V> List<HColumn<DynamicComposite, DynamicComposite>> addItemColumnMutations(
+			Mutator<ByteBuffer> batch, IK itemKey, N columnName,
+			V columnValue, Set<ContainerCollection<CK>> containers,
+			List<HColumn<DynamicComposite, DynamicComposite>> entries,
+			UUID ts_uuid, long timestamp, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer, Serializer<N> nameSerializer,
+			Serializer<V> valueSerializer) {
+
+		List<HColumn<DynamicComposite, DynamicComposite>> previous = new ArrayList<HColumn<DynamicComposite, DynamicComposite>>(
+				entries.size());
+		for (HColumn<DynamicComposite, DynamicComposite> entry : entries) {
+			if (!ts_uuid.equals(entry.getName().get(1, ue))) {
+				previous.add(entry);
+			}
+		}
+		entries = previous;
+
+		if ((columnValue != null)
+				&& (entries.size() == 1)
+				&& isSameIndexableValue(getEntryValue(entries.get(0)
+						.getValue()), columnValue)) {
+			HColumn<DynamicComposite, DynamicComposite> entry = entries.get(0);
+			UUID prev_timestamp = entry.getName().get(1, ue);
+
+			logger.debug("Value of " + columnName + " unchanged in index");
+
+			for (ContainerCollection<CK> container : containers) {
+				addIndexInsertion(batch, cf, container.getKey() + ":"
+						+ columnName.toString(), itemKey, columnValue,
+						prev_timestamp, entry.getClock());
+			}
+			addItemValueMutation(batch, itemKey, columnName, columnValue,
+					timestamp, cf, itemKeySerializer, nameSerializer,
+					valueSerializer);
+
+			IndexChangeLog changeLog = cf.getChangeLog();
+			if (changeLog != null) {
+				changeLog.addInsertion(batch, newChangeEvent(itemKey,
+						columnName, columnValue, containers, entries, ts_uuid,
+						timestamp));
+			}
+
+			// Saved the entry delete and insert and the index deletes
+
+			unchangedIndexWrites.incrementAndGet();
+			avoidedIndexMutations.addAndGet(2 + containers.size());
+			return entries;
+		}
 
 		logger.info(entries.size() + " previous values for " + columnName
 				+ " found in index for removal");
@@ -290,7 +522,7 @@ public class IndexedCollections {
 
 		for (HColumn<DynamicComposite, DynamicComposite> entry : entries) {
 			UUID prev_timestamp = entry.getName().get(1, ue);
-			Object prev_value = entry.getValue().get(0);
+			Object prev_value = getEntryValue(entry.getValue());
 
 			addEntriesDeletion(batch, cf, itemKey, entry.getName(), prev_value,
 					prev_timestamp, itemKeySerializer, timestamp);
@@ -313,7 +545,7 @@ public class IndexedCollections {
 
 			for (HColumn<DynamicComposite, DynamicComposite> entry : entries) {
 				UUID prev_timestamp = entry.getName().get(1, ue);
-				Object prev_value = entry.getValue().get(0);
+				Object prev_value = getEntryValue(entry.getValue());
 
 				addIndexDeletion(batch, cf, columnIndexKey, itemKey,
 						prev_value, prev_timestamp, timestamp);
@@ -329,6 +561,82 @@ public class IndexedCollections {
 
 		}
 
+		addItemValueMutation(batch, itemKey, columnName, columnValue,
+				timestamp, cf, itemKeySerializer, nameSerializer,
+				valueSerializer);
+
+		// Log the change in the same batch so it's only logged if applied
+
+		IndexChangeLog changeLog = cf.getChangeLog();
+		if (changeLog != null) {
+			changeLog.addInsertion(batch, newChangeEvent(itemKey, columnName,
+					columnValue, containers, entries, ts_uuid, timestamp));
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Adds the deletions of an item column's previous entries to a batch, for
+	 * a column that isn't indexed in any of the item's collections any more.
+	 * The entries are removed from the Item_Index_Entries and from the
+	 * Collection_Index rows of all of the item's containers, so neither a
+	 * backfill nor a re-declared index picks up the stale value.
+	 */
+	static <CK, IK, N> void addStaleEntryDeletions(Mutator<ByteBuffer> batch,
+			IK itemKey, N columnName, Set<ContainerCollection<CK>> containers,
+			List<HColumn<DynamicComposite, DynamicComposite>> entries,
+			long timestamp, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer) {
+
+		for (HColumn<DynamicComposite, DynamicComposite> entry : entries) {
+			UUID prev_timestamp = entry.getName().get(1, ue);
+			Object prev_value = getEntryValue(entry.getValue());
+
+			addEntriesDeletion(batch, cf, itemKey, entry.getName(), prev_value,
+					prev_timestamp, itemKeySerializer, timestamp);
+			for (ContainerCollection<CK> container : containers) {
+				addIndexDeletion(batch, cf, container.getKey() + ":"
+						+ columnName.toString(), itemKey, prev_value,
+						prev_timestamp, timestamp);
+			}
+		}
+	}
+
+	/**
+	 * Adds the deletions of an item column's previous entries from the
+	 * Collection_Index rows of the item's containers the column isn't indexed
+	 * in any more. The entries are left in the Item_Index_Entries, since the
+	 * column is still indexed in the other containers.
+	 */
+	static <CK, IK, N> void addUnindexedEntryDeletions(
+			Mutator<ByteBuffer> batch, IK itemKey, N columnName,
+			Set<ContainerCollection<CK>> containers,
+			Set<ContainerCollection<CK>> indexed,
+			List<HColumn<DynamicComposite, DynamicComposite>> entries,
+			long timestamp, CollectionCFSet cf) {
+
+		for (ContainerCollection<CK> container : containers) {
+			if (indexed.contains(container)) {
+				continue;
+			}
+			for (HColumn<DynamicComposite, DynamicComposite> entry : entries) {
+				addIndexDeletion(batch, cf, container.getKey() + ":"
+						+ columnName.toString(), itemKey,
+						getEntryValue(entry.getValue()),
+						entry.getName().get(1, ue), timestamp);
+			}
+		}
+	}
+
+	/**
+	 * Adds the mutation that stores an item column value to a batch.
+	 */
+	static <IK, N, V> void addItemValueMutation(Mutator<ByteBuffer> batch,
+			IK itemKey, N columnName, V columnValue, long timestamp,
+			CollectionCFSet cf, Serializer<IK> itemKeySerializer,
+			Serializer<N> nameSerializer, Serializer<V> valueSerializer) {
+
 		// Store the new column value into the item
 		// If new value is null, delete the value instead
 
@@ -345,213 +653,1496 @@ public class IndexedCollections {
 			batch.addDeletion(itemKeySerializer.toByteBuffer(itemKey),
 					cf.getItem(), columnName, nameSerializer, timestamp);
 		}
+	}
 
-		batch.execute();
-
+	/**
+	 * @return the containers whose collection indexes the column, which is
+	 *         all of them if the CollectionCFSet has no index definitions
+	 */
+	static <CK, N> Set<ContainerCollection<CK>> getIndexedContainers(
+			N columnName, Set<ContainerCollection<CK>> containers,
+			CollectionCFSet cf) {
+		IndexDefinitions definitions = cf.getIndexDefinitions();
+		if (definitions == null) {
+			return containers;
+		}
+		Set<ContainerCollection<CK>> indexed = new LinkedHashSet<ContainerCollection<CK>>();
+		for (ContainerCollection<CK> container : containers) {
+			if (definitions.isIndexed(container.getCollectionName(),
+					columnName)) {
+				indexed.add(container);
+			}
+		}
+		return indexed;
 	}
 
 	/**
-	 * Search container.
+	 * Adds elements to a set-valued item column. Each element gets its own
+	 * Item_Index_Entries and Collection_Index entries, so a search for any
+	 * element finds the item. Only elements that aren't already in the set are
+	 * written.
+	 * 
+	 * The elements of a set-valued column are kept in the item's index
+	 * entries rather than the Item column family and are read back with
+	 * getItemColumnValues. Setting the column with setItemColumn replaces the
+	 * whole set.
 	 * 
-	 * @param <IK>
-	 *            the item's key type
 	 * @param <CK>
 	 *            the container's key type
+	 * @param <IK>
+	 *            the item's key type
 	 * @param <N>
 	 *            the item's column name type
 	 * @param ko
 	 *            the keyspace operator
-	 * @param container
-	 *            the ContainerCollection (container key and collection name)
+	 * @param itemKey
+	 *            the item row key
 	 * @param columnName
-	 *            the item's column name
-	 * @param searchValue
-	 *            the exact value for the specified column
-	 * @param startResult
-	 *            the start result row key
-	 * @param count
-	 *            the number of row keys to return
-	 * @param reversed
-	 *            search in reverse order
+	 *            the name of the set-valued column
+	 * @param values
+	 *            the elements to add
+	 * @param containers
+	 *            the set of containers the item is in
 	 * @param cf
-	 *            the column family set
-	 * @param containerKeySerializer
-	 *            the container key serializer
+	 *            the column families to use
 	 * @param itemKeySerializer
 	 *            the item key serializer
-	 * @param nameSerializer
-	 *            the column name serializer
-	 * @return the list of row keys for items who's column value matches
 	 */
-	public static <IK, CK, N> List<IK> searchContainer(Keyspace ko,
-			ContainerCollection<CK> container, N columnName,
-			Object searchValue, IK startResult, int count, boolean reversed,
-			CollectionCFSet cf, Serializer<CK> containerKeySerializer,
-			Serializer<IK> itemKeySerializer, Serializer<N> nameSerializer) {
-
-		return searchContainer(ko, container, columnName, searchValue,
-				searchValue, true, startResult, count, reversed, cf,
-				containerKeySerializer, itemKeySerializer, nameSerializer);
+	public static <CK, IK, N> void addItemColumnValues(Keyspace ko,
+			IK itemKey, N columnName, Set<?> values,
+			Set<ContainerCollection<CK>> containers, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer) {
+		addItemColumnValues(ko, itemKey, columnName, values, containers, cf,
+				itemKeySerializer, null);
 	}
 
 	/**
-	 * Search container.
+	 * Adds elements to a set-valued item column, using the specified
+	 * operation policy for the previous entries read and the batch write.
 	 * 
-	 * @param <IK>
-	 *            the item's key type
 	 * @param <CK>
 	 *            the container's key type
+	 * @param <IK>
+	 *            the item's key type
 	 * @param <N>
 	 *            the item's column name type
 	 * @param ko
 	 *            the keyspace operator
-	 * @param container
-	 *            the ContainerCollection (container key and collection name)
+	 * @param itemKey
+	 *            the item row key
 	 * @param columnName
-	 *            the item's column name
-	 * @param startValue
-	 *            the start value for the specified column (inclusive)
-	 * @param endValue
-	 *            the end value for the specified column
-	 * @param inclusive
-	 *            whether end value for the specified column is inclusive
-	 * @param startResult
-	 *            the start result row key
-	 * @param count
-	 *            the number of row keys to return
-	 * @param reversed
-	 *            search in reverse order
+	 *            the name of the set-valued column
+	 * @param values
+	 *            the elements to add
+	 * @param containers
+	 *            the set of containers the item is in
 	 * @param cf
-	 *            the column family set
-	 * @param containerKeySerializer
-	 *            the container key serializer
+	 *            the column families to use
 	 * @param itemKeySerializer
 	 *            the item key serializer
-	 * @param nameSerializer
-	 *            the column name serializer
-	 * @return the list of row keys for items who's column value matches
+	 * @param policy
+	 *            the operation policy, or null to use the keyspace defaults
 	 */
-	@SuppressWarnings("unchecked")
-	public static <IK, CK, N> List<IK> searchContainer(Keyspace ko,
-			ContainerCollection<CK> container, N columnName, Object startValue,
-			Object endValue, boolean inclusive, IK startResult, int count,
-			boolean reversed, CollectionCFSet cf,
-			Serializer<CK> containerKeySerializer,
-			Serializer<IK> itemKeySerializer, Serializer<N> nameSerializer) {
-		List<IK> items = new ArrayList<IK>();
-
-		String columnIndexKey = container.getKey() + ":"
-				+ columnName.toString();
-
-		if (count == 0) {
-			count = DEFAULT_COUNT;
-		}
-
-		SliceQuery<ByteBuffer, DynamicComposite, ByteBuffer> q = createSliceQuery(
-				ko, be, ce, be);
-		q.setColumnFamily(cf.getIndex());
-		q.setKey(se.toByteBuffer(columnIndexKey));
-
-		DynamicComposite start = null;
-
-		if (startValue == null) {
-			if (startResult != null) {
-				start = new DynamicComposite(VALUE_CODE_BYTES, new byte[0],
-						startResult);
-			} else {
-				start = new DynamicComposite(VALUE_CODE_BYTES, new byte[0]);
-			}
-		} else if (startResult != null) {
-			start = new DynamicComposite(getIndexableValueCode(startValue),
-					getIndexableValue(startValue), startResult);
-		} else {
-			start = new DynamicComposite(getIndexableValueCode(startValue),
-					getIndexableValue(startValue));
-		}
-
-		DynamicComposite finish = null;
-
-		if (endValue != null) {
-			finish = new DynamicComposite(getIndexableValueCode(endValue),
-					getIndexableValue(endValue));
-			if (inclusive) {
-				@SuppressWarnings("rawtypes")
-				Component c = finish.getComponent(1);
-				finish.setComponent(1, c.getValue(), c.getSerializer(),
-						c.getComparator(),
-						AbstractComposite.ComponentEquality.GREATER_THAN_EQUAL);
-			}
-		}
-
-		q.setRange(start, finish, reversed, count);
-		QueryResult<ColumnSlice<DynamicComposite, ByteBuffer>> r = q.execute();
-		ColumnSlice<DynamicComposite, ByteBuffer> slice = r.get();
-		List<HColumn<DynamicComposite, ByteBuffer>> results = slice
-				.getColumns();
-
-		if (results != null) {
-			for (HColumn<DynamicComposite, ByteBuffer> result : results) {
-				Object value = result.getName().get(1);
-				logger.info("Value found: " + value);
-
-				IK key = result.getName().get(2, itemKeySerializer);
-				if (key != null) {
-					items.add(key);
-				}
-			}
-		}
-
-		return items;
+	public static <CK, IK, N> void addItemColumnValues(Keyspace ko,
+			IK itemKey, N columnName, Set<?> values,
+			Set<ContainerCollection<CK>> containers, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer, OperationPolicy policy) {
+		updateItemColumnValues(ko, itemKey, columnName, values,
+				Collections.emptySet(), containers, cf, itemKeySerializer,
+				policy);
 	}
 
 	/**
-	 * Adds the item to collection.
+	 * Removes elements from a set-valued item column, deleting only their
+	 * index entries.
 	 * 
 	 * @param <CK>
 	 *            the container's key type
 	 * @param <IK>
 	 *            the item's key type
+	 * @param <N>
+	 *            the item's column name type
 	 * @param ko
 	 *            the keyspace operator
-	 * @param container
+	 * @param itemKey
+	 *            the item row key
+	 * @param columnName
+	 *            the name of the set-valued column
+	 * @param values
+	 *            the elements to remove
+	 * @param containers
+	 *            the set of containers the item is in
+	 * @param cf
+	 *            the column families to use
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 */
+	public static <CK, IK, N> void removeItemColumnValues(Keyspace ko,
+			IK itemKey, N columnName, Set<?> values,
+			Set<ContainerCollection<CK>> containers, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer) {
+		removeItemColumnValues(ko, itemKey, columnName, values, containers,
+				cf, itemKeySerializer, null);
+	}
+
+	/**
+	 * Removes elements from a set-valued item column, using the specified
+	 * operation policy for the previous entries read and the batch write.
+	 * 
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <IK>
+	 *            the item's key type
+	 * @param <N>
+	 *            the item's column name type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param itemKey
+	 *            the item row key
+	 * @param columnName
+	 *            the name of the set-valued column
+	 * @param values
+	 *            the elements to remove
+	 * @param containers
+	 *            the set of containers the item is in
+	 * @param cf
+	 *            the column families to use
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @param policy
+	 *            the operation policy, or null to use the keyspace defaults
+	 */
+	public static <CK, IK, N> void removeItemColumnValues(Keyspace ko,
+			IK itemKey, N columnName, Set<?> values,
+			Set<ContainerCollection<CK>> containers, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer, OperationPolicy policy) {
+		updateItemColumnValues(ko, itemKey, columnName,
+				Collections.emptySet(), values, containers, cf,
+				itemKeySerializer, policy);
+	}
+
+	/**
+	 * Gets the values of an item column from the item's index entries, which
+	 * for a set-valued column are its elements.
+	 * 
+	 * @param <IK>
+	 *            the item's key type
+	 * @param <N>
+	 *            the item's column name type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param itemKey
+	 *            the item row key
+	 * @param columnName
+	 *            the column name
+	 * @param cf
+	 *            the column families to use
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @return the values, in the order they were set
+	 */
+	public static <IK, N> List<Object> getItemColumnValues(Keyspace ko,
+			IK itemKey, N columnName, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer) {
+		List<Object> values = new ArrayList<Object>();
+		for (HColumn<DynamicComposite, DynamicComposite> entry : getEntries(
+				ko, itemKey, columnName, cf, itemKeySerializer)) {
+			Object value = getEntryValue(entry.getValue());
+			if (indexOfValue(values, value) < 0) {
+				values.add(value);
+			}
+		}
+		return values;
+	}
+
+	private static <CK, IK, N> void updateItemColumnValues(Keyspace ko,
+			IK itemKey, N columnName, Set<?> added, Set<?> removed,
+			Set<ContainerCollection<CK>> containers, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer, OperationPolicy policy) {
+
+		logger.info("ADD " + added + " REMOVE " + removed + " IN "
+				+ columnName + " FOR ITEM " + itemKey);
+
+		long timestamp = HFactory.createClock();
+		Mutator<ByteBuffer> batch = createMutator(
+				policy != null ? policy.getWriteKeyspace(ko) : ko, be);
+		Set<ContainerCollection<CK>> indexed = getIndexedContainers(
+				columnName, containers, cf);
+
+		List<HColumn<DynamicComposite, DynamicComposite>> entries = getPreviousEntries(
+				ko, itemKey, columnName, cf, itemKeySerializer, policy);
+		List<Object> current = new ArrayList<Object>();
+		for (HColumn<DynamicComposite, DynamicComposite> entry : entries) {
+			current.add(getEntryValue(entry.getValue()));
+		}
+
+		// Delete every entry of a removed element, including any duplicates,
+		// from all the containers, including any that dropped the index
+
+		List<HColumn<DynamicComposite, DynamicComposite>> deleted = new ArrayList<HColumn<DynamicComposite, DynamicComposite>>();
+		for (int i = 0; i < entries.size(); i++) {
+			if (indexOfValue(removed, current.get(i)) < 0) {
+				continue;
+			}
+			HColumn<DynamicComposite, DynamicComposite> entry = entries.get(i);
+			UUID prev_timestamp = entry.getName().get(1, ue);
+			addEntriesDeletion(batch, cf, itemKey, entry.getName(),
+					current.get(i), prev_timestamp, itemKeySerializer,
+					timestamp);
+			for (ContainerCollection<CK> container : containers) {
+				addIndexDeletion(batch, cf, container.getKey() + ":"
+						+ columnName.toString(), itemKey, current.get(i),
+						prev_timestamp, timestamp);
+			}
+			deleted.add(entry);
+		}
+
+		// Add an entry for each new element
+
+		List<Object> inserted = new ArrayList<Object>();
+		List<UUID> insertedUUIDs = new ArrayList<UUID>();
+		for (Object value : added) {
+			if ((value == null) || (indexOfValue(current, value) >= 0)
+					|| (indexOfValue(inserted, value) >= 0)) {
+				continue;
+			}
+			UUID ts_uuid = newTimeUUID();
+			addEntriesInsertion(batch, cf, itemKey, columnName, value,
+					ts_uuid, itemKeySerializer, timestamp);
+			for (ContainerCollection<CK> container : indexed) {
+				addIndexInsertion(batch, cf, container.getKey() + ":"
+						+ columnName.toString(), itemKey, value, ts_uuid,
+						timestamp);
+			}
+			inserted.add(value);
+			insertedUUIDs.add(ts_uuid);
+		}
+
+		if (deleted.isEmpty() && inserted.isEmpty()) {
+			return;
+		}
+
+		IndexChangeLog changeLog = cf.getChangeLog();
+		List<HColumn<DynamicComposite, DynamicComposite>> none = Collections
+				.emptyList();
+		if (changeLog != null) {
+			if (!deleted.isEmpty()) {
+				changeLog.addInsertion(batch, newChangeEvent(itemKey,
+						columnName, null, indexed, deleted, newTimeUUID(),
+						timestamp));
+			}
+			for (int i = 0; i < inserted.size(); i++) {
+				changeLog.addInsertion(batch, newChangeEvent(itemKey,
+						columnName, inserted.get(i), indexed, none,
+						insertedUUIDs.get(i), timestamp));
+			}
+		}
+
+		try {
+			execute(batch, policy);
+		} finally {
+			invalidateCachedRows(itemKey, columnName, containers, cf,
+					itemKeySerializer);
+		}
+
+		if (!deleted.isEmpty()) {
+			afterItemColumnUpdate(itemKey, columnName, null, indexed, deleted,
+					newTimeUUID(), timestamp, cf);
+		}
+		for (int i = 0; i < inserted.size(); i++) {
+			afterItemColumnUpdate(itemKey, columnName, inserted.get(i),
+					indexed, none, insertedUUIDs.get(i), timestamp, cf);
+		}
+	}
+
+	private static <IK, N> List<HColumn<DynamicComposite, DynamicComposite>> getEntries(
+			Keyspace ko, IK itemKey, N columnName, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer) {
+		return getSlice(ko, cf.getEntries(), itemKey,
+				getEntriesRangeStart(columnName),
+				getEntriesRangeFinish(columnName), false, ALL_COUNT, cf,
+				itemKeySerializer, ce, ce, null);
+	}
+
+	/**
+	 * Reads an item's entries for a column before writing it. The read always
+	 * goes to Cassandra rather than the index cache, since a cached slice
+	 * could be missing a write from another node, whose entries would then
+	 * never be deleted.
+	 */
+	private static <IK, N> List<HColumn<DynamicComposite, DynamicComposite>> getPreviousEntries(
+			Keyspace ko, IK itemKey, N columnName, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer, OperationPolicy policy) {
+		SliceQuery<IK, DynamicComposite, DynamicComposite> q = createSliceQuery(
+				policy != null ? policy.getReadKeyspace(ko) : ko,
+				itemKeySerializer, ce, ce);
+		q.setColumnFamily(cf.getEntries());
+		q.setKey(itemKey);
+		q.setRange(getEntriesRangeStart(columnName),
+				getEntriesRangeFinish(columnName), false, ALL_COUNT);
+		return execute(q, policy).get().getColumns();
+	}
+
+	/**
+	 * Reads a slice, from the CollectionCFSet's index cache if it has one.
+	 */
+	static <K, N, V> List<HColumn<N, V>> getSlice(Keyspace ko,
+			String columnFamily, K key, N start, N finish, boolean reversed,
+			int count, CollectionCFSet cf, Serializer<K> keySerializer,
+			Serializer<N> nameSerializer, Serializer<V> valueSerializer,
+			OperationPolicy policy) {
+
+		IndexCache cache = cf.getIndexCache();
+		ByteBuffer rowKey = null;
+		ByteBuffer startBytes = null;
+		ByteBuffer finishBytes = null;
+		long generation = 0;
+		if (cache != null) {
+			rowKey = keySerializer.toByteBuffer(key);
+			startBytes = start != null ? nameSerializer.toByteBuffer(start)
+					: null;
+			finishBytes = finish != null ? nameSerializer.toByteBuffer(finish)
+					: null;
+			List<HColumn<N, V>> columns = cache.get(columnFamily, rowKey,
+					startBytes, finishBytes, reversed, count, nameSerializer,
+					valueSerializer);
+			if (columns != null) {
+				return columns;
+			}
+			generation = cache.getGeneration(columnFamily, rowKey);
+		}
+
+		SliceQuery<K, N, V> q = createSliceQuery(
+				policy != null ? policy.getReadKeyspace(ko) : ko,
+				keySerializer, nameSerializer, valueSerializer);
+		q.setColumnFamily(columnFamily);
+		q.setKey(key);
+		q.setRange(start, finish, reversed, count);
+		List<HColumn<N, V>> columns = execute(q, policy).get().getColumns();
+
+		if ((cache != null) && (columns != null)) {
+			cache.put(columnFamily, rowKey, startBytes, finishBytes, reversed,
+					count, columns, nameSerializer, valueSerializer,
+					generation);
+		}
+		return columns;
+	}
+
+	/**
+	 * Drops the Item_Index_Entries and Collection_Index rows an item column
+	 * update writes from the CollectionCFSet's index cache, if it has one.
+	 */
+	static <CK, IK, N> void invalidateCachedRows(IK itemKey, N columnName,
+			Set<ContainerCollection<CK>> containers, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer) {
+		IndexCache cache = cf.getIndexCache();
+		if (cache == null) {
+			return;
+		}
+		cache.invalidateRow(cf.getEntries(),
+				itemKeySerializer.toByteBuffer(itemKey));
+		for (ContainerCollection<CK> container : containers) {
+			cache.invalidateRow(cf.getIndex(), se.toByteBuffer(container
+					.getKey() + ":" + columnName.toString()));
+		}
+	}
+
+	/**
+	 * @return the position of a value in a collection of values, comparing
+	 *         them the way the index does, or -1
+	 */
+	private static int indexOfValue(Collection<?> values,
+			Object value) {
+		int i = 0;
+		for (Object v : values) {
+			if (isSameIndexableValue(v, value)) {
+				return i;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if two values map to the same index entry value
+	 */
+	static boolean isSameIndexableValue(Object v1, Object v2) {
+		return (getIndexableValueCode(v1) == getIndexableValueCode(v2))
+				&& (compareIndexableValues(getIndexableValue(v1),
+						getIndexableValue(v2)) == 0);
+	}
+
+	/**
+	 * @return the number of setItemColumn updates that left the index
+	 *         unchanged and only wrote the item column
+	 */
+	public static long getUnchangedIndexWrites() {
+		return unchangedIndexWrites.get();
+	}
+
+	/**
+	 * @return the number of index entry mutations avoided by unchanged
+	 *         setItemColumn updates
+	 */
+	public static long getAvoidedIndexMutations() {
+		return avoidedIndexMutations.get();
+	}
+
+	/**
+	 * Updates the optional components on the CollectionCFSet and notifies the
+	 * change listeners once a setItemColumn batch has been applied.
+	 */
+	static <CK, IK, N, V> void afterItemColumnUpdate(IK itemKey, N columnName,
+			V columnValue, Set<ContainerCollection<CK>> containers,
+			List<HColumn<DynamicComposite, DynamicComposite>> entries,
+			UUID ts_uuid, long timestamp, CollectionCFSet cf) {
+
+		MembershipFilters filters = cf.getMembershipFilters();
+		if ((filters != null) && (columnValue != null)) {
+			for (ContainerCollection<CK> container : containers) {
+				filters.recordValue(container.getKey() + ":"
+						+ columnName.toString(), columnValue);
+			}
+		}
+
+		IndexStatistics statistics = cf.getStatistics();
+		if (statistics != null) {
+			for (ContainerCollection<CK> container : containers) {
+				String columnIndexKey = container.getKey() + ":"
+						+ columnName.toString();
+				for (HColumn<DynamicComposite, DynamicComposite> entry : entries) {
+					statistics.recordDelete(columnIndexKey,
+							getEntryValue(entry.getValue()));
+				}
+				if (columnValue != null) {
+					statistics.recordInsert(columnIndexKey, columnValue);
+				}
+			}
+		}
+
+		List<IndexChangeListener> listeners = cf.getChangeListeners();
+		if (!listeners.isEmpty()) {
+			IndexChangeEvent event = newChangeEvent(itemKey, columnName,
+					columnValue, containers, entries, ts_uuid, timestamp);
+			for (IndexChangeListener listener : listeners) {
+				try {
+					listener.indexChanged(event);
+				} catch (RuntimeException e) {
+					logger.error("Index change listener failed for " + event, e);
+				}
+			}
+		}
+
+	}
+
+	private static <CK> IndexChangeEvent newChangeEvent(Object itemKey,
+			Object columnName, Object columnValue,
+			Set<ContainerCollection<CK>> containers,
+			List<HColumn<DynamicComposite, DynamicComposite>> entries,
+			UUID ts_uuid, long timestamp) {
+		List<Object> oldValues = new ArrayList<Object>(entries.size());
+		for (HColumn<DynamicComposite, DynamicComposite> entry : entries) {
+			oldValues.add(getIndexableValue(getEntryValue(entry.getValue())));
+		}
+		List<String> columnIndexKeys = new ArrayList<String>(
+				containers.size());
+		for (ContainerCollection<CK> container : containers) {
+			columnIndexKeys.add(container.getKey() + ":"
+					+ columnName.toString());
+		}
+		return new IndexChangeEvent(itemKey, columnName, oldValues,
+				columnValue, columnIndexKeys, ts_uuid, timestamp);
+	}
+
+	private static <T> QueryResult<T> execute(Query<T> q,
+			OperationPolicy policy) {
+		if (policy != null) {
+			return policy.read(q);
+		}
+		return q.execute();
+	}
+
+	private static MutationResult execute(Mutator<ByteBuffer> batch,
+			OperationPolicy policy) {
+		if (policy != null) {
+			return policy.write(batch);
+		}
+		return batch.execute();
+	}
+
+	/**
+	 * Search container.
+	 * 
+	 * @param <IK>
+	 *            the item's key type
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <N>
+	 *            the item's column name type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param columnName
+	 *            the item's column name
+	 * @param searchValue
+	 *            the exact value for the specified column
+	 * @param startResult
+	 *            the start result row key
+	 * @param count
+	 *            the number of row keys to return
+	 * @param reversed
+	 *            search in reverse order
+	 * @param cf
+	 *            the column family set
+	 * @param containerKeySerializer
+	 *            the container key serializer
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @param nameSerializer
+	 *            the column name serializer
+	 * @return the list of row keys for items who's column value matches
+	 */
+	public static <IK, CK, N> List<IK> searchContainer(Keyspace ko,
+			ContainerCollection<CK> container, N columnName,
+			Object searchValue, IK startResult, int count, boolean reversed,
+			CollectionCFSet cf, Serializer<CK> containerKeySerializer,
+			Serializer<IK> itemKeySerializer, Serializer<N> nameSerializer) {
+
+		return searchContainer(ko, container, columnName, searchValue,
+				searchValue, true, startResult, count, reversed, cf,
+				containerKeySerializer, itemKeySerializer, nameSerializer);
+	}
+
+	/**
+	 * Search container.
+	 * 
+	 * @param <IK>
+	 *            the item's key type
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <N>
+	 *            the item's column name type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param columnName
+	 *            the item's column name
+	 * @param startValue
+	 *            the start value for the specified column (inclusive)
+	 * @param endValue
+	 *            the end value for the specified column
+	 * @param inclusive
+	 *            whether end value for the specified column is inclusive
+	 * @param startResult
+	 *            the start result row key
+	 * @param count
+	 *            the number of row keys to return
+	 * @param reversed
+	 *            search in reverse order
+	 * @param cf
+	 *            the column family set
+	 * @param containerKeySerializer
+	 *            the container key serializer
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @param nameSerializer
+	 *            the column name serializer
+	 * @return the list of row keys for items who's column value matches
+	 */
+	public static <IK, CK, N> List<IK> searchContainer(Keyspace ko,
+			ContainerCollection<CK> container, N columnName, Object startValue,
+			Object endValue, boolean inclusive, IK startResult, int count,
+			boolean reversed, CollectionCFSet cf,
+			Serializer<CK> containerKeySerializer,
+			Serializer<IK> itemKeySerializer, Serializer<N> nameSerializer) {
+		return searchContainer(ko, container, columnName, startValue,
+				endValue, inclusive, startResult, count, reversed, cf,
+				containerKeySerializer, itemKeySerializer, nameSerializer, null);
+	}
+
+	/**
+	 * Search container using the specified operation policy for the index
+	 * slice.
+	 * 
+	 * @param <IK>
+	 *            the item's key type
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <N>
+	 *            the item's column name type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param columnName
+	 *            the item's column name
+	 * @param startValue
+	 *            the start value for the specified column (inclusive)
+	 * @param endValue
+	 *            the end value for the specified column
+	 * @param inclusive
+	 *            whether end value for the specified column is inclusive
+	 * @param startResult
+	 *            the start result row key
+	 * @param count
+	 *            the number of row keys to return
+	 * @param reversed
+	 *            search in reverse order
+	 * @param cf
+	 *            the column family set
+	 * @param containerKeySerializer
+	 *            the container key serializer
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @param nameSerializer
+	 *            the column name serializer
+	 * @param policy
+	 *            the operation policy, or null to use the keyspace defaults
+	 * @return the list of row keys for items who's column value matches
+	 */
+	public static <IK, CK, N> List<IK> searchContainer(Keyspace ko,
+			ContainerCollection<CK> container, N columnName, Object startValue,
+			Object endValue, boolean inclusive, IK startResult, int count,
+			boolean reversed, CollectionCFSet cf,
+			Serializer<CK> containerKeySerializer,
+			Serializer<IK> itemKeySerializer, Serializer<N> nameSerializer,
+			OperationPolicy policy) {
+		List<IK> items = new ArrayList<IK>();
+
+		String columnIndexKey = container.getKey() + ":"
+				+ columnName.toString();
+
+		if (count == 0) {
+			count = DEFAULT_COUNT;
+		}
+
+		DynamicComposite start = getSearchRangeStart(startValue, startResult);
+		DynamicComposite finish = getSearchRangeFinish(endValue, inclusive);
+
+		// An item with a set-valued column can match more than once, so keep
+		// reading after the last entry until count distinct items are found
+
+		Set<IK> found = new HashSet<IK>();
+		boolean continuing = false;
+		while (items.size() < count) {
+			int limit = continuing ? Math.max(count - items.size(),
+					MIN_MERGE_PAGE_SIZE) + 1 : count;
+			List<HColumn<DynamicComposite, ByteBuffer>> results = getSlice(ko,
+					cf.getIndex(), columnIndexKey, start, finish, reversed,
+					limit, cf, se, ce, be, policy);
+			if (results == null) {
+				break;
+			}
+
+			for (HColumn<DynamicComposite, ByteBuffer> result : results) {
+				if (continuing
+						&& ce.toByteBuffer(result.getName()).equals(
+								ce.toByteBuffer(start))) {
+					continue;
+				}
+				Object value = result.getName().get(1);
+				logger.info("Value found: " + value);
+
+				IK key = result.getName().get(2, itemKeySerializer);
+				if ((key != null) && found.add(key)) {
+					items.add(key);
+					if (items.size() >= count) {
+						break;
+					}
+				}
+			}
+
+			if (results.size() < limit) {
+				break;
+			}
+			start = results.get(results.size() - 1).getName();
+			continuing = true;
+		}
+
+		return items;
+	}
+
+	/**
+	 * Search a set of containers for items who's column value is in a range,
+	 * returning the first count distinct items across all of the containers
+	 * in index order.
+	 * 
+	 * The per-container index slices are read concurrently with small
+	 * initial pages and merged with a heap. Further pages are only read from
+	 * containers that still have entries ahead of the merge, and reading
+	 * stops as soon as count results are settled.
+	 * 
+	 * @param <IK>
+	 *            the item's key type
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <N>
+	 *            the item's column name type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param containers
+	 *            the containers to search
+	 * @param columnName
+	 *            the item's column name
+	 * @param startValue
+	 *            the start value for the specified column (inclusive)
+	 * @param endValue
+	 *            the end value for the specified column
+	 * @param inclusive
+	 *            whether end value for the specified column is inclusive
+	 * @param count
+	 *            the number of row keys to return
+	 * @param reversed
+	 *            search in reverse order
+	 * @param cf
+	 *            the column family set
+	 * @param containerKeySerializer
+	 *            the container key serializer
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @param nameSerializer
+	 *            the column name serializer
+	 * @param executor
+	 *            the executor the initial slices are read on, or null to read
+	 *            them sequentially
+	 * @param policy
+	 *            the operation policy, or null to use the keyspace defaults
+	 * @return the list of row keys for items who's column value matches
+	 */
+	public static <IK, CK, N> List<IK> searchContainers(final Keyspace ko,
+			Set<ContainerCollection<CK>> containers, N columnName,
+			Object startValue, Object endValue, boolean inclusive, int count,
+			final boolean reversed, final CollectionCFSet cf,
+			Serializer<CK> containerKeySerializer,
+			Serializer<IK> itemKeySerializer, Serializer<N> nameSerializer,
+			ExecutorService executor, final OperationPolicy policy) {
+
+		if (count == 0) {
+			count = DEFAULT_COUNT;
+		}
+		if (containers.isEmpty()) {
+			return new ArrayList<IK>();
+		}
+
+		final DynamicComposite start = getSearchRangeStart(startValue, null);
+		final DynamicComposite finish = getSearchRangeFinish(endValue,
+				inclusive);
+		int pageSize = Math.min(count,
+				Math.max(MIN_MERGE_PAGE_SIZE, count / containers.size() + 1));
+
+		List<IndexCursor> cursors = new ArrayList<IndexCursor>();
+		for (ContainerCollection<CK> container : containers) {
+			cursors.add(new IndexCursor(container.getKey() + ":"
+					+ columnName.toString(), start, finish, reversed, pageSize));
+		}
+
+		// Read the first page from every container concurrently
+
+		if (executor != null) {
+			List<Future<Object>> pending = new ArrayList<Future<Object>>();
+			for (final IndexCursor cursor : cursors) {
+				pending.add(executor.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						cursor.fetch(ko, cf, policy);
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> f : pending) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new HectorException(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new HectorException(e);
+				}
+			}
+		} else {
+			for (IndexCursor cursor : cursors) {
+				cursor.fetch(ko, cf, policy);
+			}
+		}
+
+		final Comparator<DynamicComposite> comparator = new IndexEntryComparator();
+		PriorityQueue<IndexCursor> heap = new PriorityQueue<IndexCursor>(
+				cursors.size(), new Comparator<IndexCursor>() {
+					@Override
+					public int compare(IndexCursor c1, IndexCursor c2) {
+						int c = comparator.compare(c1.peek(), c2.peek());
+						return reversed ? -c : c;
+					}
+				});
+		for (IndexCursor cursor : cursors) {
+			if (cursor.peek() != null) {
+				heap.add(cursor);
+			}
+		}
+
+		// An item can be in several of the containers, only return it once
+
+		Set<IK> items = new LinkedHashSet<IK>();
+		while ((items.size() < count) && !heap.isEmpty()) {
+			IndexCursor cursor = heap.poll();
+			DynamicComposite entry = cursor.next();
+			IK key = entry.get(2, itemKeySerializer);
+			if (key != null) {
+				items.add(key);
+			}
+			if ((cursor.peek() == null) && !cursor.isExhausted()) {
+				cursor.fetch(ko, cf, policy);
+			}
+			if (cursor.peek() != null) {
+				heap.add(cursor);
+			}
+		}
+
+		return new ArrayList<IK>(items);
+	}
+
+	/**
+	 * Builds the Collection_Index slice start for a search.
+	 * 
+	 * @param startValue
+	 *            the start value (inclusive), or null to start at the lowest
+	 *            value
+	 * @param startResult
+	 *            the start result row key, or null
+	 * @return composite slice start
+	 */
+	static DynamicComposite getSearchRangeStart(Object startValue,
+			Object startResult) {
+		if (startValue == null) {
+			if (startResult != null) {
+				return new DynamicComposite(VALUE_CODE_BYTES, new byte[0],
+						startResult);
+			}
+			return new DynamicComposite(VALUE_CODE_BYTES, new byte[0]);
+		} else if (startResult != null) {
+			return new DynamicComposite(getIndexableValueCode(startValue),
+					getIndexableValue(startValue), startResult);
+		}
+		return new DynamicComposite(getIndexableValueCode(startValue),
+				getIndexableValue(startValue));
+	}
+
+	/**
+	 * Builds the Collection_Index slice finish for a search.
+	 * 
+	 * @param endValue
+	 *            the end value, or null to search to the end of the index
+	 * @param inclusive
+	 *            whether the end value is inclusive
+	 * @return composite slice finish, or null
+	 */
+	@SuppressWarnings("unchecked")
+	static DynamicComposite getSearchRangeFinish(Object endValue,
+			boolean inclusive) {
+		if (endValue == null) {
+			return null;
+		}
+		DynamicComposite finish = new DynamicComposite(
+				getIndexableValueCode(endValue), getIndexableValue(endValue));
+		if (inclusive) {
+			@SuppressWarnings("rawtypes")
+			Component c = finish.getComponent(1);
+			finish.setComponent(1, c.getValue(), c.getSerializer(),
+					c.getComparator(),
+					AbstractComposite.ComponentEquality.GREATER_THAN_EQUAL);
+		}
+		return finish;
+	}
+
+	/**
+	 * Adds the item to collection. If the CollectionCFSet has a time-ordered
+	 * membership column family, the item is also added there under the time
+	 * it was added, replacing the column from any earlier add.
+	 * 
+	 * The earlier add's time is read before the batch is written, so two
+	 * concurrent adds of the same item can both replace the same column and
+	 * leave the item filed under both their times. The newer time is the one
+	 * the Collection column keeps, and getItemsInCollectionByTime skips and
+	 * deletes the older column when it reads both.
+	 * 
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <IK>
+	 *            the item's key type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param itemKey
+	 *            the item's row key
+	 * @param cf
+	 *            the column families to use
+	 * @param containerKeySerializer
+	 *            the container key serializer
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 */
+	public static <CK, IK> void addItemToCollection(Keyspace ko,
+			ContainerCollection<CK> container, IK itemKey, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer) {
+
+		long timestamp = HFactory.createClock();
+
+		if (cf.getItemsByTime() == null) {
+			createMutator(ko, se).insert(
+					container.getKey(),
+					cf.getItems(),
+					createColumn(itemKey, timestamp, itemKeySerializer, le));
+		} else {
+
+			// The Collection column's value is the clock of the last add,
+			// which is also the time the item is filed under in the
+			// time-ordered row
+
+			ColumnQuery<String, IK, Long> q = createColumnQuery(ko, se,
+					itemKeySerializer, le);
+			q.setColumnFamily(cf.getItems());
+			q.setKey(container.getKey());
+			q.setName(itemKey);
+			HColumn<IK, Long> previous = q.execute().get();
+
+			Mutator<String> batch = createMutator(ko, se);
+			batch.addInsertion(container.getKey(), cf.getItems(),
+					createColumn(itemKey, timestamp, timestamp,
+							itemKeySerializer, le));
+			if ((previous != null) && (previous.getValue() != null)
+					&& (previous.getValue() != timestamp)) {
+				batch.addDeletion(container.getKey(), cf.getItemsByTime(),
+						new DynamicComposite(previous.getValue(), itemKey), ce,
+						timestamp);
+			}
+			batch.addInsertion(container.getKey(), cf.getItemsByTime(),
+					createColumn(new DynamicComposite(timestamp, itemKey),
+							new byte[0], timestamp, ce, bae));
+			batch.execute();
+		}
+
+		MembershipFilters filters = cf.getMembershipFilters();
+		if (filters != null) {
+			filters.recordItem(container.getKey(), itemKey);
+		}
+
+	}
+
+	public static <CK, IK> List<IK> getItemsInCollection(Keyspace ko,
+			ContainerCollection<CK> container, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer) {
+		return getItemsInCollection(ko, container, null, ALL_COUNT, cf,
+				itemKeySerializer);
+	}
+
+	/**
+	 * Gets a page of the items in a collection, in item key order.
+	 * 
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <IK>
+	 *            the item's key type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param startItem
+	 *            the item key to start the page at (inclusive), or null to
+	 *            start at the beginning of the collection
+	 * @param count
+	 *            the maximum number of item keys to return
+	 * @param cf
+	 *            the column families to use
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @return the list of item keys
+	 */
+	public static <CK, IK> List<IK> getItemsInCollection(Keyspace ko,
+			ContainerCollection<CK> container, IK startItem, int count,
+			CollectionCFSet cf, Serializer<IK> itemKeySerializer) {
+		List<IK> keys = new ArrayList<IK>();
+		SliceQuery<String, IK, ByteBuffer> q = createSliceQuery(ko, se,
+				itemKeySerializer, be);
+		q.setColumnFamily(cf.getItems());
+		q.setKey(container.getKey());
+		q.setRange(startItem, null, false, count);
+		QueryResult<ColumnSlice<IK, ByteBuffer>> r = q.execute();
+		ColumnSlice<IK, ByteBuffer> slice = r.get();
+		List<HColumn<IK, ByteBuffer>> results = slice.getColumns();
+		for (HColumn<IK, ByteBuffer> column : results) {
+			keys.add(column.getName());
+		}
+		return keys;
+	}
+
+	/**
+	 * Gets a page of the items in each of a set of collections, in item key
+	 * order. Collections starting from the beginning are read with multiget
+	 * slices of up to batchSize rows, and collections continuing from an
+	 * earlier page with their own slice. The queries run concurrently on the
+	 * executor, if there is one.
+	 * 
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <IK>
+	 *            the item's key type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param containers
+	 *            the ContainerCollections to read
+	 * @param startItems
+	 *            the continuation item of each collection from its previous
+	 *            page, or null to read the first page of every collection
+	 * @param pageSize
+	 *            the maximum number of item keys returned per collection
+	 * @param batchSize
+	 *            the maximum number of rows read by one multiget, must be
+	 *            positive
+	 * @param cf
+	 *            the column families to use
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @param executor
+	 *            the executor the queries are run on, or null to run them in
+	 *            turn
+	 * @return a page of items for each collection, in the order of the
+	 *         containers set
+	 */
+	public static <CK, IK> Map<ContainerCollection<CK>, CollectionPage<IK>> getItemsInCollections(
+			final Keyspace ko, Set<ContainerCollection<CK>> containers,
+			Map<ContainerCollection<CK>, IK> startItems, final int pageSize,
+			int batchSize, final CollectionCFSet cf,
+			final Serializer<IK> itemKeySerializer, ExecutorService executor) {
+
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("Batch size must be positive: "
+					+ batchSize);
+		}
+
+		// Ask for one more than the page size to know if there's a next page
+
+		final int count = pageSize + 1;
+		final Map<String, List<IK>> results = new ConcurrentHashMap<String, List<IK>>();
+		List<Callable<Object>> queries = new ArrayList<Callable<Object>>();
+
+		List<String> firstPages = new ArrayList<String>();
+		for (ContainerCollection<CK> container : containers) {
+			final IK startItem = startItems != null ? startItems.get(container)
+					: null;
+			if (startItem == null) {
+				firstPages.add(container.getKey());
+				continue;
+			}
+			final ContainerCollection<CK> c = container;
+			queries.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					results.put(c.getKey(), getItemsInCollection(ko, c,
+							startItem, count, cf, itemKeySerializer));
+					return null;
+				}
+			});
+		}
+
+		for (int i = 0; i < firstPages.size(); i += batchSize) {
+			final List<String> keys = firstPages.subList(i,
+					Math.min(i + batchSize, firstPages.size()));
+			queries.add(new Callable<Object>() {
+				@Override
+				public Object call() {
+					MultigetSliceQuery<String, IK, ByteBuffer> q = createMultigetSliceQuery(
+							ko, se, itemKeySerializer, be);
+					q.setColumnFamily(cf.getItems());
+					q.setKeys(keys);
+					q.setRange(null, null, false, count);
+					for (Row<String, IK, ByteBuffer> row : q.execute().get()) {
+						List<IK> items = new ArrayList<IK>();
+						for (HColumn<IK, ByteBuffer> column : row
+								.getColumnSlice().getColumns()) {
+							items.add(column.getName());
+						}
+						results.put(row.getKey(), items);
+					}
+					return null;
+				}
+			});
+		}
+
+		if (executor != null) {
+			List<Future<Object>> pending = new ArrayList<Future<Object>>();
+			for (Callable<Object> query : queries) {
+				pending.add(executor.submit(query));
+			}
+			for (Future<Object> f : pending) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof RuntimeException) {
+						throw (RuntimeException) e.getCause();
+					}
+					throw new HectorException(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new HectorException(e);
+				}
+			}
+		} else {
+			for (Callable<Object> query : queries) {
+				try {
+					query.call();
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new HectorException(e);
+				}
+			}
+		}
+
+		Map<ContainerCollection<CK>, CollectionPage<IK>> pages = new LinkedHashMap<ContainerCollection<CK>, CollectionPage<IK>>();
+		for (ContainerCollection<CK> container : containers) {
+			List<IK> items = results.get(container.getKey());
+			if (items == null) {
+				items = new ArrayList<IK>();
+			}
+			IK next = null;
+			if (items.size() > pageSize) {
+				next = items.get(pageSize);
+				items = new ArrayList<IK>(items.subList(0, pageSize));
+			}
+			pages.put(container, new CollectionPage<IK>(items, next));
+		}
+		return pages;
+	}
+
+	/**
+	 * Gets the most recently added items in a collection, newest first. The
+	 * CollectionCFSet must have a time-ordered membership column family.
+	 * 
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <IK>
+	 *            the item's key type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param count
+	 *            the maximum number of items to return
+	 * @param cf
+	 *            the column families to use
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @return the item keys mapped to the time they were added, newest first
+	 */
+	public static <CK, IK> LinkedHashMap<IK, Long> getLatestItemsInCollection(
+			Keyspace ko, ContainerCollection<CK> container, int count,
+			CollectionCFSet cf, Serializer<IK> itemKeySerializer) {
+		return getItemsInCollectionByTime(ko, container, null, null, count,
+				true, cf, itemKeySerializer);
+	}
+
+	/**
+	 * Gets the items added to a collection at or after a time, oldest first.
+	 * The CollectionCFSet must have a time-ordered membership column family.
+	 * 
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <IK>
+	 *            the item's key type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param since
+	 *            the time, as a Cassandra clock in microseconds
+	 * @param count
+	 *            the maximum number of items to return
+	 * @param cf
+	 *            the column families to use
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @return the item keys mapped to the time they were added, oldest first
+	 */
+	public static <CK, IK> LinkedHashMap<IK, Long> getItemsInCollectionSince(
+			Keyspace ko, ContainerCollection<CK> container, long since,
+			int count, CollectionCFSet cf, Serializer<IK> itemKeySerializer) {
+		return getItemsInCollectionByTime(ko, container, since, null, count,
+				false, cf, itemKeySerializer);
+	}
+
+	/**
+	 * Gets a page of the items in a collection in the order they were added,
+	 * with a slice of the time-ordered membership row. To get the next page,
+	 * pass the time and key of the last item returned as the start (which is
+	 * inclusive, so ask for one more and skip it).
+	 * 
+	 * An item left filed under two times by concurrent adds is only returned
+	 * once, at the newer time, and the older column is deleted. The slice is
+	 * read on until count items are found, so the page isn't cut short by
+	 * the skipped columns. If the two columns fall in different pages the
+	 * item can still show up in both.
+	 * 
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <IK>
+	 *            the item's key type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param startTime
+	 *            the time to start at, as a Cassandra clock in microseconds,
+	 *            or null to start at the oldest (or newest if reversed) item
+	 * @param startItem
+	 *            the item key to start at within the start time, or null for
+	 *            all items added at the start time
+	 * @param count
+	 *            the maximum number of items to return
+	 * @param reversed
+	 *            true for newest first
+	 * @param cf
+	 *            the column families to use
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @return the item keys mapped to the time they were added
+	 */
+	public static <CK, IK> LinkedHashMap<IK, Long> getItemsInCollectionByTime(
+			Keyspace ko, ContainerCollection<CK> container, Long startTime,
+			IK startItem, int count, boolean reversed, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer) {
+		if (cf.getItemsByTime() == null) {
+			throw new IllegalStateException(
+					"No time-ordered membership column family configured");
+		}
+
+		DynamicComposite start = null;
+		if (startTime != null) {
+			start = new DynamicComposite();
+			if (startItem != null) {
+				start.addComponent(startTime, le);
+				start.addComponent(startItem, itemKeySerializer);
+			} else {
+
+				// Start before (or when reversed, after) all the items added
+				// at the start time
+
+				start.addComponent(startTime, le, "LongType",
+						reversed ? AbstractComposite.ComponentEquality.GREATER_THAN_EQUAL
+								: AbstractComposite.ComponentEquality.EQUAL);
+			}
+		}
+
+		LinkedHashMap<IK, Long> items = new LinkedHashMap<IK, Long>();
+		List<DynamicComposite> stale = new ArrayList<DynamicComposite>();
+		boolean continuing = false;
+		while (items.size() < count) {
+			int limit = continuing ? count - items.size() + 1 : count;
+			SliceQuery<String, DynamicComposite, ByteBuffer> q = createSliceQuery(
+					ko, se, ce, be);
+			q.setColumnFamily(cf.getItemsByTime());
+			q.setKey(container.getKey());
+			q.setRange(start, null, reversed, limit);
+			List<HColumn<DynamicComposite, ByteBuffer>> results = q.execute()
+					.get().getColumns();
+
+			for (HColumn<DynamicComposite, ByteBuffer> result : results) {
+				DynamicComposite name = result.getName();
+				if (continuing
+						&& ce.toByteBuffer(name).equals(ce.toByteBuffer(start))) {
+					continue;
+				}
+				IK itemKey = name.get(1, itemKeySerializer);
+				if (itemKey == null) {
+					continue;
+				}
+				Long time = name.get(0, le);
+				Long previous = items.get(itemKey);
+				if (previous == null) {
+					items.put(itemKey, time);
+				} else if (time > previous) {
+
+					// Filed twice by concurrent adds, the newer time is
+					// current, so move the item there
+
+					stale.add(new DynamicComposite(previous, itemKey));
+					items.remove(itemKey);
+					items.put(itemKey, time);
+				} else {
+					stale.add(new DynamicComposite(time, itemKey));
+				}
+			}
+			if (results.size() < limit) {
+				break;
+			}
+			start = results.get(results.size() - 1).getName();
+			continuing = true;
+		}
+
+		if (!stale.isEmpty()) {
+			logger.info("Deleting " + stale.size()
+					+ " duplicate time-ordered entries from "
+					+ container.getKey());
+			Mutator<String> batch = createMutator(ko, se);
+			long timestamp = HFactory.createClock();
+			for (DynamicComposite name : stale) {
+				batch.addDeletion(container.getKey(), cf.getItemsByTime(),
+						name, ce, timestamp);
+			}
+			batch.execute();
+		}
+		return items;
+	}
+
+	/**
+	 * Checks whether an item is in a collection. If the CollectionCFSet has
+	 * membership filters, a negative answer from the container's filter is
+	 * returned without reading from Cassandra.
+	 * 
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <IK>
+	 *            the item's key type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
 	 *            the ContainerCollection (container key and collection name)
 	 * @param itemKey
 	 *            the item's row key
 	 * @param cf
 	 *            the column families to use
-	 * @param containerKeySerializer
-	 *            the container key serializer
 	 * @param itemKeySerializer
 	 *            the item key serializer
+	 * @return true if the item is in the collection
 	 */
-	public static <CK, IK> void addItemToCollection(Keyspace ko,
+	public static <CK, IK> boolean isItemInCollection(Keyspace ko,
 			ContainerCollection<CK> container, IK itemKey, CollectionCFSet cf,
 			Serializer<IK> itemKeySerializer) {
 
-		createMutator(ko, se).insert(
-				container.getKey(),
-				cf.getItems(),
-				createColumn(itemKey, HFactory.createClock(),
-						itemKeySerializer, le));
+		MembershipFilters filters = cf.getMembershipFilters();
+		if (filters != null) {
+			BloomFilter filter = filters.getFilter(container.getKey());
+			if (filter == null) {
+				filter = filters.startBuild(container.getKey());
+				List<IK> items = getItemsInCollection(ko, container, cf,
+						itemKeySerializer);
+				for (IK item : items) {
+					filter.add(IndexStatistics.hash64(item));
+				}
 
-	}
+				// A collection larger than ALL_COUNT can't be filtered
 
-	public static <CK, IK> List<IK> getItemsInCollection(Keyspace ko,
-			ContainerCollection<CK> container, CollectionCFSet cf,
-			Serializer<IK> itemKeySerializer) {
-		List<IK> keys = new ArrayList<IK>();
-		SliceQuery<String, IK, ByteBuffer> q = createSliceQuery(ko, se,
+				if ((items.size() >= ALL_COUNT)
+						|| !filters.finishBuild(container.getKey(), filter,
+								items.size())) {
+					filters.abortBuild(container.getKey(), filter);
+					if (items.contains(itemKey)) {
+						return true;
+					}
+					filter = null;
+				}
+			}
+			if ((filter != null)
+					&& !filter.mightContain(IndexStatistics.hash64(itemKey))) {
+				return false;
+			}
+		}
+
+		ColumnQuery<String, IK, ByteBuffer> q = createColumnQuery(ko, se,
 				itemKeySerializer, be);
 		q.setColumnFamily(cf.getItems());
 		q.setKey(container.getKey());
-		q.setRange(null, null, false, ALL_COUNT);
-		QueryResult<ColumnSlice<IK, ByteBuffer>> r = q.execute();
-		ColumnSlice<IK, ByteBuffer> slice = r.get();
-		List<HColumn<IK, ByteBuffer>> results = slice.getColumns();
-		for (HColumn<IK, ByteBuffer> column : results) {
-			keys.add(column.getName());
+		q.setName(itemKey);
+		return q.execute().get() != null;
+	}
+
+	/**
+	 * Checks whether any item in a container has a column set to a value. If
+	 * the CollectionCFSet has membership filters, a negative answer from the
+	 * container index's filter is returned without reading from Cassandra.
+	 * 
+	 * @param <CK>
+	 *            the container's key type
+	 * @param <N>
+	 *            the item's column name type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param columnName
+	 *            the item's column name
+	 * @param value
+	 *            the column value
+	 * @param cf
+	 *            the column families to use
+	 * @return true if an item in the container has the column value
+	 */
+	public static <CK, N> boolean containerHasValue(Keyspace ko,
+			ContainerCollection<CK> container, N columnName, Object value,
+			CollectionCFSet cf) {
+
+		String columnIndexKey = container.getKey() + ":"
+				+ columnName.toString();
+
+		MembershipFilters filters = cf.getMembershipFilters();
+		if (filters != null) {
+			BloomFilter filter = filters.getFilter(columnIndexKey);
+			if (filter == null) {
+				filter = filters.startBuild(columnIndexKey);
+				int entries = 0;
+				boolean complete = false;
+				DynamicComposite start = null;
+				while (entries < ALL_COUNT) {
+					SliceQuery<ByteBuffer, DynamicComposite, ByteBuffer> q = createSliceQuery(
+							ko, be, ce, be);
+					q.setColumnFamily(cf.getIndex());
+					q.setKey(se.toByteBuffer(columnIndexKey));
+					q.setRange(start, null, false, DEFAULT_COUNT * 10);
+					List<HColumn<DynamicComposite, ByteBuffer>> results = q
+							.execute().get().getColumns();
+					for (HColumn<DynamicComposite, ByteBuffer> result : results) {
+						DynamicComposite name = result.getName();
+						filter.add(MembershipFilters.valueHash(
+								getValueCode(name.get(0)), name.get(1)));
+					}
+
+					// Pages overlap by one column, which is harmless here
+
+					entries += results.size() - (start != null ? 1 : 0);
+					if (results.size() < DEFAULT_COUNT * 10) {
+						complete = true;
+						break;
+					}
+					start = results.get(results.size() - 1).getName();
+				}
+
+				// An index larger than ALL_COUNT can't be filtered
+
+				if (!complete
+						|| !filters.finishBuild(columnIndexKey, filter, entries)) {
+					filters.abortBuild(columnIndexKey, filter);
+					filter = null;
+				}
+			}
+			if ((filter != null)
+					&& !filter.mightContain(MembershipFilters.valueHash(
+					getIndexableValueCode(value), getIndexableValue(value)))) {
+				return false;
+			}
 		}
-		return keys;
+
+		SliceQuery<ByteBuffer, DynamicComposite, ByteBuffer> q = createSliceQuery(
+				ko, be, ce, be);
+		q.setColumnFamily(cf.getIndex());
+		q.setKey(se.toByteBuffer(columnIndexKey));
+		q.setRange(getSearchRangeStart(value, null),
+				getSearchRangeFinish(value, true), false, 1);
+		return !q.execute().get().getColumns().isEmpty();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -566,10 +2157,197 @@ public class IndexedCollections {
 		return st.fromByteBuffer(so.toByteBuffer(obj));
 	}
 
+	/**
+	 * IndexCursor pages through a range of a single Collection_Index row,
+	 * doubling the page size on each read up to DEFAULT_COUNT.
+	 */
+	static class IndexCursor {
+		private final String columnIndexKey;
+		private final DynamicComposite finish;
+		private final boolean reversed;
+		private DynamicComposite start;
+		private int pageSize;
+		private boolean continuing = false;
+		private boolean exhausted = false;
+		private final LinkedList<DynamicComposite> buffer = new LinkedList<DynamicComposite>();
+
+		IndexCursor(String columnIndexKey, DynamicComposite start,
+				DynamicComposite finish, boolean reversed, int pageSize) {
+			this.columnIndexKey = columnIndexKey;
+			this.start = start;
+			this.finish = finish;
+			this.reversed = reversed;
+			this.pageSize = pageSize;
+		}
+
+		void fetch(Keyspace ko, CollectionCFSet cf, OperationPolicy policy) {
+			if (exhausted) {
+				return;
+			}
+
+			// Continuation slices start at the last entry read, which is
+			// inclusive, so read one more and skip it
+
+			int limit = continuing ? pageSize + 1 : pageSize;
+			SliceQuery<ByteBuffer, DynamicComposite, ByteBuffer> q = createSliceQuery(
+					policy != null ? policy.getReadKeyspace(ko) : ko, be, ce,
+					be);
+			q.setColumnFamily(cf.getIndex());
+			q.setKey(se.toByteBuffer(columnIndexKey));
+			q.setRange(start, finish, reversed, limit);
+			List<HColumn<DynamicComposite, ByteBuffer>> results = execute(q,
+					policy).get().getColumns();
+
+			exhausted = results.size() < limit;
+			for (HColumn<DynamicComposite, ByteBuffer> result : results) {
+				DynamicComposite name = result.getName();
+				if (continuing && (start != null)
+						&& ce.toByteBuffer(name).equals(ce.toByteBuffer(start))) {
+					continue;
+				}
+				buffer.add(name);
+			}
+			if (!results.isEmpty()) {
+				start = results.get(results.size() - 1).getName();
+				continuing = true;
+			}
+			pageSize = Math.min(pageSize * 2, DEFAULT_COUNT);
+		}
+
+		DynamicComposite peek() {
+			return buffer.peek();
+		}
+
+		DynamicComposite next() {
+			return buffer.poll();
+		}
+
+		boolean isExhausted() {
+			return exhausted;
+		}
+	}
+
+	/**
+	 * IndexEntryComparator orders Collection_Index column names the way the
+	 * DynamicCompositeType comparator does: by value code, then indexed value,
+	 * then item key and ts_uuid.
+	 */
+	public static class IndexEntryComparator implements
+			Comparator<DynamicComposite> {
+
+		@Override
+		public int compare(DynamicComposite o1, DynamicComposite o2) {
+			int c = getValueCode(o1.get(0)) - getValueCode(o2.get(0));
+			for (int i = 1; (c == 0) && (i < 4); i++) {
+				c = compareIndexableValues(i < o1.size() ? o1.get(i) : null,
+						i < o2.size() ? o2.get(i) : null);
+			}
+			return c;
+		}
+	}
+
+	/**
+	 * Reads back a value code component, which depending on the alias it was
+	 * stored with is deserialized as a number or as raw bytes.
+	 * 
+	 * @param code
+	 * @return value code
+	 */
+	static int getValueCode(Object code) {
+		if (code instanceof Number) {
+			return ((Number) code).intValue();
+		}
+		if (code instanceof ByteBuffer) {
+			ByteBuffer bytes = ((ByteBuffer) code).duplicate();
+			if (!bytes.hasRemaining()) {
+				return 0;
+			}
+			byte[] b = new byte[bytes.remaining()];
+			bytes.get(b);
+			return new BigInteger(b).intValue();
+		}
+		return VALUE_CODE_BYTES;
+	}
+
+	/**
+	 * Compares two values returned by getIndexableValue, or read back from an
+	 * index composite, in the same order as the corresponding Cassandra
+	 * comparator. Values are expected to have the same value code.
+	 * 
+	 * @param v1
+	 * @param v2
+	 * @return comparison result
+	 */
+	public static int compareIndexableValues(Object v1, Object v2) {
+		if (v1 == v2) {
+			return 0;
+		}
+		if (v1 == null) {
+			return -1;
+		}
+		if (v2 == null) {
+			return 1;
+		}
+		if ((v1 instanceof Number) && (v2 instanceof Number)) {
+			return toBigInteger((Number) v1).compareTo(
+					toBigInteger((Number) v2));
+		}
+		if ((v1 instanceof UUID) && (v2 instanceof UUID)) {
+			UUID u1 = (UUID) v1;
+			UUID u2 = (UUID) v2;
+			if ((u1.version() == 1) && (u2.version() == 1)) {
+				int c = compareUnsigned(u1.timestamp(), u2.timestamp());
+				if (c != 0) {
+					return c;
+				}
+			}
+			int c = compareUnsigned(u1.getMostSignificantBits(),
+					u2.getMostSignificantBits());
+			if (c != 0) {
+				return c;
+			}
+			return compareUnsigned(u1.getLeastSignificantBits(),
+					u2.getLeastSignificantBits());
+		}
+		return compareBytes(toBytes(v1), toBytes(v2));
+	}
+
+	private static BigInteger toBigInteger(Number n) {
+		if (n instanceof BigInteger) {
+			return (BigInteger) n;
+		}
+		return BigInteger.valueOf(n.longValue());
+	}
+
+	private static int compareUnsigned(long l1, long l2) {
+		return compareBytes(le.toByteBuffer(l1), le.toByteBuffer(l2));
+	}
+
+	private static ByteBuffer toBytes(Object value) {
+		if (value instanceof ByteBuffer) {
+			return (ByteBuffer) value;
+		}
+		return TypeInferringSerializer.get().toByteBuffer(value);
+	}
+
+	private static int compareBytes(ByteBuffer b1, ByteBuffer b2) {
+		int p1 = b1.position();
+		int p2 = b2.position();
+		int n = Math.min(b1.remaining(), b2.remaining());
+		for (int i = 0; i < n; i++) {
+			int c = (b1.get(p1 + i) & 0xff) - (b2.get(p2 + i) & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return b1.remaining() - b2.remaining();
+	}
+
 	/**
 	 * CollectionCFSet contains the names of the four column families needed to
 	 * implement indexed collections. Default CF names are provided, but can be
-	 * anything that makes sense for the application.
+	 * anything that makes sense for the application. It also holds the
+	 * optional components that are maintained from the write path.
 	 */
 	public static class CollectionCFSet {
 
@@ -577,6 +2355,13 @@ public class IndexedCollections {
 		private String items = DEFAULT_COLLECTION_CF;
 		private String index = DEFAULT_COLLECTION_INDEX_CF;
 		private String entries = DEFAULT_ITEM_INDEX_ENTRIES;
+		private String itemsByTime;
+		private IndexStatistics statistics;
+		private MembershipFilters membershipFilters;
+		private IndexChangeLog changeLog;
+		private IndexDefinitions indexDefinitions;
+		private IndexCache indexCache;
+		private final List<IndexChangeListener> changeListeners = new CopyOnWriteArrayList<IndexChangeListener>();
 
 		public CollectionCFSet() {
 		}
@@ -620,6 +2405,129 @@ public class IndexedCollections {
 		public void setEntries(String entries) {
 			this.entries = entries;
 		}
+
+		/**
+		 * @return the optional time-ordered membership column family, or null
+		 */
+		public String getItemsByTime() {
+			return itemsByTime;
+		}
+
+		/**
+		 * @param itemsByTime
+		 *            the time-ordered membership column family, for example
+		 *            DEFAULT_COLLECTION_BY_TIME_CF, or null to not keep one
+		 */
+		public void setItemsByTime(String itemsByTime) {
+			this.itemsByTime = itemsByTime;
+		}
+
+		/**
+		 * @return the index statistics maintained by setItemColumn, or null
+		 */
+		public IndexStatistics getStatistics() {
+			return statistics;
+		}
+
+		public void setStatistics(IndexStatistics statistics) {
+			this.statistics = statistics;
+		}
+
+		/**
+		 * @return the membership filters maintained by addItemToCollection and
+		 *         setItemColumn, or null
+		 */
+		public MembershipFilters getMembershipFilters() {
+			return membershipFilters;
+		}
+
+		public void setMembershipFilters(MembershipFilters membershipFilters) {
+			this.membershipFilters = membershipFilters;
+		}
+
+		/**
+		 * @return the change log written to by setItemColumn, or null
+		 */
+		public IndexChangeLog getChangeLog() {
+			return changeLog;
+		}
+
+		public void setChangeLog(IndexChangeLog changeLog) {
+			this.changeLog = changeLog;
+		}
+
+		/**
+		 * @return the index definitions that decide which columns
+		 *         setItemColumn indexes in which collections, or null to index
+		 *         every column
+		 */
+		public IndexDefinitions getIndexDefinitions() {
+			return indexDefinitions;
+		}
+
+		public void setIndexDefinitions(IndexDefinitions indexDefinitions) {
+			this.indexDefinitions = indexDefinitions;
+		}
+
+		/**
+		 * @return the cache of index slices used by getItemColumnValues and
+		 *         searchContainer, or null
+		 */
+		public IndexCache getIndexCache() {
+			return indexCache;
+		}
+
+		public void setIndexCache(IndexCache indexCache) {
+			this.indexCache = indexCache;
+		}
+
+		/**
+		 * @return the listeners notified of each applied setItemColumn
+		 */
+		public List<IndexChangeListener> getChangeListeners() {
+			return changeListeners;
+		}
+
+		public void addChangeListener(IndexChangeListener listener) {
+			changeListeners.add(listener);
+		}
+
+		public void removeChangeListener(IndexChangeListener listener) {
+			changeListeners.remove(listener);
+		}
+	}
+
+	/**
+	 * CollectionPage is one page of a collection's items and the item the next
+	 * page starts at.
+	 * 
+	 * @param <IK>
+	 *            the item's key type
+	 */
+	public static class CollectionPage<IK> {
+		private final List<IK> items;
+		private final IK nextItem;
+
+		public CollectionPage(List<IK> items, IK nextItem) {
+			this.items = items;
+			this.nextItem = nextItem;
+		}
+
+		public List<IK> getItems() {
+			return items;
+		}
+
+		/**
+		 * @return the start item for the next page, or null if this is the
+		 *         last page
+		 */
+		public IK getNextItem() {
+			return nextItem;
+		}
+
+		public boolean hasMore() {
+			return nextItem != null;
+		}
 	}
 
 	/**
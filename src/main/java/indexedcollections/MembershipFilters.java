@@ -0,0 +1,349 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import static indexedcollections.IndexStatistics.hash64;
+import static indexedcollections.IndexedCollections.getIndexableValue;
+import static indexedcollections.IndexedCollections.getIndexableValueCode;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * MembershipFilters holds client-side Bloom filters that answer "is item X in
+ * container C" (keyed by the Collection row key) and "does any item in C have
+ * column = V" (keyed by the Collection_Index row key) without a Cassandra
+ * read when the answer is no.
+ *
+ * Filters are built lazily from the rows the first time they're needed,
+ * updated by addItemToCollection, setItemColumn and IndexBackfill, and
+ * rebuilt once they're older than the rebuild interval. A filter only sees
+ * the additions made by this JVM since it was built, so the rebuild interval
+ * bounds how long a write from another node can be missed by a negative
+ * lookup. Bloom filters can't forget, so removals only show up after a
+ * rebuild.
+ *
+ * The least recently used filters are evicted to stay within the memory
+ * budget.
+ */
+public class MembershipFilters {
+
+	private static final Logger logger = Logger
+			.getLogger(MembershipFilters.class.getName());
+
+	public static final int DEFAULT_EXPECTED_ENTRIES = 1000;
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+	public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+	public static final long DEFAULT_REBUILD_INTERVAL = 5 * 60 * 1000;
+	public static final int MAX_SIZE_HINTS = 10000;
+
+	private int expectedEntries = DEFAULT_EXPECTED_ENTRIES;
+	private double falsePositiveRate = DEFAULT_FALSE_POSITIVE_RATE;
+	private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+	private long rebuildInterval = DEFAULT_REBUILD_INTERVAL;
+
+	private long memoryUsed = 0;
+	private final LinkedHashMap<String, BloomFilter> filters = new LinkedHashMap<String, BloomFilter>(
+			16, 0.75f, true);
+	private final Map<String, BloomFilter> building = new HashMap<String, BloomFilter>();
+	private final Map<String, Integer> sizeHints = new LinkedHashMap<String, Integer>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > MAX_SIZE_HINTS;
+		}
+	};
+
+	public int getExpectedEntries() {
+		return expectedEntries;
+	}
+
+	/**
+	 * @param expectedEntries
+	 *            the minimum number of entries a filter is sized for, filters
+	 *            built from larger rows are sized for the row
+	 */
+	public void setExpectedEntries(int expectedEntries) {
+		this.expectedEntries = expectedEntries;
+	}
+
+	public double getFalsePositiveRate() {
+		return falsePositiveRate;
+	}
+
+	public void setFalsePositiveRate(double falsePositiveRate) {
+		this.falsePositiveRate = falsePositiveRate;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @param memoryBudget
+	 *            the maximum number of bytes used by all of the filters
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	public long getRebuildInterval() {
+		return rebuildInterval;
+	}
+
+	/**
+	 * @param rebuildInterval
+	 *            how long, in milliseconds, a filter is trusted before it's
+	 *            rebuilt from its row
+	 */
+	public void setRebuildInterval(long rebuildInterval) {
+		this.rebuildInterval = rebuildInterval;
+	}
+
+	public synchronized long getMemoryUsed() {
+		return memoryUsed;
+	}
+
+	/**
+	 * @param key
+	 *            the Collection or Collection_Index row key
+	 * @return the filter for the row, or null if there's no current filter
+	 *         and it needs to be built
+	 */
+	synchronized BloomFilter getFilter(String key) {
+		BloomFilter filter = filters.get(key);
+		if ((filter != null)
+				&& (System.currentTimeMillis() - filter.getBuiltAt() > rebuildInterval)) {
+			remove(key);
+			return null;
+		}
+		return filter;
+	}
+
+	/**
+	 * Start building a filter for a row. Until finishBuild is called the
+	 * filter isn't used for lookups, but it does receive the additions
+	 * recorded while the row is being read.
+	 *
+	 * @param key
+	 *            the Collection or Collection_Index row key
+	 * @return a new, empty filter
+	 */
+	synchronized BloomFilter startBuild(String key) {
+		Integer hint = sizeHints.get(key);
+		BloomFilter filter = new BloomFilter(Math.max(expectedEntries,
+				hint != null ? hint * 2 : 0), falsePositiveRate);
+		building.put(key, filter);
+		return filter;
+	}
+
+	/**
+	 * Finish building a filter. If the row turned out to be larger than the
+	 * filter was sized for, the filter is dropped and the next build is sized
+	 * for the row. If another build of the row was started in the meantime,
+	 * the additions since then were only recorded in the newer filter, so
+	 * this one is dropped too.
+	 *
+	 * @param key
+	 *            the Collection or Collection_Index row key
+	 * @param filter
+	 *            the filter returned by startBuild
+	 * @param entries
+	 *            the number of entries read from the row
+	 * @return true if the filter can be used for lookups
+	 */
+	synchronized boolean finishBuild(String key, BloomFilter filter,
+			int entries) {
+		if (building.get(key) != filter) {
+			logger.info("Membership filter for " + key
+					+ " superseded by a newer build");
+			return false;
+		}
+		building.remove(key);
+		sizeHints.put(key, entries);
+		if (entries > filter.getExpectedEntries()) {
+			logger.info("Membership filter for " + key + " undersized, "
+					+ entries + " entries");
+			return false;
+		}
+		putFilter(key, filter);
+		return true;
+	}
+
+	/**
+	 * Abandon building a filter, for example because the row was too large to
+	 * read completely.
+	 *
+	 * @param key
+	 *            the Collection or Collection_Index row key
+	 * @param filter
+	 *            the filter returned by startBuild
+	 */
+	synchronized void abortBuild(String key, BloomFilter filter) {
+		if (building.get(key) == filter) {
+			building.remove(key);
+		}
+	}
+
+	private void putFilter(String key, BloomFilter filter) {
+		remove(key);
+		filters.put(key, filter);
+		memoryUsed += filter.getSizeInBytes();
+
+		Iterator<Map.Entry<String, BloomFilter>> i = filters.entrySet()
+				.iterator();
+		while ((memoryUsed > memoryBudget) && i.hasNext()) {
+			Map.Entry<String, BloomFilter> eldest = i.next();
+			if (eldest.getValue() == filter) {
+				continue;
+			}
+			logger.info("Evicting membership filter for " + eldest.getKey());
+			memoryUsed -= eldest.getValue().getSizeInBytes();
+			i.remove();
+		}
+	}
+
+	private void remove(String key) {
+		BloomFilter filter = filters.remove(key);
+		if (filter != null) {
+			memoryUsed -= filter.getSizeInBytes();
+		}
+	}
+
+	/**
+	 * Drop a filter so it will be rebuilt on next use.
+	 *
+	 * @param key
+	 *            the Collection or Collection_Index row key
+	 */
+	public synchronized void invalidate(String key) {
+		remove(key);
+	}
+
+	/**
+	 * Record an item added to a collection.
+	 *
+	 * @param containerKey
+	 *            the Collection row key
+	 * @param itemKey
+	 */
+	public void recordItem(String containerKey, Object itemKey) {
+		record(containerKey, hash64(itemKey));
+	}
+
+	/**
+	 * Record a value added to a container index.
+	 *
+	 * @param columnIndexKey
+	 *            the Collection_Index row key
+	 * @param columnValue
+	 */
+	public void recordValue(String columnIndexKey, Object columnValue) {
+		record(columnIndexKey,
+				valueHash(getIndexableValueCode(columnValue),
+						getIndexableValue(columnValue)));
+	}
+
+	private void record(String key, long hash) {
+		BloomFilter filter;
+		BloomFilter pending;
+		synchronized (this) {
+			filter = filters.get(key);
+			pending = building.get(key);
+		}
+		if (filter != null) {
+			filter.add(hash);
+		}
+		if (pending != null) {
+			pending.add(hash);
+		}
+	}
+
+	/**
+	 * @param valueCode
+	 * @param indexableValue
+	 * @return the hash a value is stored under in a container index filter
+	 */
+	static long valueHash(int valueCode, Object indexableValue) {
+		return hash64(indexableValue) * 31 + valueCode;
+	}
+
+	/**
+	 * BloomFilter is a fixed size Bloom filter using double hashing over a
+	 * 64 bit hash.
+	 */
+	public static class BloomFilter {
+		private final BitSet bits;
+		private final int expectedEntries;
+		private final int numBits;
+		private final int numHashes;
+		private final long builtAt = System.currentTimeMillis();
+
+		public BloomFilter(int expectedEntries, double falsePositiveRate) {
+			int n = Math.max(1, expectedEntries);
+			this.expectedEntries = n;
+			numBits = (int) Math.max(64, Math.ceil(-n * Math.log(falsePositiveRate)
+					/ (Math.log(2) * Math.log(2))));
+			numHashes = Math.max(1,
+					(int) Math.round((double) numBits / n * Math.log(2)));
+			bits = new BitSet(numBits);
+		}
+
+		public synchronized void add(long hash) {
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			for (int i = 0; i < numHashes; i++) {
+				bits.set(((h1 + i * h2) & Integer.MAX_VALUE) % numBits);
+			}
+		}
+
+		public synchronized boolean mightContain(long hash) {
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			for (int i = 0; i < numHashes; i++) {
+				if (!bits.get(((h1 + i * h2) & Integer.MAX_VALUE) % numBits)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public int getExpectedEntries() {
+			return expectedEntries;
+		}
+
+		public long getBuiltAt() {
+			return builtAt;
+		}
+
+		public long getSizeInBytes() {
+			return numBits / 8;
+		}
+	}
+}
@@ -0,0 +1,440 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import me.prettyprint.cassandra.model.ConfigurableConsistencyLevel;
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.HConsistencyLevel;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.exceptions.HTimedOutException;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.MutationResult;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.Query;
+import me.prettyprint.hector.api.query.QueryResult;
+
+import org.apache.log4j.Logger;
+
+/**
+ * OperationPolicy controls how the IndexedCollections reads and writes for a
+ * single operation are executed: the read and write consistency levels, a
+ * per-call timeout, and speculative hedged reads.
+ *
+ * When hedging is enabled, a read that hasn't completed after the configured
+ * percentile of recently observed read latencies is sent a second time and
+ * whichever response arrives first is used. The duplicate read goes back
+ * through Hector's connection pool, so it will usually be coordinated by a
+ * different host than the slow one.
+ *
+ * Timeouts and hedging require an executor to run the calls on, setting
+ * either on a policy without one fails. A read that's abandoned, because it
+ * timed out or the other hedged read answered first, still records the time
+ * it had been running, so slow reads aren't left out of the hedge percentile.
+ * A policy can be shared between threads.
+ */
+public class OperationPolicy {
+
+	private static final Logger logger = Logger.getLogger(OperationPolicy.class
+			.getName());
+
+	public static final int DEFAULT_LATENCY_SAMPLES = 1024;
+	public static final int MIN_HEDGE_SAMPLES = 32;
+
+	private final Cluster cluster;
+	private final ExecutorService executor;
+
+	private HConsistencyLevel readConsistency;
+	private HConsistencyLevel writeConsistency;
+	private long timeoutMillis = 0;
+	private double hedgePercentile = 0;
+	private long minHedgeDelayMillis = 1;
+
+	private final LatencyTracker readLatencies = new LatencyTracker(
+			DEFAULT_LATENCY_SAMPLES);
+	private final Map<String, Keyspace> readKeyspaces = new ConcurrentHashMap<String, Keyspace>();
+	private final Map<String, Keyspace> writeKeyspaces = new ConcurrentHashMap<String, Keyspace>();
+
+	/**
+	 * @param cluster
+	 *            the cluster used to create keyspace operators with the
+	 *            policy's consistency levels, may be null if the consistency
+	 *            levels aren't overridden
+	 * @param executor
+	 *            the executor used for timeouts and hedged reads, may be null
+	 *            if neither is used
+	 */
+	public OperationPolicy(Cluster cluster, ExecutorService executor) {
+		this.cluster = cluster;
+		this.executor = executor;
+	}
+
+	public HConsistencyLevel getReadConsistency() {
+		return readConsistency;
+	}
+
+	/**
+	 * @param readConsistency
+	 *            the read consistency level, or null to use the keyspace's
+	 */
+	public void setReadConsistency(HConsistencyLevel readConsistency) {
+		this.readConsistency = readConsistency;
+		readKeyspaces.clear();
+	}
+
+	public HConsistencyLevel getWriteConsistency() {
+		return writeConsistency;
+	}
+
+	/**
+	 * @param writeConsistency
+	 *            the write consistency level, or null to use the keyspace's
+	 */
+	public void setWriteConsistency(HConsistencyLevel writeConsistency) {
+		this.writeConsistency = writeConsistency;
+		writeKeyspaces.clear();
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * @param timeoutMillis
+	 *            the maximum time a single read or write may take, or 0 for no
+	 *            timeout
+	 */
+	public void setTimeoutMillis(long timeoutMillis) {
+		if ((timeoutMillis > 0) && (executor == null)) {
+			throw new IllegalStateException(
+					"Timeouts require an executor to run the calls on");
+		}
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public double getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	/**
+	 * @param hedgePercentile
+	 *            the percentile (for example 0.95) of observed read latency
+	 *            after which a duplicate read is sent, or 0 to disable hedging
+	 */
+	public void setHedgePercentile(double hedgePercentile) {
+		if ((hedgePercentile > 0) && (executor == null)) {
+			throw new IllegalStateException(
+					"Hedged reads require an executor to run the calls on");
+		}
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	public long getMinHedgeDelayMillis() {
+		return minHedgeDelayMillis;
+	}
+
+	/**
+	 * @param minHedgeDelayMillis
+	 *            the minimum time to wait before sending a duplicate read
+	 */
+	public void setMinHedgeDelayMillis(long minHedgeDelayMillis) {
+		this.minHedgeDelayMillis = minHedgeDelayMillis;
+	}
+
+	public LatencyTracker getReadLatencies() {
+		return readLatencies;
+	}
+
+	/**
+	 * @param ko
+	 *            the keyspace operator
+	 * @return a keyspace operator for the same keyspace using the policy's read
+	 *         consistency level
+	 */
+	public Keyspace getReadKeyspace(Keyspace ko) {
+		return getKeyspace(ko, readConsistency, readKeyspaces);
+	}
+
+	/**
+	 * @param ko
+	 *            the keyspace operator
+	 * @return a keyspace operator for the same keyspace using the policy's
+	 *         write consistency level
+	 */
+	public Keyspace getWriteKeyspace(Keyspace ko) {
+		return getKeyspace(ko, writeConsistency, writeKeyspaces);
+	}
+
+	private Keyspace getKeyspace(Keyspace ko, HConsistencyLevel level,
+			Map<String, Keyspace> keyspaces) {
+		if ((level == null) || (cluster == null)) {
+			return ko;
+		}
+		Keyspace ks = keyspaces.get(ko.getKeyspaceName());
+		if (ks == null) {
+			ConfigurableConsistencyLevel ccl = new ConfigurableConsistencyLevel();
+			ccl.setDefaultReadConsistencyLevel(level);
+			ccl.setDefaultWriteConsistencyLevel(level);
+			ks = HFactory.createKeyspace(ko.getKeyspaceName(), cluster, ccl);
+			keyspaces.put(ko.getKeyspaceName(), ks);
+		}
+		return ks;
+	}
+
+	/**
+	 * Execute a read query, applying the timeout and hedging.
+	 *
+	 * @param <T>
+	 * @param query
+	 *            a query created with the read keyspace operator
+	 * @return the query result
+	 */
+	public <T> QueryResult<T> read(Query<T> query) {
+		TimedRead<T> call = new TimedRead<T>(query);
+		if ((timeoutMillis <= 0) && (hedgePercentile <= 0)) {
+			return run(call);
+		}
+		if (hedgePercentile <= 0) {
+			try {
+				return await(executor.submit(call));
+			} finally {
+				call.recordElapsed();
+			}
+		}
+		return hedge(call, new TimedRead<T>(query));
+	}
+
+	/**
+	 * Execute a batch of mutations, applying the timeout. Writes are never
+	 * hedged.
+	 *
+	 * @param batch
+	 *            a mutator created with the write keyspace operator
+	 * @return the mutation result
+	 */
+	public MutationResult write(final Mutator<?> batch) {
+		Callable<MutationResult> call = new Callable<MutationResult>() {
+			@Override
+			public MutationResult call() {
+				return batch.execute();
+			}
+		};
+		if (timeoutMillis <= 0) {
+			return run(call);
+		}
+		return await(executor.submit(call));
+	}
+
+	private <T> QueryResult<T> hedge(TimedRead<T> primaryCall,
+			TimedRead<T> backupCall) {
+		CompletionService<QueryResult<T>> completion = new ExecutorCompletionService<QueryResult<T>>(
+				executor);
+		long deadline = timeoutMillis > 0 ? System.currentTimeMillis()
+				+ timeoutMillis : Long.MAX_VALUE;
+
+		Future<QueryResult<T>> primary = completion.submit(primaryCall);
+		Future<QueryResult<T>> backup = null;
+		try {
+			Future<QueryResult<T>> done = completion.poll(
+					getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+			if (done == null) {
+				logger.info("Read exceeded hedge delay, sending duplicate read");
+				backup = completion.submit(backupCall);
+			}
+
+			int outstanding = backup != null ? 2 : 1;
+			ExecutionException failure = null;
+			while (outstanding > 0) {
+				if (done == null) {
+					long wait = deadline - System.currentTimeMillis();
+					done = completion.poll(Math.max(wait, 0),
+							TimeUnit.MILLISECONDS);
+					if (done == null) {
+						throw new HTimedOutException("Read timed out after "
+								+ timeoutMillis + "ms");
+					}
+				}
+				outstanding--;
+				try {
+					return done.get();
+				} catch (ExecutionException e) {
+
+					// If the other read is still running, it might succeed
+
+					failure = e;
+					done = null;
+				}
+			}
+			throw unwrap(failure);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HectorException(e);
+		} finally {
+			primary.cancel(true);
+			primaryCall.recordElapsed();
+			if (backup != null) {
+				backup.cancel(true);
+				backupCall.recordElapsed();
+			}
+		}
+	}
+
+	/**
+	 * @return how long to wait on a read before sending the duplicate
+	 */
+	public long getHedgeDelayMillis() {
+		long delay = minHedgeDelayMillis;
+		if (readLatencies.getSampleCount() >= MIN_HEDGE_SAMPLES) {
+			delay = Math.max(delay,
+					readLatencies.getPercentile(hedgePercentile) / 1000);
+		} else if (timeoutMillis > 0) {
+			delay = Math.max(delay, timeoutMillis / 2);
+		}
+		return delay;
+	}
+
+	private <T> T await(Future<T> future) {
+		try {
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			throw new HTimedOutException("Operation timed out after "
+					+ timeoutMillis + "ms");
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new HectorException(e);
+		}
+	}
+
+	private static <T> T run(Callable<T> call) {
+		try {
+			return call.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new HectorException(e);
+		}
+	}
+
+	private static RuntimeException unwrap(ExecutionException e) {
+		if (e.getCause() instanceof RuntimeException) {
+			return (RuntimeException) e.getCause();
+		}
+		return new HectorException(e.getCause());
+	}
+
+	/**
+	 * TimedRead executes a read query and records its latency once, when the
+	 * query returns or when the read is abandoned, whichever is first.
+	 */
+	private class TimedRead<T> implements Callable<QueryResult<T>> {
+		private final Query<T> query;
+		private volatile long started = 0;
+		private final AtomicBoolean recorded = new AtomicBoolean();
+
+		TimedRead(Query<T> query) {
+			this.query = query;
+		}
+
+		@Override
+		public QueryResult<T> call() {
+			started = System.nanoTime();
+			try {
+				return query.execute();
+			} finally {
+				recordElapsed();
+			}
+		}
+
+		/**
+		 * Record the time since the read started, if it has started and
+		 * hasn't been recorded yet.
+		 */
+		void recordElapsed() {
+			long start = started;
+			if ((start != 0) && recorded.compareAndSet(false, true)) {
+				readLatencies.record((System.nanoTime() - start) / 1000);
+			}
+		}
+	}
+
+	/**
+	 * LatencyTracker keeps a fixed size window of the most recent latency
+	 * samples, in microseconds, and computes percentiles over it.
+	 */
+	public static class LatencyTracker {
+		private final long[] samples;
+		private int next = 0;
+		private int count = 0;
+
+		public LatencyTracker(int size) {
+			samples = new long[size];
+		}
+
+		public synchronized void record(long micros) {
+			samples[next] = micros;
+			next = (next + 1) % samples.length;
+			if (count < samples.length) {
+				count++;
+			}
+		}
+
+		public synchronized int getSampleCount() {
+			return count;
+		}
+
+		/**
+		 * @param percentile
+		 *            between 0 and 1
+		 * @return the latency in microseconds at the percentile, or 0 if no
+		 *         samples have been recorded
+		 */
+		public long getPercentile(double percentile) {
+			long[] sorted;
+			synchronized (this) {
+				if (count == 0) {
+					return 0;
+				}
+				sorted = Arrays.copyOf(samples, count);
+			}
+			Arrays.sort(sorted);
+			int i = (int) Math.ceil(percentile * sorted.length) - 1;
+			return sorted[Math.min(Math.max(i, 0), sorted.length - 1)];
+		}
+	}
+}
@@ -0,0 +1,491 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import static indexedcollections.IndexedCollections.ALL_COUNT;
+import static indexedcollections.IndexedCollections.be;
+import static indexedcollections.IndexedCollections.ce;
+import static indexedcollections.IndexedCollections.getEntriesRangeFinish;
+import static indexedcollections.IndexedCollections.getEntriesRangeStart;
+import static indexedcollections.IndexedCollections.getEntryValue;
+import static indexedcollections.IndexedCollections.getIndexableValue;
+import static indexedcollections.IndexedCollections.getIndexableValueCode;
+import static indexedcollections.IndexedCollections.getSearchRangeFinish;
+import static indexedcollections.IndexedCollections.getSearchRangeStart;
+import static indexedcollections.IndexedCollections.getSlice;
+import static indexedcollections.IndexedCollections.se;
+import static indexedcollections.IndexedCollections.searchContainer;
+import static me.prettyprint.hector.api.factory.HFactory.createMultigetSliceQuery;
+import indexedcollections.IndexStatistics.ColumnStatistics;
+import indexedcollections.IndexedCollections.CollectionCFSet;
+import indexedcollections.IndexedCollections.ContainerCollection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import me.prettyprint.cassandra.serializers.TypeInferringSerializer;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.beans.Rows;
+import me.prettyprint.hector.api.query.MultigetSliceQuery;
+
+import org.apache.log4j.Logger;
+
+/**
+ * QueryPlanner uses IndexStatistics to plan a search of a container with
+ * several predicates. The predicate expected to match the fewest entries
+ * drives the query with an index slice, and each remaining predicate is
+ * checked against the candidates either by intersecting with its own index
+ * slice or by probing the candidates' Item_Index_Entries, whichever is
+ * estimated to read fewer columns.
+ */
+public class QueryPlanner {
+
+	private static final Logger logger = Logger.getLogger(QueryPlanner.class
+			.getName());
+
+	/**
+	 * Estimate used for indexes with no statistics, large enough that any
+	 * index with statistics is preferred to drive the query.
+	 */
+	public static final long UNKNOWN_ESTIMATE = ALL_COUNT;
+
+	/**
+	 * Relative cost of probing one candidate's Item_Index_Entries compared to
+	 * reading one column of an index slice.
+	 */
+	public static final double PROBE_COST = 4.0;
+
+	/**
+	 * Smallest page read from the driving index slice.
+	 */
+	public static final int MIN_PAGE_SIZE = IndexedCollections.DEFAULT_COUNT;
+
+	public enum ProbeStrategy {
+		/** Read the predicate's own index slice and intersect */
+		INDEX_INTERSECT,
+		/** Multiget the candidates' Item_Index_Entries and filter */
+		ENTRIES_PROBE
+	}
+
+	private final IndexStatistics statistics;
+
+	public QueryPlanner(IndexStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Plan a search of a container.
+	 *
+	 * @param container
+	 *            the ContainerCollection (container key and collection name)
+	 * @param predicates
+	 *            the predicates, all of which must match
+	 * @return the query plan
+	 */
+	public <CK> QueryPlan plan(ContainerCollection<CK> container,
+			List<Predicate> predicates) {
+		if (predicates.isEmpty()) {
+			throw new IllegalArgumentException("No predicates to plan");
+		}
+
+		final Map<Predicate, Long> estimates = new LinkedHashMap<Predicate, Long>();
+		Map<Predicate, Double> selectivities = new LinkedHashMap<Predicate, Double>();
+		for (Predicate p : predicates) {
+			ColumnStatistics stats = statistics != null ? statistics
+					.getStatistics(container.getKey() + ":"
+							+ p.getColumnName().toString()) : null;
+			if (stats == null) {
+				estimates.put(p, UNKNOWN_ESTIMATE);
+				selectivities.put(p, 1.0);
+			} else {
+				long estimate = stats.estimateMatches(p.getStartValue(),
+						p.getEndValue(), p.isInclusive());
+				estimates.put(p, estimate);
+				selectivities.put(p, stats.getEntryCount() > 0 ? Math.min(1.0,
+						(double) estimate / stats.getEntryCount()) : 1.0);
+			}
+		}
+
+		List<Predicate> ordered = new ArrayList<Predicate>(predicates);
+		Collections.sort(ordered, new Comparator<Predicate>() {
+			@Override
+			public int compare(Predicate p1, Predicate p2) {
+				return estimates.get(p1).compareTo(estimates.get(p2));
+			}
+		});
+
+		Predicate driving = ordered.get(0);
+		QueryPlan plan = new QueryPlan(container.getKey(), driving,
+				estimates.get(driving));
+
+		double candidates = estimates.get(driving);
+		for (Predicate p : ordered.subList(1, ordered.size())) {
+			double intersectCost = estimates.get(p);
+			double probeCost = candidates * PROBE_COST;
+			ProbeStrategy strategy = intersectCost < probeCost ? ProbeStrategy.INDEX_INTERSECT
+					: ProbeStrategy.ENTRIES_PROBE;
+			plan.addProbe(new Probe(p, strategy, estimates.get(p), Math.min(
+					intersectCost, probeCost)));
+			candidates *= selectivities.get(p);
+		}
+		plan.estimatedResults = (long) Math.ceil(candidates);
+
+		logger.info(plan.explain());
+		return plan;
+	}
+
+	/**
+	 * Execute a query plan. The driving index slice is read a page at a time,
+	 * each page's candidates are checked by the probes, and reading stops as
+	 * soon as count matches are found. An intersected index slice is read
+	 * once, the first time it's needed.
+	 *
+	 * @param <IK>
+	 *            the item's key type
+	 * @param <CK>
+	 *            the container's key type
+	 * @param ko
+	 *            the keyspace operator
+	 * @param container
+	 *            the ContainerCollection the plan was made for
+	 * @param plan
+	 *            the query plan
+	 * @param count
+	 *            the maximum number of row keys to return
+	 * @param cf
+	 *            the column family set
+	 * @param containerKeySerializer
+	 *            the container key serializer
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @return the row keys of items matching every predicate, in the driving
+	 *         index's order
+	 */
+	public <IK, CK> List<IK> execute(Keyspace ko,
+			ContainerCollection<CK> container, QueryPlan plan, int count,
+			CollectionCFSet cf, Serializer<CK> containerKeySerializer,
+			Serializer<IK> itemKeySerializer) {
+
+		Predicate driving = plan.getDriving();
+		String columnIndexKey = container.getKey() + ":"
+				+ driving.getColumnName().toString();
+		DynamicComposite start = getSearchRangeStart(driving.getStartValue(),
+				null);
+		DynamicComposite finish = getSearchRangeFinish(driving.getEndValue(),
+				driving.isInclusive());
+
+		// Size the pages so that one page is expected to yield count matches
+
+		double selectivity = plan.getEstimatedResults() > 0 ? Math.min(1.0,
+				(double) plan.getEstimatedResults()
+						/ Math.max(1, plan.getDrivingEstimate())) : 1.0;
+		int pageSize = (int) Math.min(ALL_COUNT,
+				Math.max(Math.max(count, MIN_PAGE_SIZE), Math.ceil(count
+						/ selectivity)));
+
+		List<IK> results = new ArrayList<IK>();
+		Set<IK> seen = new HashSet<IK>();
+		Map<Probe, Set<IK>> intersections = new HashMap<Probe, Set<IK>>();
+		boolean continuing = false;
+		while (results.size() < count) {
+			int limit = pageSize + (continuing ? 1 : 0);
+			List<HColumn<DynamicComposite, ByteBuffer>> columns = getSlice(ko,
+					cf.getIndex(), columnIndexKey, start, finish, false, limit,
+					cf, se, ce, be, null);
+
+			// An item with a set-valued column can match more than once
+
+			List<IK> candidates = new ArrayList<IK>();
+			for (HColumn<DynamicComposite, ByteBuffer> column : columns) {
+				DynamicComposite name = column.getName();
+				if (continuing
+						&& ce.toByteBuffer(name).equals(ce.toByteBuffer(start))) {
+					continue;
+				}
+				IK key = name.get(2, itemKeySerializer);
+				if ((key != null) && seen.add(key)) {
+					candidates.add(key);
+				}
+			}
+
+			for (Probe probe : plan.getProbes()) {
+				if (candidates.isEmpty()) {
+					break;
+				}
+				Predicate p = probe.getPredicate();
+				Set<IK> matches;
+				if (probe.getStrategy() == ProbeStrategy.INDEX_INTERSECT) {
+					matches = intersections.get(probe);
+					if (matches == null) {
+						matches = new HashSet<IK>(searchContainer(ko,
+								container, p.getColumnName(),
+								p.getStartValue(), p.getEndValue(),
+								p.isInclusive(), null, ALL_COUNT, false, cf,
+								containerKeySerializer, itemKeySerializer,
+								TypeInferringSerializer.get()));
+						intersections.put(probe, matches);
+					}
+				} else {
+					matches = probeEntries(ko, candidates, p, cf,
+							itemKeySerializer);
+				}
+				List<IK> remaining = new ArrayList<IK>();
+				for (IK candidate : candidates) {
+					if (matches.contains(candidate)) {
+						remaining.add(candidate);
+					}
+				}
+				candidates = remaining;
+			}
+
+			for (IK candidate : candidates) {
+				if (results.size() >= count) {
+					break;
+				}
+				results.add(candidate);
+			}
+
+			if (columns.size() < limit) {
+				break;
+			}
+			start = columns.get(columns.size() - 1).getName();
+			continuing = true;
+		}
+		return results;
+	}
+
+	private <IK> Set<IK> probeEntries(Keyspace ko, List<IK> candidates,
+			Predicate p, CollectionCFSet cf, Serializer<IK> itemKeySerializer) {
+		Set<IK> matches = new HashSet<IK>();
+
+		for (int i = 0; i < candidates.size(); i += IndexedCollections.DEFAULT_COUNT) {
+			List<IK> batch = candidates.subList(i,
+					Math.min(i + IndexedCollections.DEFAULT_COUNT,
+							candidates.size()));
+			MultigetSliceQuery<IK, DynamicComposite, DynamicComposite> q = createMultigetSliceQuery(
+					ko, itemKeySerializer, ce, ce);
+			q.setColumnFamily(cf.getEntries());
+			q.setKeys(batch);
+			q.setRange(getEntriesRangeStart(p.getColumnName()),
+					getEntriesRangeFinish(p.getColumnName()), false, ALL_COUNT);
+			Rows<IK, DynamicComposite, DynamicComposite> rows = q.execute()
+					.get();
+			for (Row<IK, DynamicComposite, DynamicComposite> row : rows) {
+				for (HColumn<DynamicComposite, DynamicComposite> entry : row
+						.getColumnSlice().getColumns()) {
+					Object value = getEntryValue(entry.getValue());
+					if (p.matches(value)) {
+						matches.add(row.getKey());
+						break;
+					}
+				}
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Predicate is a value range on a single column, with the same semantics
+	 * as the searchContainer parameters.
+	 */
+	public static class Predicate {
+		private final Object columnName;
+		private final Object startValue;
+		private final Object endValue;
+		private final boolean inclusive;
+
+		public Predicate(Object columnName, Object startValue,
+				Object endValue, boolean inclusive) {
+			this.columnName = columnName;
+			this.startValue = startValue;
+			this.endValue = endValue;
+			this.inclusive = inclusive;
+		}
+
+		public static Predicate equalTo(Object columnName, Object value) {
+			return new Predicate(columnName, value, value, true);
+		}
+
+		public Object getColumnName() {
+			return columnName;
+		}
+
+		public Object getStartValue() {
+			return startValue;
+		}
+
+		public Object getEndValue() {
+			return endValue;
+		}
+
+		public boolean isInclusive() {
+			return inclusive;
+		}
+
+		/**
+		 * @param columnValue
+		 *            an item's column value
+		 * @return true if the value is in the predicate's range
+		 */
+		public boolean matches(Object columnValue) {
+			if (columnValue == null) {
+				return false;
+			}
+			return IndexStatistics.inRange(getIndexableValueCode(columnValue),
+					getIndexableValue(columnValue), startValue, endValue,
+					inclusive);
+		}
+
+		@Override
+		public String toString() {
+			if ((startValue != null) && inclusive
+					&& startValue.equals(endValue)) {
+				return columnName + " = '" + startValue + "'";
+			}
+			StringBuilder s = new StringBuilder().append(columnName);
+			if (startValue != null) {
+				s.append(" >= '").append(startValue).append("'");
+			}
+			if (endValue != null) {
+				s.append(inclusive ? " <= '" : " < '").append(endValue)
+						.append("'");
+			}
+			return s.toString();
+		}
+	}
+
+	/**
+	 * Probe is the plan step checking one non-driving predicate.
+	 */
+	public static class Probe {
+		private final Predicate predicate;
+		private final ProbeStrategy strategy;
+		private final long estimatedMatches;
+		private final double estimatedCost;
+
+		Probe(Predicate predicate, ProbeStrategy strategy,
+				long estimatedMatches, double estimatedCost) {
+			this.predicate = predicate;
+			this.strategy = strategy;
+			this.estimatedMatches = estimatedMatches;
+			this.estimatedCost = estimatedCost;
+		}
+
+		public Predicate getPredicate() {
+			return predicate;
+		}
+
+		public ProbeStrategy getStrategy() {
+			return strategy;
+		}
+
+		public long getEstimatedMatches() {
+			return estimatedMatches;
+		}
+
+		public double getEstimatedCost() {
+			return estimatedCost;
+		}
+	}
+
+	/**
+	 * QueryPlan is the driving index slice followed by the probes for the
+	 * remaining predicates, in the order they're applied.
+	 */
+	public static class QueryPlan {
+		private final String containerKey;
+		private final Predicate driving;
+		private final long drivingEstimate;
+		private final List<Probe> probes = new ArrayList<Probe>();
+		private long estimatedResults;
+
+		QueryPlan(String containerKey, Predicate driving, long drivingEstimate) {
+			this.containerKey = containerKey;
+			this.driving = driving;
+			this.drivingEstimate = drivingEstimate;
+			estimatedResults = drivingEstimate;
+		}
+
+		void addProbe(Probe probe) {
+			probes.add(probe);
+		}
+
+		public Predicate getDriving() {
+			return driving;
+		}
+
+		public long getDrivingEstimate() {
+			return drivingEstimate;
+		}
+
+		public List<Probe> getProbes() {
+			return probes;
+		}
+
+		public long getEstimatedResults() {
+			return estimatedResults;
+		}
+
+		/**
+		 * @return a readable description of the plan and its estimates
+		 */
+		public String explain() {
+			StringBuilder s = new StringBuilder();
+			s.append("SEARCH ").append(containerKey).append("\n");
+			s.append("  DRIVE ").append(driving).append(" (est. ")
+					.append(estimate(drivingEstimate)).append(" entries)\n");
+			for (Probe probe : probes) {
+				s.append("  ")
+						.append(probe.getStrategy() == ProbeStrategy.INDEX_INTERSECT ? "INTERSECT "
+								: "PROBE ").append(probe.getPredicate())
+						.append(" (est. ")
+						.append(estimate(probe.getEstimatedMatches()))
+						.append(" entries, cost ")
+						.append(Math.round(probe.getEstimatedCost()))
+						.append(")\n");
+			}
+			s.append("  RESULTS est. ").append(estimate(estimatedResults));
+			return s.toString();
+		}
+
+		private static String estimate(long n) {
+			return n >= UNKNOWN_ESTIMATE ? "unknown" : Long.toString(n);
+		}
+
+		@Override
+		public String toString() {
+			return explain();
+		}
+	}
+}
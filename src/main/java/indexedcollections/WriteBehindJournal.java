@@ -0,0 +1,870 @@
+package indexedcollections;
+
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+
+import static indexedcollections.IndexedCollections.ALL_COUNT;
+import static indexedcollections.IndexedCollections.addItemColumnMutations;
+import static indexedcollections.IndexedCollections.addItemValueMutation;
+import static indexedcollections.IndexedCollections.addStaleEntryDeletions;
+import static indexedcollections.IndexedCollections.addUnindexedEntryDeletions;
+import static indexedcollections.IndexedCollections.afterItemColumnUpdate;
+import static indexedcollections.IndexedCollections.be;
+import static indexedcollections.IndexedCollections.ce;
+import static indexedcollections.IndexedCollections.getEntriesRangeFinish;
+import static indexedcollections.IndexedCollections.getEntriesRangeStart;
+import static indexedcollections.IndexedCollections.getIndexedContainers;
+import static indexedcollections.IndexedCollections.invalidateCachedRows;
+import static indexedcollections.IndexedCollections.newTimeUUID;
+import static me.prettyprint.hector.api.factory.HFactory.createMultigetSliceQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import indexedcollections.IndexedCollections.CollectionCFSet;
+import indexedcollections.IndexedCollections.ContainerCollection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.Row;
+import me.prettyprint.hector.api.beans.Rows;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.MultigetSliceQuery;
+
+import org.apache.log4j.Logger;
+
+/**
+ * WriteBehindJournal is a write-behind mode for setItemColumn. Each update is
+ * appended to a local, memory-mapped, segmented journal and the call returns
+ * without touching Cassandra. A background flusher drains the journal in
+ * large Mutator batches, keeping only the last update of each item column in
+ * a batch, and truncates the segments it has applied.
+ *
+ * Each journal record carries the ts_uuid and timestamp the update was
+ * accepted with, so when unapplied records are replayed at startup they
+ * produce exactly the same index entries and applying a record twice has no
+ * effect.
+ *
+ * Records are in the OS page cache as soon as setItemColumn returns, which
+ * survives a JVM crash. To also survive an OS crash, enable sync on write.
+ *
+ * @param <CK>
+ *            the container's key type
+ * @param <IK>
+ *            the item's key type
+ * @param <N>
+ *            the item's column name type
+ * @param <V>
+ *            the item's column value type
+ */
+public class WriteBehindJournal<CK, IK, N, V> {
+
+	private static final Logger logger = Logger
+			.getLogger(WriteBehindJournal.class.getName());
+
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	public static final long DEFAULT_FLUSH_INTERVAL = 100;
+	public static final int DEFAULT_MAX_BATCH_UPDATES = 1000;
+	public static final long RETRY_DELAY = 1000;
+
+	private static final int MAGIC = 0x494a4e4c;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int ACKED_OFFSET = 8;
+	private static final int RECORD_HEADER_SIZE = 12;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File dir;
+	private final Keyspace ko;
+	private final CollectionCFSet cf;
+	private final Serializer<IK> itemKeySerializer;
+	private final Serializer<N> nameSerializer;
+	private final Serializer<V> valueSerializer;
+	private final Serializer<CK> containerKeySerializer;
+
+	private int segmentSize = DEFAULT_SEGMENT_SIZE;
+	private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+	private int maxBatchUpdates = DEFAULT_MAX_BATCH_UPDATES;
+	private boolean syncOnWrite = false;
+	private int maxBacklog = 0;
+	private AdaptiveWriteController writeController;
+	private double mutationsPerUpdate = 1;
+
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final LinkedList<Update> pending = new LinkedList<Update>();
+	private final Object flushLock = new Object();
+	private long nextSegment = 0;
+	private long appliedCount = 0;
+	private volatile boolean running = false;
+	private Thread flusher;
+
+	/**
+	 * @param dir
+	 *            the directory the journal segments are kept in
+	 * @param ko
+	 *            the keyspace operator
+	 * @param cf
+	 *            the column families to use
+	 * @param itemKeySerializer
+	 *            the item key serializer
+	 * @param nameSerializer
+	 *            the column name serializer
+	 * @param valueSerializer
+	 *            the column value serializer
+	 * @param containerKeySerializer
+	 *            the container key serializer
+	 */
+	public WriteBehindJournal(File dir, Keyspace ko, CollectionCFSet cf,
+			Serializer<IK> itemKeySerializer, Serializer<N> nameSerializer,
+			Serializer<V> valueSerializer, Serializer<CK> containerKeySerializer) {
+		this.dir = dir;
+		this.ko = ko;
+		this.cf = cf;
+		this.itemKeySerializer = itemKeySerializer;
+		this.nameSerializer = nameSerializer;
+		this.valueSerializer = valueSerializer;
+		this.containerKeySerializer = containerKeySerializer;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * @param segmentSize
+	 *            the size in bytes of each journal segment file
+	 */
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * @param flushInterval
+	 *            how long, in milliseconds, the flusher waits for updates to
+	 *            accumulate before writing a batch
+	 */
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	public int getMaxBatchUpdates() {
+		return maxBatchUpdates;
+	}
+
+	/**
+	 * @param maxBatchUpdates
+	 *            the maximum number of journal records applied in one batch
+	 */
+	public void setMaxBatchUpdates(int maxBatchUpdates) {
+		this.maxBatchUpdates = maxBatchUpdates;
+	}
+
+	public boolean isSyncOnWrite() {
+		return syncOnWrite;
+	}
+
+	/**
+	 * @param syncOnWrite
+	 *            whether each record is forced to disk before setItemColumn
+	 *            returns
+	 */
+	public void setSyncOnWrite(boolean syncOnWrite) {
+		this.syncOnWrite = syncOnWrite;
+	}
+
+	public synchronized int getMaxBacklog() {
+		return maxBacklog;
+	}
+
+	/**
+	 * @param maxBacklog
+	 *            the number of unapplied records at which setItemColumn waits
+	 *            for the flusher to catch up, or 0 for no limit
+	 */
+	public synchronized void setMaxBacklog(int maxBacklog) {
+		this.maxBacklog = maxBacklog;
+		notifyAll();
+	}
+
+	public AdaptiveWriteController getWriteController() {
+		return writeController;
+	}
+
+	/**
+	 * @param writeController
+	 *            the controller that sizes and executes the flusher's
+	 *            batches, or null to flush maxBatchUpdates records at a time
+	 */
+	public void setWriteController(AdaptiveWriteController writeController) {
+		this.writeController = writeController;
+	}
+
+	/**
+	 * Open the journal, queueing any records that weren't applied before the
+	 * last shutdown, and start the background flusher.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		if (running) {
+			return;
+		}
+		dir.mkdirs();
+
+		File[] files = dir.listFiles();
+		List<Long> seqs = new ArrayList<Long>();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith("journal-") && name.endsWith(".seg")) {
+					seqs.add(Long.parseLong(name.substring(8,
+							name.length() - 4)));
+				}
+			}
+		}
+		Collections.sort(seqs);
+
+		for (long seq : seqs) {
+			Segment segment = openSegment(seq);
+			segments.add(segment);
+			replay(segment);
+			nextSegment = seq + 1;
+		}
+
+		if (!pending.isEmpty()) {
+			logger.info("Replaying " + pending.size()
+					+ " unapplied journal records");
+		}
+
+		running = true;
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "WriteBehindJournal-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Stop the flusher after applying everything in the journal.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		Thread t;
+		synchronized (this) {
+			running = false;
+			notifyAll();
+			t = flusher;
+		}
+		if (t != null) {
+			t.join();
+		}
+		synchronized (this) {
+			for (Segment segment : segments) {
+				segment.close();
+			}
+			segments.clear();
+		}
+	}
+
+	/**
+	 * Journal an update of an item column. The update is applied to
+	 * Cassandra by the background flusher, with the same results as
+	 * IndexedCollections.setItemColumn.
+	 *
+	 * @param itemKey
+	 *            the item row key
+	 * @param columnName
+	 *            the name of the column to set
+	 * @param columnValue
+	 *            the value to set the column to
+	 * @param containers
+	 *            the set of containers the item is in
+	 * @throws IOException
+	 */
+	public void setItemColumn(IK itemKey, N columnName, V columnValue,
+			Set<ContainerCollection<CK>> containers) throws IOException {
+
+		Update update = new Update(itemKey, columnName, columnValue,
+				containers, newTimeUUID(), HFactory.createClock(),
+				System.currentTimeMillis());
+		ByteBuffer record = encode(update);
+
+		synchronized (this) {
+
+			// Hold the caller back rather than let the backlog grow without
+			// bound while Cassandra is slow
+
+			while (running && (maxBacklog > 0) && (pending.size() >= maxBacklog)) {
+				notifyAll();
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"Interrupted waiting for the journal backlog");
+				}
+			}
+			if (!running) {
+				throw new IllegalStateException("Journal is not open");
+			}
+			Segment segment = segments.isEmpty() ? null : segments.getLast();
+			if ((segment == null) || (segment.remaining() < record.remaining())) {
+				if (HEADER_SIZE + record.remaining() > segmentSize) {
+					throw new IllegalArgumentException("Update of "
+							+ record.remaining()
+							+ " bytes is larger than the journal segment size");
+				}
+				segment = openSegment(nextSegment++);
+				segments.add(segment);
+			}
+			update.segment = segment;
+			update.end = segment.append(record, syncOnWrite);
+			pending.add(update);
+			if (pending.size() >= maxBatchUpdates) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Apply everything currently in the journal before returning.
+	 */
+	public void flush() {
+		while (flushOnce() > 0) {
+		}
+	}
+
+	/**
+	 * @return the number of journal records waiting to be applied
+	 */
+	public synchronized int getBacklogDepth() {
+		return pending.size();
+	}
+
+	/**
+	 * @return how long, in milliseconds, the oldest unapplied record has been
+	 *         waiting, or 0 if the journal is empty
+	 */
+	public synchronized long getFlushLag() {
+		if (pending.isEmpty()) {
+			return 0;
+		}
+		return System.currentTimeMillis() - pending.getFirst().appendedAt;
+	}
+
+	/**
+	 * @return the number of journal records applied since the journal was
+	 *         opened
+	 */
+	public synchronized long getAppliedCount() {
+		return appliedCount;
+	}
+
+	/**
+	 * @return the number of journal segment files
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	private void flushLoop() {
+		while (true) {
+			synchronized (this) {
+				if (running && (pending.size() < maxBatchUpdates)) {
+					try {
+						wait(flushInterval);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				if (!running && pending.isEmpty()) {
+					return;
+				}
+			}
+			try {
+				flushOnce();
+			} catch (RuntimeException e) {
+				logger.error("Journal flush failed, "
+						+ getBacklogDepth() + " records waiting", e);
+				try {
+					Thread.sleep(RETRY_DELAY);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply the oldest records in the journal as one batch.
+	 *
+	 * @return the number of records applied
+	 */
+	int flushOnce() {
+		synchronized (flushLock) {
+			List<Update> drained;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					return 0;
+				}
+				drained = new ArrayList<Update>(pending.subList(0,
+						Math.min(getFlushBatchUpdates(), pending.size())));
+			}
+
+			// Appends carry on while the batch is written, only the flusher
+			// removes records from the head of the queue
+
+			apply(drained);
+
+			synchronized (this) {
+				pending.subList(0, drained.size()).clear();
+				appliedCount += drained.size();
+				Update last = drained.get(drained.size() - 1);
+				acknowledge(last.segment, last.end);
+				notifyAll();
+			}
+			return drained.size();
+		}
+	}
+
+	/**
+	 * @return the number of records to apply in the next batch, which with a
+	 *         write controller is its batch size in mutations divided by the
+	 *         mutations per record of the last batch
+	 */
+	private int getFlushBatchUpdates() {
+		if (writeController == null) {
+			return maxBatchUpdates;
+		}
+		return Math.max(1, Math.min(maxBatchUpdates,
+				(int) (writeController.getBatchSize() / mutationsPerUpdate)));
+	}
+
+	/**
+	 * Apply a set of updates. Only the last update of each item column is
+	 * written, since it will delete all of the earlier entries anyway.
+	 */
+	private void apply(List<Update> updates) {
+		Map<List<ByteBuffer>, Update> latest = new LinkedHashMap<List<ByteBuffer>, Update>();
+		for (Update update : updates) {
+			List<ByteBuffer> key = Arrays.asList(
+					itemKeySerializer.toByteBuffer(update.itemKey),
+					nameSerializer.toByteBuffer(update.columnName));
+			latest.remove(key);
+			latest.put(key, update);
+		}
+
+		// Read the previous entries for every item column in the batch with
+		// a multiget per column name. Columns that aren't indexed any more
+		// can still have entries left from when they were.
+
+		final Map<Update, Set<ContainerCollection<CK>>> indexed = new HashMap<Update, Set<ContainerCollection<CK>>>();
+		Map<N, Set<IK>> itemsByColumn = new LinkedHashMap<N, Set<IK>>();
+		for (Update update : latest.values()) {
+			Set<ContainerCollection<CK>> containers = getIndexedContainers(
+					update.columnName, update.containers, cf);
+			if (!containers.isEmpty() || (cf.getIndexDefinitions() == null)) {
+				indexed.put(update, containers);
+			}
+
+			Set<IK> items = itemsByColumn.get(update.columnName);
+			if (items == null) {
+				items = new LinkedHashSet<IK>();
+				itemsByColumn.put(update.columnName, items);
+			}
+			items.add(update.itemKey);
+		}
+		final Map<N, Map<IK, List<HColumn<DynamicComposite, DynamicComposite>>>> entries = new HashMap<N, Map<IK, List<HColumn<DynamicComposite, DynamicComposite>>>>();
+		for (Map.Entry<N, Set<IK>> column : itemsByColumn.entrySet()) {
+			entries.put(column.getKey(),
+					getEntries(column.getKey(), column.getValue()));
+		}
+
+		// Grouped by row key so the mutations for an item are together
+
+		final List<Update> ordered = new ArrayList<Update>(latest.values());
+		Collections.sort(ordered, new Comparator<Update>() {
+			@Override
+			public int compare(Update u1, Update u2) {
+				return itemKeySerializer.toByteBuffer(u1.itemKey).compareTo(
+						itemKeySerializer.toByteBuffer(u2.itemKey));
+			}
+		});
+
+		final List<List<HColumn<DynamicComposite, DynamicComposite>>> removed = new ArrayList<List<HColumn<DynamicComposite, DynamicComposite>>>();
+		try {
+			if (writeController != null) {
+
+				// A retried batch is built again, executing a Mutator
+				// clears it
+
+				writeController.execute(new Callable<Mutator<?>>() {
+					@Override
+					public Mutator<?> call() {
+						return createBatch(ordered, indexed, entries, removed);
+					}
+				});
+			} else {
+				createBatch(ordered, indexed, entries, removed).execute();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HectorException(e);
+		} finally {
+			for (Update update : ordered) {
+				invalidateCachedRows(update.itemKey, update.columnName,
+						update.containers, cf, itemKeySerializer);
+			}
+		}
+
+		for (int i = 0; i < ordered.size(); i++) {
+			Update update = ordered.get(i);
+			if (removed.get(i) != null) {
+				afterItemColumnUpdate(update.itemKey, update.columnName,
+						update.columnValue, indexed.get(update),
+						removed.get(i), update.ts_uuid, update.timestamp, cf);
+			}
+		}
+	}
+
+	/**
+	 * Build the batch for a set of updates, given their previous entries,
+	 * filling in the previous entries each update replaces.
+	 */
+	private Mutator<ByteBuffer> createBatch(List<Update> ordered,
+			Map<Update, Set<ContainerCollection<CK>>> indexed,
+			Map<N, Map<IK, List<HColumn<DynamicComposite, DynamicComposite>>>> entries,
+			List<List<HColumn<DynamicComposite, DynamicComposite>>> removed) {
+		Mutator<ByteBuffer> batch = createMutator(ko, be);
+		removed.clear();
+		for (Update update : ordered) {
+			Set<ContainerCollection<CK>> containers = indexed.get(update);
+			List<HColumn<DynamicComposite, DynamicComposite>> previous = entries
+					.get(update.columnName).get(update.itemKey);
+			if (previous == null) {
+				previous = Collections.emptyList();
+			}
+			if (containers == null) {
+				addStaleEntryDeletions(batch, update.itemKey,
+						update.columnName, update.containers, previous,
+						update.timestamp, cf, itemKeySerializer);
+				addItemValueMutation(batch, update.itemKey, update.columnName,
+						update.columnValue, update.timestamp, cf,
+						itemKeySerializer, nameSerializer, valueSerializer);
+				removed.add(null);
+				continue;
+			}
+			addUnindexedEntryDeletions(batch, update.itemKey,
+					update.columnName, update.containers, containers, previous,
+					update.timestamp, cf);
+			removed.add(addItemColumnMutations(batch, update.itemKey,
+					update.columnName, update.columnValue, containers,
+					previous, update.ts_uuid, update.timestamp, cf,
+					itemKeySerializer, nameSerializer, valueSerializer));
+		}
+		mutationsPerUpdate = Math.max(1.0,
+				(double) batch.getPendingMutationCount() / ordered.size());
+		return batch;
+	}
+
+	private Map<IK, List<HColumn<DynamicComposite, DynamicComposite>>> getEntries(
+			N columnName, Set<IK> items) {
+		Map<IK, List<HColumn<DynamicComposite, DynamicComposite>>> entries = new HashMap<IK, List<HColumn<DynamicComposite, DynamicComposite>>>();
+		MultigetSliceQuery<IK, DynamicComposite, DynamicComposite> q = createMultigetSliceQuery(
+				ko, itemKeySerializer, ce, ce);
+		q.setColumnFamily(cf.getEntries());
+		q.setKeys(items);
+		q.setRange(getEntriesRangeStart(columnName),
+				getEntriesRangeFinish(columnName), false, ALL_COUNT);
+		Rows<IK, DynamicComposite, DynamicComposite> rows = q.execute().get();
+		for (Row<IK, DynamicComposite, DynamicComposite> row : rows) {
+			entries.put(row.getKey(), row.getColumnSlice().getColumns());
+		}
+		return entries;
+	}
+
+	/**
+	 * Record that the journal has been applied up to an offset in a segment,
+	 * deleting any earlier segments.
+	 */
+	private void acknowledge(Segment segment, int end) {
+		segment.acknowledge(end);
+		while (segments.getFirst() != segment) {
+			Segment applied = segments.removeFirst();
+			applied.close();
+			if (!applied.file.delete()) {
+				logger.warn("Unable to delete journal segment " + applied.file);
+			}
+		}
+	}
+
+	private Segment openSegment(long seq) throws IOException {
+		File file = new File(dir, String.format("journal-%016d.seg", seq));
+		boolean created = !file.exists();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		if (created) {
+			raf.setLength(segmentSize);
+		}
+		FileChannel channel = raf.getChannel();
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+				0, raf.length());
+		if (created) {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			buffer.putLong(ACKED_OFFSET, HEADER_SIZE);
+			buffer.force();
+		} else if (buffer.getInt(0) != MAGIC) {
+			raf.close();
+			throw new IOException(file + " is not a journal segment");
+		}
+		return new Segment(file, raf, buffer);
+	}
+
+	/**
+	 * Queue the unapplied records of a segment and position the segment for
+	 * appends after its last valid record.
+	 */
+	private void replay(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		int position = (int) buffer.getLong(ACKED_OFFSET);
+		while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if ((length <= 0)
+					|| (position + RECORD_HEADER_SIZE + length > buffer
+							.capacity())) {
+				break;
+			}
+			ByteBuffer payload = buffer.duplicate();
+			payload.position(position + RECORD_HEADER_SIZE);
+			payload.limit(position + RECORD_HEADER_SIZE + length);
+			ByteBuffer data = payload.slice();
+			if (crc(data) != buffer.getLong(position + 4)) {
+
+				// A torn write at the end of the journal, the update never
+				// returned to the caller
+
+				logger.warn("Ignoring incomplete record at " + position
+						+ " in " + segment.file);
+				break;
+			}
+			Update update = decode(data);
+			position += RECORD_HEADER_SIZE + length;
+			update.segment = segment;
+			update.end = position;
+			pending.add(update);
+		}
+		segment.writePosition = position;
+	}
+
+	private ByteBuffer encode(Update update) {
+		List<ByteBuffer> fields = new ArrayList<ByteBuffer>();
+		fields.add(itemKeySerializer.toByteBuffer(update.itemKey));
+		fields.add(nameSerializer.toByteBuffer(update.columnName));
+		fields.add(update.columnValue != null ? valueSerializer
+				.toByteBuffer(update.columnValue) : null);
+		for (ContainerCollection<CK> container : update.containers) {
+			fields.add(containerKeySerializer.toByteBuffer(container
+					.getOwnerKey()));
+			fields.add(ByteBuffer.wrap(container.getCollectionName().getBytes(
+					UTF8)));
+		}
+
+		int length = 8 * 4 + 4;
+		for (ByteBuffer field : fields) {
+			length += 4 + (field != null ? field.remaining() : 0);
+		}
+
+		ByteBuffer data = ByteBuffer.allocate(length);
+		data.putLong(update.appendedAt);
+		data.putLong(update.timestamp);
+		data.putLong(update.ts_uuid.getMostSignificantBits());
+		data.putLong(update.ts_uuid.getLeastSignificantBits());
+		data.putInt(update.containers.size());
+		for (ByteBuffer field : fields) {
+			if (field == null) {
+				data.putInt(-1);
+			} else {
+				data.putInt(field.remaining());
+				data.put(field.duplicate());
+			}
+		}
+		data.flip();
+
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+		record.putInt(length);
+		record.putLong(crc(data));
+		record.put(data);
+		record.flip();
+		return record;
+	}
+
+	private Update decode(ByteBuffer data) {
+		long appendedAt = data.getLong();
+		long timestamp = data.getLong();
+		UUID ts_uuid = new UUID(data.getLong(), data.getLong());
+		int containerCount = data.getInt();
+
+		IK itemKey = itemKeySerializer.fromByteBuffer(readField(data));
+		N columnName = nameSerializer.fromByteBuffer(readField(data));
+		ByteBuffer value = readField(data);
+		V columnValue = value != null ? valueSerializer.fromByteBuffer(value)
+				: null;
+
+		Set<ContainerCollection<CK>> containers = new LinkedHashSet<ContainerCollection<CK>>();
+		for (int i = 0; i < containerCount; i++) {
+			CK ownerKey = containerKeySerializer.fromByteBuffer(readField(data));
+			ByteBuffer name = readField(data);
+			byte[] bytes = new byte[name.remaining()];
+			name.get(bytes);
+			containers.add(new ContainerCollection<CK>(ownerKey, new String(
+					bytes, UTF8)));
+		}
+
+		return new Update(itemKey, columnName, columnValue, containers,
+				ts_uuid, timestamp, appendedAt);
+	}
+
+	private static ByteBuffer readField(ByteBuffer data) {
+		int length = data.getInt();
+		if (length < 0) {
+			return null;
+		}
+		ByteBuffer field = data.slice();
+		field.limit(length);
+		data.position(data.position() + length);
+		return field;
+	}
+
+	private static long crc(ByteBuffer data) {
+		CRC32 crc = new CRC32();
+		ByteBuffer b = data.duplicate();
+		byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		crc.update(bytes);
+		return crc.getValue();
+	}
+
+	/**
+	 * Update is one journaled setItemColumn call.
+	 */
+	private class Update {
+		final IK itemKey;
+		final N columnName;
+		final V columnValue;
+		final Set<ContainerCollection<CK>> containers;
+		final UUID ts_uuid;
+		final long timestamp;
+		final long appendedAt;
+		Segment segment;
+		int end;
+
+		Update(IK itemKey, N columnName, V columnValue,
+				Set<ContainerCollection<CK>> containers, UUID ts_uuid,
+				long timestamp, long appendedAt) {
+			this.itemKey = itemKey;
+			this.columnName = columnName;
+			this.columnValue = columnValue;
+			this.containers = containers;
+			this.ts_uuid = ts_uuid;
+			this.timestamp = timestamp;
+			this.appendedAt = appendedAt;
+		}
+	}
+
+	/**
+	 * Segment is one memory-mapped journal file. The header holds the offset
+	 * up to which the segment's records have been applied.
+	 */
+	private static class Segment {
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+		int writePosition = HEADER_SIZE;
+
+		Segment(File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+			this.file = file;
+			this.raf = raf;
+			this.buffer = buffer;
+		}
+
+		int remaining() {
+			return buffer.capacity() - writePosition;
+		}
+
+		int append(ByteBuffer record, boolean sync) {
+			ByteBuffer b = buffer.duplicate();
+			b.position(writePosition);
+			b.put(record.duplicate());
+			writePosition = b.position();
+			if (sync) {
+				buffer.force();
+			}
+			return writePosition;
+		}
+
+		void acknowledge(int offset) {
+			buffer.putLong(ACKED_OFFSET, offset);
+		}
+
+		void close() {
+			buffer.force();
+			try {
+				raf.close();
+			} catch (IOException e) {
+				logger.warn("Unable to close journal segment " + file, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,473 @@
+package indexedcollections;
+
+import static indexedcollections.IndexedCollections.be;
+import static indexedcollections.IndexedCollections.ce;
+import static indexedcollections.IndexedCollections.compareIndexableValues;
+import static indexedcollections.IndexedCollections.getIndexableValue;
+import static indexedcollections.IndexedCollections.le;
+import static indexedcollections.IndexedCollections.se;
+import static indexedcollections.IndexedCollections.ue;
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createColumnQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import static me.prettyprint.hector.api.factory.HFactory.createSliceQuery;
+import indexedcollections.IndexedCollections.CollectionCFSet;
+import indexedcollections.IndexedCollections.ContainerCollection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.query.ColumnQuery;
+import me.prettyprint.hector.api.query.SliceQuery;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Standalone load generator for IndexedCollections, run against the same
+ * embedded Cassandra as IndexTest. It populates a set of containers with
+ * items, runs a mix of setItemColumn and searchContainer calls from a pool of
+ * threads with a Zipf distributed choice of items and containers, and then
+ * reports throughput, latency percentiles per operation type, and the stale,
+ * duplicate and missing index entries left behind.
+ *
+ * Options are given as name=value arguments, for example:
+ *
+ * <pre>
+ * IndexLoadGenerator items=10000 containers=100 fanout=3 skew=1.1 reads=0.8 threads=16 duration=60
+ * </pre>
+ */
+public class IndexLoadGenerator {
+
+	private static final Logger logger = Logger
+			.getLogger(IndexLoadGenerator.class.getName());
+
+	int items = 10000;
+	int containers = 100;
+	int fanout = 3;
+	double skew = 1.0;
+	double reads = 0.5;
+	int columns = 4;
+	int cardinality = 1000;
+	String[] valueTypes = { "string", "long", "uuid" };
+	int threads = 8;
+	int duration = 30;
+	int warmup = 5;
+	int searchCount = 50;
+	long seed = 0;
+
+	final CollectionCFSet cf = IndexedCollections.defaultCFSet;
+	Keyspace ko;
+
+	final List<UUID> itemKeys = new ArrayList<UUID>();
+	final List<ContainerCollection<UUID>> containerKeys = new ArrayList<ContainerCollection<UUID>>();
+	final Map<UUID, Set<ContainerCollection<UUID>>> memberships = new HashMap<UUID, Set<ContainerCollection<UUID>>>();
+	final Set<String> written = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	final Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+	final AtomicLong errors = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		IndexLoadGenerator generator = new IndexLoadGenerator();
+		generator.configure(args);
+
+		IndexTest.setup();
+		try {
+			generator.ko = IndexTest.ko;
+			generator.populate();
+			generator.run();
+			generator.report();
+			generator.verify();
+		} finally {
+			IndexTest.teardown();
+		}
+	}
+
+	void configure(String[] args) {
+		for (String arg : args) {
+			int i = arg.indexOf('=');
+			if (i < 0) {
+				throw new IllegalArgumentException("Expected name=value: " + arg);
+			}
+			String name = arg.substring(0, i);
+			String value = arg.substring(i + 1);
+			if ("items".equals(name)) {
+				items = Integer.parseInt(value);
+			} else if ("containers".equals(name)) {
+				containers = Integer.parseInt(value);
+			} else if ("fanout".equals(name)) {
+				fanout = Integer.parseInt(value);
+			} else if ("skew".equals(name)) {
+				skew = Double.parseDouble(value);
+			} else if ("reads".equals(name)) {
+				reads = Double.parseDouble(value);
+			} else if ("columns".equals(name)) {
+				columns = Integer.parseInt(value);
+			} else if ("cardinality".equals(name)) {
+				cardinality = Integer.parseInt(value);
+			} else if ("types".equals(name)) {
+				valueTypes = value.split(",");
+			} else if ("threads".equals(name)) {
+				threads = Integer.parseInt(value);
+			} else if ("duration".equals(name)) {
+				duration = Integer.parseInt(value);
+			} else if ("warmup".equals(name)) {
+				warmup = Integer.parseInt(value);
+			} else if ("searchCount".equals(name)) {
+				searchCount = Integer.parseInt(value);
+			} else if ("seed".equals(name)) {
+				seed = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + name);
+			}
+		}
+		fanout = Math.min(fanout, containers);
+	}
+
+	/**
+	 * Create the containers and items, adding each item to fanout containers
+	 * picked with the same skew as the workload so some containers are hot.
+	 */
+	void populate() {
+		long start = System.currentTimeMillis();
+		Random random = new Random(seed);
+		ZipfDistribution containerDistribution = new ZipfDistribution(
+				containers, skew);
+
+		for (int i = 0; i < containers; i++) {
+			containerKeys.add(new ContainerCollection<UUID>(
+					IndexedCollections.newTimeUUID(), "items"));
+		}
+
+		for (int i = 0; i < items; i++) {
+			UUID itemKey = IndexedCollections.newTimeUUID();
+			createMutator(ko, ue).insert(itemKey, cf.getItem(),
+					createColumn("type", "item", se, se));
+
+			Set<ContainerCollection<UUID>> itemContainers = new LinkedHashSet<ContainerCollection<UUID>>();
+			while (itemContainers.size() < fanout) {
+				itemContainers.add(containerKeys.get(containerDistribution
+						.next(random)));
+			}
+			for (ContainerCollection<UUID> container : itemContainers) {
+				IndexedCollections.addItemToCollection(ko, container, itemKey,
+						cf, ue);
+			}
+
+			itemKeys.add(itemKey);
+			memberships.put(itemKey, itemContainers);
+		}
+
+		logger.info("Populated " + items + " items in " + containers
+				+ " containers in " + (System.currentTimeMillis() - start)
+				+ "ms");
+	}
+
+	void run() throws InterruptedException {
+		histograms.put("setItemColumn", new LatencyHistogram());
+		histograms.put("searchContainer", new LatencyHistogram());
+
+		final long warmupEnd = System.currentTimeMillis() + warmup * 1000L;
+		final long end = warmupEnd + duration * 1000L;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(seed + t + 1);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					ZipfDistribution itemDistribution = new ZipfDistribution(
+							items, skew);
+					ZipfDistribution containerDistribution = new ZipfDistribution(
+							containers, skew);
+					long now;
+					while ((now = System.currentTimeMillis()) < end) {
+						boolean read = random.nextDouble() < reads;
+						long begin = System.nanoTime();
+						try {
+							if (read) {
+								search(containerKeys.get(containerDistribution
+										.next(random)), random);
+							} else {
+								write(itemKeys.get(itemDistribution
+										.next(random)), random);
+							}
+						} catch (RuntimeException e) {
+							errors.incrementAndGet();
+							logger.error("Operation failed", e);
+							continue;
+						}
+						if (now >= warmupEnd) {
+							histograms.get(
+									read ? "searchContainer" : "setItemColumn")
+									.record((System.nanoTime() - begin) / 1000);
+						}
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(warmup + duration + 60, TimeUnit.SECONDS);
+	}
+
+	void write(UUID itemKey, Random random) {
+		int column = random.nextInt(columns);
+		String columnName = "column" + column;
+		String type = valueTypes[column % valueTypes.length];
+		setItemColumn(itemKey, columnName, randomValue(type, random), type);
+		written.add(itemKey + ":" + columnName);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <V> void setItemColumn(UUID itemKey, String columnName, V value,
+			String type) {
+		IndexedCollections.setItemColumn(ko, itemKey, columnName, value,
+				memberships.get(itemKey), cf, ue, se,
+				(Serializer<V>) getSerializer(type), ue);
+	}
+
+	void search(ContainerCollection<UUID> container, Random random) {
+		int column = random.nextInt(columns);
+		String type = valueTypes[column % valueTypes.length];
+		IndexedCollections.searchContainer(ko, container, "column" + column,
+				randomValue(type, random), null, false, null, searchCount,
+				false, cf, ue, ue, se);
+	}
+
+	Object randomValue(String type, Random random) {
+		if ("long".equals(type)) {
+			return (long) random.nextInt(cardinality);
+		} else if ("uuid".equals(type)) {
+			return IndexedCollections.newTimeUUID();
+		}
+		return "value" + random.nextInt(cardinality);
+	}
+
+	static Serializer<?> getSerializer(String type) {
+		if ("long".equals(type)) {
+			return le;
+		} else if ("uuid".equals(type)) {
+			return ue;
+		}
+		return se;
+	}
+
+	void report() {
+		System.out.println();
+		System.out.println("items=" + items + " containers=" + containers
+				+ " fanout=" + fanout + " skew=" + skew + " reads=" + reads
+				+ " threads=" + threads + " duration=" + duration + "s");
+		for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+			LatencyHistogram h = entry.getValue();
+			System.out.println();
+			System.out.println(entry.getKey() + ": " + h.getCount() + " ops, "
+					+ String.format("%.1f", (double) h.getCount() / duration)
+					+ " ops/s");
+			if (h.getCount() == 0) {
+				continue;
+			}
+			System.out.println(String.format("  %10s %12s", "percentile",
+					"latency(us)"));
+			for (double p : new double[] { 0, 0.5, 0.75, 0.9, 0.95, 0.99,
+					0.999, 0.9999, 1 }) {
+				System.out.println(String.format("  %10.4f %12d", p * 100,
+						h.getPercentile(p)));
+			}
+		}
+		System.out.println();
+		System.out.println("errors: " + errors.get());
+	}
+
+	/**
+	 * Check each container index against the item values. An index entry
+	 * whose value doesn't match the item's current value is stale, a second
+	 * entry for the same item is a duplicate, and an item with a value but no
+	 * entry is missing. Concurrent writes to the same item column race on
+	 * setItemColumn's read-before-write and show up here.
+	 */
+	void verify() {
+		long stale = 0;
+		long duplicate = 0;
+		long missing = 0;
+
+		for (int column = 0; column < columns; column++) {
+			String columnName = "column" + column;
+			Serializer<?> serializer = getSerializer(valueTypes[column
+					% valueTypes.length]);
+
+			Map<UUID, Object> values = new HashMap<UUID, Object>();
+			for (UUID itemKey : itemKeys) {
+				if (!written.contains(itemKey + ":" + columnName)) {
+					continue;
+				}
+				ColumnQuery<UUID, String, ByteBuffer> q = createColumnQuery(ko,
+						ue, se, be);
+				q.setColumnFamily(cf.getItem());
+				q.setKey(itemKey);
+				q.setName(columnName);
+				HColumn<String, ByteBuffer> c = q.execute().get();
+				if (c != null) {
+					values.put(itemKey, getIndexableValue(serializer
+							.fromByteBuffer(c.getValue())));
+				}
+			}
+
+			for (ContainerCollection<UUID> container : containerKeys) {
+				Set<UUID> seen = new LinkedHashSet<UUID>();
+				for (DynamicComposite name : readIndex(container.getKey() + ":"
+						+ columnName)) {
+					UUID itemKey = name.get(2, ue);
+					Object value = values.get(itemKey);
+					if ((value == null)
+							|| (compareIndexableValues(name.get(1), value) != 0)) {
+						stale++;
+					}
+					if (!seen.add(itemKey)) {
+						duplicate++;
+					}
+				}
+				for (Map.Entry<UUID, Object> entry : values.entrySet()) {
+					if (memberships.get(entry.getKey()).contains(container)
+							&& !seen.contains(entry.getKey())) {
+						missing++;
+					}
+				}
+			}
+		}
+
+		System.out.println("stale index entries: " + stale);
+		System.out.println("duplicate index entries: " + duplicate);
+		System.out.println("missing index entries: " + missing);
+	}
+
+	List<DynamicComposite> readIndex(String columnIndexKey) {
+		List<DynamicComposite> names = new ArrayList<DynamicComposite>();
+		DynamicComposite start = null;
+		int limit = IndexedCollections.DEFAULT_COUNT * 10;
+		while (true) {
+			SliceQuery<String, DynamicComposite, ByteBuffer> q = createSliceQuery(
+					ko, se, ce, be);
+			q.setColumnFamily(cf.getIndex());
+			q.setKey(columnIndexKey);
+			q.setRange(start, null, false, limit);
+			List<HColumn<DynamicComposite, ByteBuffer>> results = q.execute()
+					.get().getColumns();
+			for (HColumn<DynamicComposite, ByteBuffer> result : results) {
+				if ((start == null)
+						|| !ce.toByteBuffer(result.getName()).equals(
+								ce.toByteBuffer(start))) {
+					names.add(result.getName());
+				}
+			}
+			if (results.size() < limit) {
+				return names;
+			}
+			start = results.get(results.size() - 1).getName();
+		}
+	}
+
+	/**
+	 * ZipfDistribution picks integers in [0, n) with probability proportional
+	 * to 1 / (rank + 1)^skew, a skew of 0 is uniform.
+	 */
+	static class ZipfDistribution {
+		private final double[] cdf;
+
+		ZipfDistribution(int n, double skew) {
+			cdf = new double[n];
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				sum += 1 / Math.pow(i + 1, skew);
+				cdf[i] = sum;
+			}
+			for (int i = 0; i < n; i++) {
+				cdf[i] /= sum;
+			}
+		}
+
+		int next(Random random) {
+			double u = random.nextDouble();
+			int lo = 0;
+			int hi = cdf.length - 1;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (cdf[mid] < u) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * LatencyHistogram records latencies in microseconds in logarithmic
+	 * buckets, each about 2% wide, so that percentiles can be reported over
+	 * the whole run.
+	 */
+	static class LatencyHistogram {
+		private static final double BUCKET_WIDTH = Math.log(1.02);
+		private static final int BUCKETS = 1200;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		void record(long micros) {
+			int bucket = micros <= 1 ? 0 : (int) Math.min(BUCKETS - 1,
+					Math.ceil(Math.log(micros) / BUCKET_WIDTH));
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			long m;
+			while (micros > (m = max.get())) {
+				if (max.compareAndSet(m, micros)) {
+					break;
+				}
+			}
+		}
+
+		long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * @return the upper bound of the bucket containing the percentile
+		 */
+		long getPercentile(double percentile) {
+			long total = count.get();
+			if (percentile >= 1) {
+				return max.get();
+			}
+			long target = Math.max(1, (long) Math.ceil(percentile * total));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= target) {
+					return Math.min(max.get(),
+							(long) Math.ceil(Math.exp(i * BUCKET_WIDTH)));
+				}
+			}
+			return max.get();
+		}
+	}
+}
@@ -3,19 +3,53 @@ package indexedcollections;
 import static me.prettyprint.hector.api.beans.DynamicComposite.DEFAULT_DYNAMIC_COMPOSITE_ALIASES;
 import static me.prettyprint.hector.api.ddl.ComparatorType.DYNAMICCOMPOSITETYPE;
 import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createColumnQuery;
 import static me.prettyprint.hector.api.factory.HFactory.createKeyspace;
 import static me.prettyprint.hector.api.factory.HFactory.createMutator;
 import static me.prettyprint.hector.api.factory.HFactory.getOrCreateCluster;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import indexedcollections.IndexBackfill.Checkpoint;
+import indexedcollections.IndexBackfill.CheckpointStore;
+import indexedcollections.IndexBackfill.MemoryCheckpointStore;
+import indexedcollections.IndexFacets.FacetResult;
+import indexedcollections.IndexStatistics.ColumnStatistics;
+import indexedcollections.IndexFacets.FacetValue;
+import indexedcollections.IndexedCollections.CollectionCFSet;
+import indexedcollections.IndexedCollections.CollectionPage;
 import indexedcollections.IndexedCollections.ContainerCollection;
+import indexedcollections.MembershipFilters.BloomFilter;
+import indexedcollections.QueryPlanner.Predicate;
+import indexedcollections.QueryPlanner.QueryPlan;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
 import me.prettyprint.cassandra.serializers.BytesArraySerializer;
@@ -27,8 +61,18 @@ import me.prettyprint.cassandra.service.ThriftCfDef;
 import me.prettyprint.cassandra.service.ThriftKsDef;
 import me.prettyprint.cassandra.testutils.EmbeddedServerHelper;
 import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.HConsistencyLevel;
 import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.Serializer;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.exceptions.HTimedOutException;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.mutation.MutationResult;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.ColumnQuery;
+import me.prettyprint.hector.api.query.Query;
+import me.prettyprint.hector.api.query.QueryResult;
 
 import org.apache.cassandra.config.ConfigurationException;
 import org.apache.cassandra.db.marshal.BytesType;
@@ -231,6 +275,1397 @@ public class IndexTest {
 
 	}
 
+	@Test
+	public void testSearchContainers() {
+
+		// Create two containers sharing one of their items
+
+		ContainerCollection<UUID> c1 = new ContainerCollection<UUID>(
+				createEntity("user"), "friends");
+		ContainerCollection<UUID> c2 = new ContainerCollection<UUID>(
+				createEntity("user"), "friends");
+		Set<ContainerCollection<UUID>> containers = new LinkedHashSet<ContainerCollection<UUID>>();
+		containers.add(c1);
+		containers.add(c2);
+
+		UUID f1 = createEntity("user");
+		UUID f2 = createEntity("user");
+		UUID f3 = createEntity("user");
+
+		Set<ContainerCollection<UUID>> both = new LinkedHashSet<ContainerCollection<UUID>>(
+				containers);
+		Set<ContainerCollection<UUID>> first = new LinkedHashSet<ContainerCollection<UUID>>();
+		first.add(c1);
+		Set<ContainerCollection<UUID>> second = new LinkedHashSet<ContainerCollection<UUID>>();
+		second.add(c2);
+
+		addEntityToCollection(c1, f1);
+		addEntityToCollection(c1, f2);
+		addEntityToCollection(c2, f2);
+		addEntityToCollection(c2, f3);
+
+		setEntityColumn(f1, "age", (long) 30, first, le);
+		setEntityColumn(f2, "age", (long) 20, both, le);
+		setEntityColumn(f3, "age", (long) 25, second, le);
+
+		// Results are merged in value order and f2 is only returned once
+
+		logger.info("SELECT FROM friends, friends WHERE age >= 0");
+
+		List<UUID> results = IndexedCollections.searchContainers(ko,
+				containers, "age", 0, null, false, 10, false,
+				IndexedCollections.defaultCFSet, ue, ue, se, null, null);
+
+		logger.info(results.size() + " results found");
+
+		assertEquals(3, results.size());
+		assertEquals(f2, results.get(0));
+		assertEquals(f3, results.get(1));
+		assertEquals(f1, results.get(2));
+
+		// Stop as soon as the count is reached
+
+		results = IndexedCollections.searchContainers(ko, containers, "age",
+				0, null, false, 2, false, IndexedCollections.defaultCFSet, ue,
+				ue, se, null, null);
+
+		assertEquals(2, results.size());
+
+		// Containers with more entries than a page are read in several
+		// slices, odd ages in one and even ages in the other, with an item
+		// in both
+
+		ContainerCollection<UUID> odd = new ContainerCollection<UUID>(
+				createEntity("user"), "friends");
+		ContainerCollection<UUID> even = new ContainerCollection<UUID>(
+				createEntity("user"), "friends");
+		Set<ContainerCollection<UUID>> large = new LinkedHashSet<ContainerCollection<UUID>>();
+		large.add(odd);
+		large.add(even);
+
+		List<UUID> byAge = new ArrayList<UUID>();
+		UUID shared = createEntity("user");
+		addEntityToCollection(odd, shared);
+		addEntityToCollection(even, shared);
+		setEntityColumn(shared, "age", (long) 0, large, le);
+		byAge.add(shared);
+		for (int age = 1; age <= 14; age++) {
+			ContainerCollection<UUID> container = (age % 2) == 1 ? odd : even;
+			Set<ContainerCollection<UUID>> one = new LinkedHashSet<ContainerCollection<UUID>>();
+			one.add(container);
+			UUID friend = createEntity("user");
+			addEntityToCollection(container, friend);
+			setEntityColumn(friend, "age", (long) age, one, le);
+			byAge.add(friend);
+		}
+		assertTrue(byAge.size() / 2 > IndexedCollections.MIN_MERGE_PAGE_SIZE);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			results = IndexedCollections.searchContainers(ko, large, "age", 0,
+					null, false, 12, false, IndexedCollections.defaultCFSet,
+					ue, ue, se, executor, null);
+			assertEquals(byAge.subList(0, 12), results);
+
+			results = IndexedCollections.searchContainers(ko, large, "age",
+					null, null, false, 0, false,
+					IndexedCollections.defaultCFSet, ue, ue, se, executor,
+					null);
+			assertEquals(byAge, results);
+
+			// Reversed, from the highest age down
+
+			List<UUID> byAgeReversed = new ArrayList<UUID>(byAge);
+			Collections.reverse(byAgeReversed);
+
+			results = IndexedCollections.searchContainers(ko, large, "age",
+					(long) 100, null, false, 12, true,
+					IndexedCollections.defaultCFSet, ue, ue, se, executor,
+					null);
+			assertEquals(byAgeReversed.subList(0, 12), results);
+
+			results = IndexedCollections.searchContainers(ko, large, "age",
+					(long) 100, null, false, 0, true,
+					IndexedCollections.defaultCFSet, ue, ue, se, null, null);
+			assertEquals(byAgeReversed, results);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testChangeLog() {
+
+		// Log changes and notify a listener using a separate CF set so the
+		// other tests aren't affected
+
+		IndexChangeLog changeLog = new IndexChangeLog(ko);
+		final List<IndexChangeEvent> events = new ArrayList<IndexChangeEvent>();
+		CollectionCFSet cf = new CollectionCFSet();
+		cf.setChangeLog(changeLog);
+		cf.addChangeListener(new IndexChangeListener() {
+			@Override
+			public void indexChanged(IndexChangeEvent event) {
+				events.add(event);
+			}
+		});
+
+		ContainerCollection<UUID> container = new ContainerCollection<UUID>(
+				createEntity("user"), "friends");
+		Set<ContainerCollection<UUID>> containers = new LinkedHashSet<ContainerCollection<UUID>>();
+		containers.add(container);
+
+		UUID item = createEntity("user");
+		IndexedCollections.addItemToCollection(ko, container, item, cf, ue);
+
+		IndexedCollections.setItemColumn(ko, item, "name", "alice",
+				containers, cf, ue, se, se, ue);
+		IndexedCollections.setItemColumn(ko, item, "name", "bob", containers,
+				cf, ue, se, se, ue);
+
+		assertEquals(2, events.size());
+		assertEquals("alice", events.get(1).getOldValues().get(0));
+		assertEquals(container.getKey() + ":name", events.get(1)
+				.getColumnIndexKeys().get(0));
+
+		// Another node would tail the log from its last seen event
+
+		List<IndexChangeEvent> logged = changeLog.tail(null, 10);
+		logger.info(logged.size() + " change log entries found");
+
+		assertEquals(2, logged.size());
+		assertEquals(events.get(1).getTimeUUID(), logged.get(1).getTimeUUID());
+		assertEquals("bob", logged.get(1).getNewValue());
+
+		assertEquals(1, changeLog.tail(logged.get(0).getTimeUUID(), 10)
+				.size());
+
+		// Geo columns are logged by geohash, the way they're indexed
+
+		GeoPoint paris = new GeoPoint(48.8566, 2.3522);
+		IndexedCollections.setItemColumn(ko, item, "location", paris,
+				containers, cf, ue, se, GeoPointSerializer.get(), ue);
+		IndexedCollections.setItemColumn(ko, item, "location", new GeoPoint(
+				45.764, 4.8357), containers, cf, ue, se,
+				GeoPointSerializer.get(), ue);
+
+		assertEquals(4, events.size());
+		assertEquals(paris.getGeohash(), events.get(3).getOldValues().get(0));
+
+		logged = changeLog.tail(logged.get(1).getTimeUUID(), 10);
+		assertEquals(2, logged.size());
+		assertEquals(paris.getGeohash(), logged.get(1).getOldValues().get(0));
+	}
+
+	@Test
+	public void testGeoSearch() {
+
+		ContainerCollection<UUID> container = new ContainerCollection<UUID>(
+				createEntity("user"), "places");
+		Set<ContainerCollection<UUID>> containers = new LinkedHashSet<ContainerCollection<UUID>>();
+		containers.add(container);
+
+		UUID sf = createEntity("place");
+		UUID oakland = createEntity("place");
+		UUID la = createEntity("place");
+
+		addEntityToCollection(container, sf);
+		addEntityToCollection(container, oakland);
+		addEntityToCollection(container, la);
+
+		setEntityColumn(sf, "location", new GeoPoint(37.7749, -122.4194),
+				containers, GeoPointSerializer.get());
+		setEntityColumn(oakland, "location", new GeoPoint(37.8044, -122.2712),
+				containers, GeoPointSerializer.get());
+		setEntityColumn(la, "location", new GeoPoint(34.0522, -118.2437),
+				containers, GeoPointSerializer.get());
+
+		// Oakland is about 13km from San Francisco, Los Angeles about 560km
+
+		logger.info("SELECT FROM places WHERE location WITHIN 20km OF sf");
+
+		List<UUID> results = GeoSearch.searchContainerWithinRadius(ko,
+				container, "location", new GeoPoint(37.7749, -122.4194), 20,
+				10, GeoSearch.DEFAULT_MAX_CELLS,
+				IndexedCollections.defaultCFSet, ue, ue, se, null);
+
+		logger.info(results.size() + " results found");
+
+		assertEquals(2, results.size());
+		assertEquals(sf, results.get(0));
+		assertEquals(oakland, results.get(1));
+
+		// Moving a place removes its old index entry
+
+		setEntityColumn(oakland, "location", new GeoPoint(34.1, -118.3),
+				containers, GeoPointSerializer.get());
+
+		results = GeoSearch.searchContainerInBoundingBox(ko, container,
+				"location", new GeoPoint(33.5, -119), new GeoPoint(34.5, -118),
+				10, GeoSearch.DEFAULT_MAX_CELLS,
+				IndexedCollections.defaultCFSet, ue, ue, se, null);
+
+		assertEquals(2, results.size());
+		assertTrue(results.contains(la));
+		assertTrue(results.contains(oakland));
+	}
+
+	@Test
+	public void testCollectionByTime() {
+
+		CollectionCFSet cf = new CollectionCFSet();
+		cf.setItemsByTime(IndexedCollections.DEFAULT_COLLECTION_BY_TIME_CF);
+
+		ContainerCollection<UUID> container = new ContainerCollection<UUID>(
+				createEntity("user"), "feed");
+
+		UUID p1 = createEntity("post");
+		UUID p2 = createEntity("post");
+		UUID p3 = createEntity("post");
+
+		IndexedCollections.addItemToCollection(ko, container, p1, cf, ue);
+		IndexedCollections.addItemToCollection(ko, container, p2, cf, ue);
+		IndexedCollections.addItemToCollection(ko, container, p3, cf, ue);
+
+		// Adding p1 again moves it to the front and removes its old column
+
+		IndexedCollections.addItemToCollection(ko, container, p1, cf, ue);
+
+		List<UUID> latest = new ArrayList<UUID>(IndexedCollections
+				.getLatestItemsInCollection(ko, container, 10, cf, ue)
+				.keySet());
+
+		logger.info("Latest items: " + latest);
+
+		assertEquals(3, latest.size());
+		assertEquals(p1, latest.get(0));
+		assertEquals(p3, latest.get(1));
+		assertEquals(p2, latest.get(2));
+
+		// Page forward from the time p3 was added
+
+		Map<UUID, Long> page = IndexedCollections.getLatestItemsInCollection(
+				ko, container, 2, cf, ue);
+		long p3Added = page.get(p3);
+		List<UUID> since = new ArrayList<UUID>(IndexedCollections
+				.getItemsInCollectionSince(ko, container, p3Added, 10, cf, ue)
+				.keySet());
+
+		assertEquals(2, since.size());
+		assertEquals(p3, since.get(0));
+		assertEquals(p1, since.get(1));
+
+		// Concurrent adds of p3 can leave it filed under an older time too,
+		// it's only returned at its newer time and the older column is
+		// deleted, without cutting the page short
+
+		createMutator(ko, se).insert(
+				container.getKey(),
+				cf.getItemsByTime(),
+				createColumn(new DynamicComposite((long) 1, p3), new byte[0],
+						DynamicCompositeSerializer.get(),
+						BytesArraySerializer.get()));
+
+		List<UUID> oldest = new ArrayList<UUID>(IndexedCollections
+				.getItemsInCollectionByTime(ko, container, null, null, 3,
+						false, cf, ue).keySet());
+
+		assertEquals(3, oldest.size());
+		assertEquals(p2, oldest.get(0));
+		assertEquals(p3, oldest.get(1));
+		assertEquals(p1, oldest.get(2));
+
+		oldest = new ArrayList<UUID>(IndexedCollections
+				.getItemsInCollectionByTime(ko, container, null, null, 1,
+						false, cf, ue).keySet());
+		assertEquals(p2, oldest.get(0));
+	}
+
+	@Test
+	public void testIndexDefinitions() throws Exception {
+
+		IndexDefinitions definitions = new IndexDefinitions(ko);
+		CollectionCFSet cf = new CollectionCFSet();
+		cf.setIndexDefinitions(definitions);
+
+		definitions.defineIndex("members", "age");
+
+		ContainerCollection<UUID> container = new ContainerCollection<UUID>(
+				createEntity("group"), "members");
+		Set<ContainerCollection<UUID>> containers = new LinkedHashSet<ContainerCollection<UUID>>();
+		containers.add(container);
+
+		UUID member = createEntity("user");
+		IndexedCollections.addItemToCollection(ko, container, member, cf, ue);
+
+		IndexedCollections.setItemColumn(ko, member, "age", (long) 40,
+				containers, cf, ue, se, le, ue);
+		IndexedCollections.setItemColumn(ko, member, "nickname", "bob",
+				containers, cf, ue, se, se, ue);
+
+		// Only the declared column is indexed
+
+		assertEquals(1, searchContainer(container, "age", 40).size());
+		assertEquals(0, searchContainer(container, "nickname", "bob").size());
+
+		// A newly declared index is written to right away
+
+		definitions.defineIndex("members", "nickname");
+		IndexedCollections.setItemColumn(ko, member, "nickname", "robert",
+				containers, cf, ue, se, se, ue);
+
+		assertEquals(1, searchContainer(container, "nickname", "robert")
+				.size());
+
+		// An update while the index is dropped removes the old entries, so
+		// they don't come back when the index is declared again
+
+		definitions.dropIndex("members", "nickname");
+		IndexedCollections.setItemColumn(ko, member, "nickname", "rob",
+				containers, cf, ue, se, se, ue);
+		assertEquals(0, IndexedCollections.getItemColumnValues(ko, member,
+				"nickname", cf, ue).size());
+
+		definitions.defineIndex("members", "nickname");
+		assertEquals(0, searchContainer(container, "nickname", "robert")
+				.size());
+
+		Map<String, Serializer<?>> columns = new LinkedHashMap<String, Serializer<?>>();
+		columns.put("nickname", se);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			new IndexBackfill<UUID, UUID, String>(ko, cf, executor, ue, se)
+					.backfill("nicknames", container, columns);
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, searchContainer(container, "nickname", "rob").size());
+		assertEquals(0, searchContainer(container, "nickname", "robert")
+				.size());
+
+		// An item in two collections where only one drops the index, the
+		// old entry is removed from both
+
+		definitions.defineIndex("members", "title");
+		definitions.defineIndex("moderators", "title");
+		ContainerCollection<UUID> moderators = new ContainerCollection<UUID>(
+				createEntity("group"), "moderators");
+		Set<ContainerCollection<UUID>> both = new LinkedHashSet<ContainerCollection<UUID>>();
+		both.add(container);
+		both.add(moderators);
+		IndexedCollections.addItemToCollection(ko, moderators, member, cf, ue);
+
+		IndexedCollections.setItemColumn(ko, member, "title", "editor", both,
+				cf, ue, se, se, ue);
+		assertEquals(1, searchContainer(moderators, "title", "editor").size());
+
+		definitions.dropIndex("moderators", "title");
+		IndexedCollections.setItemColumn(ko, member, "title", "owner", both,
+				cf, ue, se, se, ue);
+		assertEquals(1, searchContainer(container, "title", "owner").size());
+		assertEquals(0, searchContainer(container, "title", "editor").size());
+		assertEquals(0, searchContainer(moderators, "title", "owner").size());
+		assertEquals(0, searchContainer(moderators, "title", "editor").size());
+
+		definitions.defineIndex("moderators", "title");
+		assertEquals(0, searchContainer(moderators, "title", "editor").size());
+		columns = new LinkedHashMap<String, Serializer<?>>();
+		columns.put("title", se);
+		executor = Executors.newFixedThreadPool(2);
+		try {
+			new IndexBackfill<UUID, UUID, String>(ko, cf, executor, ue, se)
+					.backfill("titles", moderators, columns);
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, searchContainer(moderators, "title", "owner").size());
+		assertEquals(0, searchContainer(moderators, "title", "editor").size());
+	}
+
+	@Test
+	public void testSetValuedColumns() {
+
+		ContainerCollection<UUID> container = new ContainerCollection<UUID>(
+				createEntity("user"), "bookmarks");
+		Set<ContainerCollection<UUID>> containers = new LinkedHashSet<ContainerCollection<UUID>>();
+		containers.add(container);
+
+		UUID page = createEntity("page");
+		addEntityToCollection(container, page);
+
+		Set<String> tags = new LinkedHashSet<String>();
+		tags.add("blue");
+		tags.add("red");
+		IndexedCollections.addItemColumnValues(ko, page, "tags", tags,
+				containers, IndexedCollections.defaultCFSet, ue);
+
+		// Adding an existing element doesn't add another entry
+
+		IndexedCollections.addItemColumnValues(ko, page, "tags",
+				Collections.singleton("blue"), containers,
+				IndexedCollections.defaultCFSet, ue);
+
+		assertEquals(2, IndexedCollections.getItemColumnValues(ko, page,
+				"tags", IndexedCollections.defaultCFSet, ue).size());
+		assertEquals(1, searchContainer(container, "tags", "red").size());
+
+		// A range matching both elements returns the item once
+
+		assertEquals(1, searchContainer(container, "tags", "a", "z", false)
+				.size());
+
+		IndexedCollections.removeItemColumnValues(ko, page, "tags",
+				Collections.singleton("red"), containers,
+				IndexedCollections.defaultCFSet, ue);
+
+		assertEquals(0, searchContainer(container, "tags", "red").size());
+		assertEquals(1, searchContainer(container, "tags", "blue").size());
+
+		List<Object> values = IndexedCollections.getItemColumnValues(ko, page,
+				"tags", IndexedCollections.defaultCFSet, ue);
+		assertEquals(1, values.size());
+		assertEquals("blue", values.get(0));
+
+		// Duplicate matches don't use up the count
+
+		ContainerCollection<UUID> shelf = new ContainerCollection<UUID>(
+				createEntity("user"), "shelf");
+		Set<ContainerCollection<UUID>> shelves = Collections.singleton(shelf);
+		UUID book = createEntity("book");
+		UUID other = createEntity("book");
+		addEntityToCollection(shelf, book);
+		addEntityToCollection(shelf, other);
+		IndexedCollections.addItemColumnValues(ko, book, "tags",
+				new LinkedHashSet<String>(Arrays.asList("a1", "a2", "a3")),
+				shelves, IndexedCollections.defaultCFSet, ue);
+		IndexedCollections.addItemColumnValues(ko, other, "tags",
+				Collections.singleton("b"), shelves,
+				IndexedCollections.defaultCFSet, ue);
+
+		List<UUID> results = IndexedCollections.searchContainer(ko, shelf,
+				"tags", "a", "z", false, null, 2, false,
+				IndexedCollections.defaultCFSet, ue, ue, se);
+		assertEquals(Arrays.asList(book, other), results);
+
+		// Elements can be added and removed under an operation policy
+
+		OperationPolicy policy = new OperationPolicy(cluster, null);
+		policy.setReadConsistency(HConsistencyLevel.ONE);
+		policy.setWriteConsistency(HConsistencyLevel.ONE);
+		IndexedCollections.addItemColumnValues(ko, page, "tags",
+				Collections.singleton("green"), containers,
+				IndexedCollections.defaultCFSet, ue, policy);
+		IndexedCollections.removeItemColumnValues(ko, page, "tags",
+				Collections.singleton("blue"), containers,
+				IndexedCollections.defaultCFSet, ue, policy);
+
+		assertEquals(1, searchContainer(container, "tags", "green").size());
+		assertEquals(0, searchContainer(container, "tags", "blue").size());
+	}
+
+	@Test
+	public void testUnchangedWrites() {
+
+		ContainerCollection<UUID> container = new ContainerCollection<UUID>(
+				createEntity("user"), "contacts");
+		Set<ContainerCollection<UUID>> containers = new LinkedHashSet<ContainerCollection<UUID>>();
+		containers.add(container);
+
+		UUID contact = createEntity("user");
+		addEntityToCollection(container, contact);
+
+		setEntityColumn(contact, "city", "Paris", containers, se);
+
+		long unchanged = IndexedCollections.getUnchangedIndexWrites();
+
+		// Saving the same value again only writes the item column
+
+		setEntityColumn(contact, "city", "Paris", containers, se);
+
+		assertEquals(unchanged + 1, IndexedCollections.getUnchangedIndexWrites());
+		assertEquals(1, IndexedCollections.getItemColumnValues(ko, contact,
+				"city", IndexedCollections.defaultCFSet, ue).size());
+		assertEquals(1, searchContainer(container, "city", "Paris").size());
+
+		setEntityColumn(contact, "city", "Lyon", containers, se);
+
+		assertEquals(unchanged + 1, IndexedCollections.getUnchangedIndexWrites());
+		assertEquals(0, searchContainer(container, "city", "Paris").size());
+		assertEquals(1, searchContainer(container, "city", "Lyon").size());
+
+		// Re-asserting the entries in a newly joined container still
+		// updates the filters, statistics and listeners
+
+		CollectionCFSet cf = new CollectionCFSet();
+		MembershipFilters filters = new MembershipFilters();
+		IndexStatistics statistics = new IndexStatistics();
+		final List<IndexChangeEvent> events = new ArrayList<IndexChangeEvent>();
+		cf.setMembershipFilters(filters);
+		cf.setStatistics(statistics);
+		cf.addChangeListener(new IndexChangeListener() {
+			@Override
+			public void indexChanged(IndexChangeEvent event) {
+				events.add(event);
+			}
+		});
+
+		ContainerCollection<UUID> other = new ContainerCollection<UUID>(
+				createEntity("user"), "contacts");
+		assertTrue(!IndexedCollections.containerHasValue(ko, other, "city",
+				"Lyon", cf));
+		IndexedCollections.addItemToCollection(ko, other, contact, cf, ue);
+		containers.add(other);
+
+		IndexedCollections.setItemColumn(ko, contact, "city", "Lyon",
+				containers, cf, ue, se, se, ue);
+
+		assertEquals(unchanged + 2, IndexedCollections.getUnchangedIndexWrites());
+		assertTrue(IndexedCollections.containerHasValue(ko, other, "city",
+				"Lyon", cf));
+		assertEquals(1, statistics.getStatistics(other.getKey() + ":city")
+				.getEntryCount());
+		assertEquals(1, events.size());
+		assertEquals("Lyon", events.get(0).getOldValues().get(0));
+		assertEquals("Lyon", events.get(0).getNewValue());
+	}
+
+	@Test
+	public void testGetItemsInCollections() {
+
+		Set<ContainerCollection<UUID>> containers = new LinkedHashSet<ContainerCollection<UUID>>();
+		for (int i = 0; i < 5; i++) {
+			ContainerCollection<UUID> container = new ContainerCollection<UUID>(
+					createEntity("user"), "friends");
+			containers.add(container);
+			for (int j = 0; j < i; j++) {
+				addEntityToCollection(container, createEntity("user"));
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+
+			// Read two items per collection, two collections per multiget,
+			// and follow the continuations until every collection is done
+
+			Map<ContainerCollection<UUID>, UUID> startItems = new HashMap<ContainerCollection<UUID>, UUID>();
+			Map<ContainerCollection<UUID>, Integer> counts = new HashMap<ContainerCollection<UUID>, Integer>();
+			Set<ContainerCollection<UUID>> remaining = new LinkedHashSet<ContainerCollection<UUID>>(
+					containers);
+			while (!remaining.isEmpty()) {
+				Map<ContainerCollection<UUID>, CollectionPage<UUID>> pages = IndexedCollections
+						.getItemsInCollections(ko, remaining, startItems, 2, 2,
+								IndexedCollections.defaultCFSet, ue, executor);
+				assertEquals(remaining.size(), pages.size());
+				for (Map.Entry<ContainerCollection<UUID>, CollectionPage<UUID>> page : pages
+						.entrySet()) {
+					ContainerCollection<UUID> container = page.getKey();
+					assertTrue(page.getValue().getItems().size() <= 2);
+					Integer count = counts.get(container);
+					counts.put(container, (count != null ? count : 0)
+							+ page.getValue().getItems().size());
+					if (page.getValue().hasMore()) {
+						startItems.put(container, page.getValue().getNextItem());
+					} else {
+						remaining.remove(container);
+					}
+				}
+			}
+
+			int i = 0;
+			for (ContainerCollection<UUID> container : containers) {
+				assertEquals(i++, counts.get(container).intValue());
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		try {
+			IndexedCollections.getItemsInCollections(ko, containers, null, 2,
+					0, IndexedCollections.defaultCFSet, ue, null);
+			fail("Batch size of 0 accepted");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testFacets() {
+
+		ContainerCollection<UUID> container = new ContainerCollection<UUID>(
+				createEntity("user"), "friends");
+		Set<ContainerCollection<UUID>> containers = new LinkedHashSet<ContainerCollection<UUID>>();
+		containers.add(container);
+
+		String[] cities = { "Paris", "Lyon", "Paris", "Nice", "Lyon", "Paris" };
+		for (String city : cities) {
+			UUID friend = createEntity("user");
+			addEntityToCollection(container, friend);
+			setEntityColumn(friend, "city", city, containers, se);
+		}
+
+		FacetResult values = IndexFacets.getFacetValues(ko, container, "city",
+				0, 0, IndexedCollections.defaultCFSet, null);
+
+		logger.info("Facet values: " + values.getValues());
+
+		assertTrue(values.isComplete());
+		assertEquals(3, values.getValues().size());
+		assertEquals("Lyon", values.getValues().get(0).getValue());
+		assertEquals("Nice", values.getValues().get(1).getValue());
+		assertEquals("Paris", values.getValues().get(2).getValue());
+
+		FacetResult top = IndexFacets.getFacetCounts(ko, container, "city", 2,
+				0, 0, IndexedCollections.defaultCFSet, null);
+
+		logger.info("Top facet counts: " + top.getValues());
+
+		assertEquals(2, top.getValues().size());
+		assertEquals("Paris", top.getValues().get(0).getValue());
+		assertEquals(3, top.getValues().get(0).getCount());
+		assertEquals("Lyon", top.getValues().get(1).getValue());
+		assertEquals(2, top.getValues().get(1).getCount());
+
+		// Counting stops past the limit and skips the rest of the value, a
+		// value with exactly the limit is still counted exactly
+
+		FacetResult bounded = IndexFacets.getFacetCounts(ko, container, "city",
+				0, 2, 0, IndexedCollections.defaultCFSet, null);
+
+		assertTrue(bounded.isComplete());
+		assertEquals(3, bounded.getValues().size());
+		FacetValue lyon = bounded.getValues().get(0);
+		assertEquals(2, lyon.getCount());
+		assertTrue(lyon.isCountExact());
+		assertTrue(bounded.getValues().get(1).isCountExact());
+		FacetValue paris = bounded.getValues().get(2);
+		assertEquals(3, paris.getCount());
+		assertTrue(!paris.isCountExact());
+	}
+
+	@Test
+	public void testIndexCache() throws IOException {
+
+		IndexCache cache = new IndexCache();
+		CollectionCFSet cf = new CollectionCFSet();
+		cf.setIndexCache(cache);
+
+		ContainerCollection<UUID> container = new ContainerCollection<UUID>(
+				createEntity("user"), "friends");
+		Set<ContainerCollection<UUID>> containers = new LinkedHashSet<ContainerCollection<UUID>>();
+		containers.add(container);
+
+		UUID friend = createEntity("user");
+		IndexedCollections.addItemToCollection(ko, container, friend, cf, ue);
+		IndexedCollections.setItemColumn(ko, friend, "city", "Paris",
+				containers, cf, ue, se, se, ue);
+
+		List<UUID> results = IndexedCollections.searchContainer(ko, container,
+				"city", "Paris", null, 100, false, cf, ue, ue, se);
+		assertEquals(1, results.size());
+
+		long hits = cache.getHits();
+		results = IndexedCollections.searchContainer(ko, container, "city",
+				"Paris", null, 100, false, cf, ue, ue, se);
+		assertEquals(1, results.size());
+		assertEquals(hits + 1, cache.getHits());
+
+		// Changing the value drops the cached search
+
+		IndexedCollections.setItemColumn(ko, friend, "city", "Lyon",
+				containers, cf, ue, se, se, ue);
+		assertEquals(0, IndexedCollections.searchContainer(ko, container,
+				"city", "Paris", null, 100, false, cf, ue, ue, se).size());
+		assertEquals(1, IndexedCollections.searchContainer(ko, container,
+				"city", "Lyon", null, 100, false, cf, ue, ue, se).size());
+
+		// A new cache warm started from a snapshot serves the same search
+
+		File file = File.createTempFile("index-cache", ".snapshot");
+		file.deleteOnExit();
+		assertTrue(cache.snapshot(file) > 0);
+
+		IndexCache warm = new IndexCache();
+		warm.setPrefetchSlices(0);
+		assertEquals(cache.size(), warm.warmStart(file, ko, null));
+		cf.setIndexCache(warm);
+
+		results = IndexedCollections.searchContainer(ko, container, "city",
+				"Lyon", null, 100, false, cf, ue, ue, se);
+		assertEquals(1, results.size());
+		assertEquals(friend, results.get(0));
+		assertEquals(1, warm.getSnapshotHits());
+
+		// A record with a corrupt key stops the load there, without
+		// leaving anything half loaded
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+
+			// The first record's column family length, after the file
+			// header, the record header and the read time
+
+			raf.seek(20 + 12 + 8);
+			raf.writeInt(Integer.MAX_VALUE);
+		} finally {
+			raf.close();
+		}
+		IndexCache corrupt = new IndexCache();
+		corrupt.setPrefetchSlices(0);
+		assertEquals(0, corrupt.warmStart(file, ko, null));
+		assertEquals(0, corrupt.size());
+
+		// Invalidating a row only stops slices of that row being cached
+
+		IndexCache rows = new IndexCache();
+		ByteBuffer rowA = se.toByteBuffer("a");
+		ByteBuffer rowB = se.toByteBuffer("b");
+		ByteBuffer start = se.toByteBuffer("");
+		List<HColumn<String, String>> columns = new ArrayList<HColumn<String, String>>();
+		columns.add(createColumn("name", "value", se, se));
+
+		long generationA = rows.getGeneration(cf.getIndex(), rowA);
+		long generationB = rows.getGeneration(cf.getIndex(), rowB);
+		rows.invalidateRow(cf.getIndex(), rowB);
+		rows.put(cf.getIndex(), rowA, start, start, false, 100, columns, se,
+				se, generationA);
+		rows.put(cf.getIndex(), rowB, start, start, false, 100, columns, se,
+				se, generationB);
+		assertEquals(1, rows.size());
+		assertEquals(1, rows.get(cf.getIndex(), rowA, start, start, false,
+				100, se, se).size());
+		assertEquals(null, rows.get(cf.getIndex(), rowB, start, start, false,
+				100, se, se));
+	}
+
+	@Test
+	public void testAdaptiveWriteController() throws Exception {
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			AdaptiveWriteController controller = new AdaptiveWriteController(
+					executor, 10);
+			controller.setTargetLatency(10000);
+
+			// Each round of fast batches grows the batch size and concurrency
+
+			int previous = controller.getBatchSize();
+			for (int round = 0; round < 2; round++) {
+				List<Future<MutationResult>> pending = new ArrayList<Future<MutationResult>>();
+				for (int i = 0; i < 10; i++) {
+					pending.add(controller.submit(insertion("controller-test",
+							"column" + round + "-" + i)));
+				}
+				for (Future<MutationResult> f : pending) {
+					f.get();
+				}
+
+				logger.info("Batch size " + controller.getBatchSize()
+						+ ", concurrency " + controller.getConcurrency());
+
+				assertTrue(controller.getBatchSize() > previous);
+				previous = controller.getBatchSize();
+			}
+			assertEquals(20, controller.getBatchCount());
+			assertTrue(controller.getConcurrency() > 1);
+			assertEquals(0, controller.getQueueDepth());
+
+			// A timed out batch is retried and cuts both limits. The first
+			// attempt clears its Mutator before timing out, as executing a
+			// Mutator does, so the column is only written if the retry
+			// builds the batch again.
+
+			int batchSize = controller.getBatchSize();
+			int concurrency = controller.getConcurrency();
+			controller.setRetryDelay(1);
+			final Callable<Mutator<String>> retried = insertion(
+					"controller-test", "retried");
+			final AtomicInteger attempts = new AtomicInteger();
+			controller.execute(new Callable<Mutator<?>>() {
+				@Override
+				public Mutator<?> call() throws Exception {
+					final Mutator<String> batch = retried.call();
+					if (attempts.incrementAndGet() > 1) {
+						return batch;
+					}
+					return (Mutator<?>) Proxy.newProxyInstance(
+							Mutator.class.getClassLoader(),
+							new Class<?>[] { Mutator.class },
+							new InvocationHandler() {
+								@Override
+								public Object invoke(Object proxy,
+										Method method, Object[] args)
+										throws Throwable {
+									if (method.getName().equals("execute")) {
+										batch.discardPendingMutations();
+										throw new HTimedOutException(
+												"timed out");
+									}
+									return method.invoke(batch, args);
+								}
+							});
+				}
+			});
+
+			assertEquals(2, attempts.get());
+			assertEquals(1, controller.getOverloadCount());
+			assertEquals(1, controller.getRetryCount());
+			assertTrue(controller.getBatchSize() < batchSize);
+			assertTrue(controller.getConcurrency() < concurrency);
+
+			ColumnQuery<String, String, String> q = createColumnQuery(ko, se,
+					se, se);
+			q.setColumnFamily(IndexedCollections.DEFAULT_ITEM_CF);
+			q.setKey("controller-test");
+			q.setName("retried");
+			assertEquals("value", q.execute().get().getValue());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Builds a batch inserting a column into an item row.
+	 */
+	static Callable<Mutator<String>> insertion(final String itemKey,
+			final String columnName) {
+		return new Callable<Mutator<String>>() {
+			@Override
+			public Mutator<String> call() {
+				Mutator<String> batch = createMutator(ko, se);
+				batch.addInsertion(itemKey,
+						IndexedCollections.DEFAULT_ITEM_CF,
+						createColumn(columnName, "value", se, se));
+				return batch;
+			}
+		};
+	}
+
+	@Test
+	public void testBackfill() throws Exception {
+
+		ContainerCollection<UUID> container = new ContainerCollection<UUID>(
+				createEntity("group"), "members");
+		Set<ContainerCollection<UUID>> none = new LinkedHashSet<ContainerCollection<UUID>>();
+
+		// Set the columns before the items are in the container, so they
+		// aren't indexed there
+
+		String[] cities = { "Paris", "Paris", "Lyon", "Paris" };
+		List<UUID> members = new ArrayList<UUID>();
+		for (String city : cities) {
+			UUID member = createEntity("user");
+			setEntityColumn(member, "city", city, none, se);
+			members.add(member);
+		}
+		IndexedCollections.addItemColumnValues(ko, members.get(1), "tags",
+				new LinkedHashSet<String>(Arrays.asList("a", "b")), none,
+				IndexedCollections.defaultCFSet, ue);
+
+		// An item column with no index entry at all
+
+		UUID unindexed = createEntity("user");
+		createMutator(ko, ue).insert(unindexed,
+				IndexedCollections.DEFAULT_ITEM_CF,
+				createColumn("city", "Nice", se, se));
+		members.add(unindexed);
+
+		for (UUID member : members) {
+			addEntityToCollection(container, member);
+		}
+		assertEquals(0, searchContainer(container, "city", "Paris").size());
+
+		Map<String, Serializer<?>> columns = new LinkedHashMap<String, Serializer<?>>();
+		columns.put("city", se);
+		columns.put("tags", se);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			IndexBackfill<UUID, UUID, String> backfill = new IndexBackfill<UUID, UUID, String>(
+					ko, IndexedCollections.defaultCFSet, executor, ue, se);
+			backfill.setPageSize(2);
+
+			// Fail the job after its first page is checkpointed
+
+			final MemoryCheckpointStore checkpoints = new MemoryCheckpointStore();
+			backfill.setCheckpoints(new CheckpointStore() {
+				@Override
+				public Checkpoint load(String jobId) {
+					return checkpoints.load(jobId);
+				}
+
+				@Override
+				public void save(String jobId, Checkpoint checkpoint) {
+					checkpoints.save(jobId, checkpoint);
+					throw new HectorException("interrupted");
+				}
+			});
+			try {
+				backfill.backfill("members", container, columns);
+				fail("Backfill wasn't interrupted");
+			} catch (HectorException e) {
+			}
+			assertEquals(2, checkpoints.load("members").getItemCount());
+
+			// Resuming only processes the rest of the collection
+
+			backfill.setCheckpoints(checkpoints);
+			assertEquals(3, backfill.backfill("members", container, columns));
+			assertEquals(5, checkpoints.load("members").getItemCount());
+		} finally {
+			executor.shutdown();
+		}
+
+		List<UUID> paris = searchContainer(container, "city", "Paris");
+		assertEquals(3, paris.size());
+		assertTrue(paris.contains(members.get(0)));
+		assertTrue(paris.contains(members.get(1)));
+		assertTrue(paris.contains(members.get(3)));
+		assertEquals(Collections.singletonList(members.get(2)),
+				searchContainer(container, "city", "Lyon"));
+		assertEquals(Collections.singletonList(unindexed),
+				searchContainer(container, "city", "Nice"));
+
+		// Every element of a set-valued column is backfilled
+
+		assertEquals(Collections.singletonList(members.get(1)),
+				searchContainer(container, "tags", "a"));
+		assertEquals(Collections.singletonList(members.get(1)),
+				searchContainer(container, "tags", "b"));
+
+		// The backfilled entries are replaced by the next update
+
+		setEntityColumn(unindexed, "city", "Lyon", Collections
+				.singleton(container), se);
+		assertEquals(0, searchContainer(container, "city", "Nice").size());
+		assertEquals(2, searchContainer(container, "city", "Lyon").size());
+	}
+
+	@Test
+	public void testOperationPolicy() throws Exception {
+
+		// Timeouts and hedging can't be set without an executor
+
+		OperationPolicy unscheduled = new OperationPolicy(cluster, null);
+		try {
+			unscheduled.setTimeoutMillis(100);
+			fail("Timeout set without an executor");
+		} catch (IllegalStateException e) {
+		}
+		try {
+			unscheduled.setHedgePercentile(0.99);
+			fail("Hedging set without an executor");
+		} catch (IllegalStateException e) {
+		}
+
+		// Reads and writes use the keyspace for their consistency level
+
+		OperationPolicy policy = new OperationPolicy(cluster, null);
+		assertTrue(policy.getReadKeyspace(ko) == ko);
+		policy.setReadConsistency(HConsistencyLevel.ALL);
+		policy.setWriteConsistency(HConsistencyLevel.ONE);
+		Keyspace readKeyspace = policy.getReadKeyspace(ko);
+		assertTrue(readKeyspace != ko);
+		assertTrue(policy.getReadKeyspace(ko) == readKeyspace);
+		assertTrue(policy.getWriteKeyspace(ko) != readKeyspace);
+
+		Mutator<String> batch = createMutator(policy.getWriteKeyspace(ko), se);
+		batch.addInsertion("policy-test", IndexedCollections.DEFAULT_ITEM_CF,
+				createColumn("name", "value", se, se));
+		policy.write(batch);
+
+		ColumnQuery<String, String, String> q = createColumnQuery(
+				readKeyspace, se, se, se);
+		q.setKey("policy-test").setColumnFamily(
+				IndexedCollections.DEFAULT_ITEM_CF).setName("name");
+		assertEquals("value", policy.read(q).get().getValue());
+		assertEquals(1, policy.getReadLatencies().getSampleCount());
+
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+
+			// A read that outlasts the timeout fails with a timeout
+
+			policy = new OperationPolicy(cluster, executor);
+			policy.setTimeoutMillis(50);
+			try {
+				policy.read(slowQuery(5000, 1));
+				fail("Read didn't time out");
+			} catch (HTimedOutException e) {
+			}
+			assertEquals(1, policy.getReadLatencies().getSampleCount());
+
+			// A slow read is answered by its hedge and the abandoned read
+			// still records its latency
+
+			policy = new OperationPolicy(cluster, executor);
+			policy.setHedgePercentile(0.99);
+			policy.setMinHedgeDelayMillis(10);
+			long start = System.currentTimeMillis();
+			assertTrue(policy.read(slowQuery(5000, 1)) != null);
+			assertTrue(System.currentTimeMillis() - start < 5000);
+			assertEquals(2, policy.getReadLatencies().getSampleCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testQueryPlanner() {
+
+		CollectionCFSet cf = new CollectionCFSet();
+		IndexStatistics statistics = new IndexStatistics();
+		cf.setStatistics(statistics);
+
+		ContainerCollection<UUID> container = new ContainerCollection<UUID>(
+				createEntity("company"), "employees");
+		Set<ContainerCollection<UUID>> containers = Collections
+				.singleton(container);
+
+		// 10 of the 30 employees are in Paris, 5 of those are under 15
+
+		Set<UUID> expected = new HashSet<UUID>();
+		List<UUID> paris = new ArrayList<UUID>();
+		for (int i = 0; i < 30; i++) {
+			UUID employee = createEntity("employee");
+			addEntityToCollection(container, employee);
+			String city = (i % 3) == 0 ? "Paris" : "Lyon";
+			IndexedCollections.setItemColumn(ko, employee, "city", city,
+					containers, cf, ue, se, se, ue);
+			IndexedCollections.setItemColumn(ko, employee, "age", (long) i,
+					containers, cf, ue, se, le, ue);
+			if ((i % 3) == 0) {
+				paris.add(employee);
+				if (i < 15) {
+					expected.add(employee);
+				}
+			}
+		}
+
+		QueryPlanner planner = new QueryPlanner(statistics);
+		QueryPlan plan = planner.plan(container, Collections
+				.singletonList(Predicate.equalTo("city", "Paris")));
+		assertEquals("city", plan.getDriving().getColumnName());
+		assertEquals(10, plan.getDrivingEstimate());
+
+		plan = planner.plan(container, Arrays.asList(new Predicate("age", 0L,
+				15L, false), Predicate.equalTo("city", "Paris")));
+		logger.info(plan.explain());
+		assertEquals("city", plan.getDriving().getColumnName());
+		assertEquals(1, plan.getProbes().size());
+
+		List<UUID> results = planner.execute(ko, container, plan, 100, cf, ue,
+				ue);
+		assertEquals(expected, new HashSet<UUID>(results));
+
+		// Execution stops once count matches are found
+
+		results = planner.execute(ko, container, plan, 2, cf, ue, ue);
+		assertEquals(2, results.size());
+		assertTrue(expected.containsAll(results));
+
+		// Moving employees out of Paris shrinks the estimates
+
+		for (UUID employee : paris.subList(0, 4)) {
+			IndexedCollections.setItemColumn(ko, employee, "city", "Lyon",
+					containers, cf, ue, se, se, ue);
+		}
+		assertEquals(6, statistics.getStatistics(container.getKey() + ":city")
+				.estimateMatches("Paris", "Paris", true));
+		assertEquals(1, planner.execute(ko, container, plan, 100, cf, ue, ue)
+				.size());
+	}
+
+	@Test
+	public void testIndexStatistics() {
+
+		IndexStatistics statistics = new IndexStatistics(256, 2);
+		for (int i = 0; i < 30; i++) {
+			statistics.recordInsert("a:city", "city" + (i % 10));
+		}
+		ColumnStatistics stats = statistics.getStatistics("a:city");
+		assertEquals(30, stats.getEntryCount());
+		assertEquals(10, stats.getDistinctValues());
+		assertEquals(3, stats.estimateMatches("city1", "city2", false));
+
+		// Deleted values leave the sample and the distinct value sketch
+
+		for (int i = 0; i < 3; i++) {
+			statistics.recordDelete("a:city", "city1");
+		}
+		assertEquals(27, stats.getEntryCount());
+		assertEquals(9, stats.getDistinctValues());
+		assertEquals(0, stats.estimateMatches("city1", "city2", false));
+
+		// Once the sketch is full the estimate still shrinks with deletes
+
+		statistics = new IndexStatistics(4, 2);
+		for (int i = 0; i < 10; i++) {
+			statistics.recordInsert("a:name", "name" + i);
+		}
+		stats = statistics.getStatistics("a:name");
+		assertTrue(stats.getDistinctValues() >= 4);
+		assertTrue(stats.getDistinctValues() <= 10);
+		for (int i = 0; i < 10; i++) {
+			statistics.recordDelete("a:name", "name" + i);
+		}
+		assertEquals(0, stats.getEntryCount());
+		assertEquals(0, stats.getDistinctValues());
+
+		// Many updates, each deleting a value and adding a new one, keep
+		// both estimates close. The first 100 of 1000 entries are updated
+		// to new unique values, so recent writes are 10% of the index.
+
+		IndexStatistics updated = new IndexStatistics();
+		long[] values = new long[1000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i;
+			updated.recordInsert("a:score", values[i]);
+		}
+		Random random = new Random(1);
+		long next = values.length;
+		for (int i = 0; i < 5000; i++) {
+			int j = random.nextInt(100);
+			updated.recordDelete("a:score", values[j]);
+			values[j] = next++;
+			updated.recordInsert("a:score", values[j]);
+		}
+		stats = updated.getStatistics("a:score");
+		logger.info("~" + stats.getDistinctValues() + " distinct values, ~"
+				+ stats.estimateMatches((long) 1000, null, false)
+				+ " updated entries");
+		assertEquals(1000, stats.getEntryCount());
+		assertTrue(stats.getDistinctValues() >= 800);
+		assertTrue(Math.abs(stats.estimateMatches((long) 1000, null, false)
+				- 100) <= 60);
+
+		// Only the most recently used indexes are kept
+
+		statistics.recordInsert("b:name", "name");
+		statistics.recordInsert("c:name", "name");
+		assertEquals(2, statistics.getIndexCount());
+		assertTrue(statistics.getStatistics("a:name") == null);
+		assertTrue(statistics.getStatistics("c:name") != null);
+	}
+
+	@Test
+	public void testMembershipFilters() throws Exception {
+
+		CollectionCFSet cf = new CollectionCFSet();
+		MembershipFilters filters = new MembershipFilters();
+		cf.setMembershipFilters(filters);
+
+		ContainerCollection<UUID> container = new ContainerCollection<UUID>(
+				createEntity("user"), "friends");
+		Set<ContainerCollection<UUID>> containers = Collections
+				.singleton(container);
+
+		UUID friend = createEntity("user");
+		IndexedCollections.addItemToCollection(ko, container, friend, cf, ue);
+		IndexedCollections.setItemColumn(ko, friend, "city", "Paris",
+				containers, cf, ue, se, se, ue);
+
+		// The first lookups build the filters
+
+		assertTrue(IndexedCollections.isItemInCollection(ko, container,
+				friend, cf, ue));
+		assertTrue(!IndexedCollections.isItemInCollection(ko, container,
+				createEntity("user"), cf, ue));
+		assertTrue(filters.getFilter(container.getKey()) != null);
+
+		assertTrue(IndexedCollections.containerHasValue(ko, container, "city",
+				"Paris", cf));
+		assertTrue(!IndexedCollections.containerHasValue(ko, container,
+				"city", "Lyon", cf));
+		assertTrue(filters.getFilter(container.getKey() + ":city") != null);
+
+		// Later writes are recorded in the built filters
+
+		UUID later = createEntity("user");
+		IndexedCollections.addItemToCollection(ko, container, later, cf, ue);
+		IndexedCollections.setItemColumn(ko, later, "city", "Lyon",
+				containers, cf, ue, se, se, ue);
+		assertTrue(IndexedCollections.isItemInCollection(ko, container, later,
+				cf, ue));
+		assertTrue(IndexedCollections.containerHasValue(ko, container, "city",
+				"Lyon", cf));
+
+		// So are the values written by a backfill
+
+		UUID unindexed = createEntity("user");
+		createMutator(ko, ue).insert(unindexed,
+				IndexedCollections.DEFAULT_ITEM_CF,
+				createColumn("city", "Nice", se, se));
+		IndexedCollections.addItemToCollection(ko, container, unindexed, cf,
+				ue);
+		assertTrue(!IndexedCollections.containerHasValue(ko, container,
+				"city", "Nice", cf));
+
+		Map<String, Serializer<?>> columns = new LinkedHashMap<String, Serializer<?>>();
+		columns.put("city", se);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			new IndexBackfill<UUID, UUID, String>(ko, cf, executor, ue, se)
+					.backfill("friends", container, columns);
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(filters.getFilter(container.getKey() + ":city") != null);
+		assertTrue(IndexedCollections.containerHasValue(ko, container, "city",
+				"Nice", cf));
+
+		// A build superseded by a newer one isn't installed
+
+		BloomFilter first = filters.startBuild("superseded");
+		BloomFilter second = filters.startBuild("superseded");
+		assertTrue(!filters.finishBuild("superseded", first, 0));
+		assertTrue(filters.getFilter("superseded") == null);
+		assertTrue(filters.finishBuild("superseded", second, 0));
+		assertTrue(filters.getFilter("superseded") == second);
+	}
+
+	@Test
+	public void testWriteBehindJournal() throws Exception {
+
+		File dir = createTempDir("journal");
+		File copy = createTempDir("journal-copy");
+
+		ContainerCollection<UUID> container = new ContainerCollection<UUID>(
+				createEntity("company"), "offices");
+		Set<ContainerCollection<UUID>> containers = Collections
+				.singleton(container);
+		UUID office1 = createEntity("office");
+		UUID office2 = createEntity("office");
+		UUID office3 = createEntity("office");
+
+		// Journal updates that the flusher won't get to before the crash
+
+		WriteBehindJournal<UUID, UUID, String, String> journal = openJournal(dir);
+		journal.setItemColumn(office1, "city", "Paris", containers);
+		journal.setItemColumn(office2, "city", "Paris", containers);
+		journal.setItemColumn(office1, "city", "Lyon", containers);
+		journal.setItemColumn(office3, "city", "Nice", containers);
+		Thread.sleep(20);
+
+		assertEquals(4, journal.getBacklogDepth());
+		assertTrue(journal.getFlushLag() >= 20);
+		assertTrue(journal.getSegmentCount() > 1);
+		assertEquals(0, searchContainer(container, "city", "Paris").size());
+
+		// Keep the unapplied journal to replay a second time, then abandon
+		// the journal without flushing or closing it
+
+		copyFiles(dir, copy);
+
+		journal = openJournal(dir);
+		assertEquals(4, journal.getBacklogDepth());
+		assertTrue(journal.getFlushLag() >= 20);
+		journal.flush();
+
+		assertEquals(0, journal.getBacklogDepth());
+		assertEquals(0, journal.getFlushLag());
+		assertEquals(4, journal.getAppliedCount());
+		assertEquals(1, journal.getSegmentCount());
+		assertEquals(1, dir.listFiles().length);
+		journal.close();
+		assertJournalApplied(container, office1, office2, office3);
+
+		// Replaying records that were already applied changes nothing
+
+		journal = openJournal(copy);
+		assertEquals(4, journal.getBacklogDepth());
+		journal.flush();
+		assertEquals(1, copy.listFiles().length);
+		journal.close();
+		assertJournalApplied(container, office1, office2, office3);
+
+		for (File d : new File[] { dir, copy }) {
+			for (File file : d.listFiles()) {
+				file.delete();
+			}
+			d.delete();
+		}
+	}
+
+	private void assertJournalApplied(ContainerCollection<UUID> container,
+			UUID office1, UUID office2, UUID office3) {
+		assertEquals(Collections.singletonList(office2),
+				searchContainer(container, "city", "Paris"));
+		assertEquals(Collections.singletonList(office1),
+				searchContainer(container, "city", "Lyon"));
+		assertEquals(Collections.singletonList(office3),
+				searchContainer(container, "city", "Nice"));
+		for (UUID office : new UUID[] { office1, office2, office3 }) {
+			assertEquals(1, IndexedCollections.getItemColumnValues(ko, office,
+					"city", IndexedCollections.defaultCFSet, ue).size());
+		}
+	}
+
+	/**
+	 * @return a journal with small segments whose flusher only runs when
+	 *         asked to
+	 */
+	private static WriteBehindJournal<UUID, UUID, String, String> openJournal(
+			File dir) throws IOException {
+		WriteBehindJournal<UUID, UUID, String, String> journal = new WriteBehindJournal<UUID, UUID, String, String>(
+				dir, ko, IndexedCollections.defaultCFSet, ue, se, se, ue);
+		journal.setSegmentSize(256);
+		journal.setFlushInterval(Long.MAX_VALUE);
+		journal.open();
+		return journal;
+	}
+
+	private static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		dir.delete();
+		dir.mkdirs();
+		return dir;
+	}
+
+	private static void copyFiles(File from, File to) throws IOException {
+		for (File file : from.listFiles()) {
+			FileChannel in = new FileInputStream(file).getChannel();
+			FileChannel out = new FileOutputStream(new File(to, file.getName()))
+					.getChannel();
+			try {
+				in.transferTo(0, in.size(), out);
+			} finally {
+				in.close();
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * @return a query whose first executions sleep for the given time and
+	 *         whose later executions return a result immediately
+	 */
+	@SuppressWarnings("unchecked")
+	static Query<Object> slowQuery(final long sleepMillis, int slowCalls) {
+		final AtomicInteger remaining = new AtomicInteger(slowCalls);
+		final QueryResult<Object> result = (QueryResult<Object>) Proxy
+				.newProxyInstance(QueryResult.class.getClassLoader(),
+						new Class<?>[] { QueryResult.class },
+						new InvocationHandler() {
+							@Override
+							public Object invoke(Object proxy, Method method,
+									Object[] args) {
+								return null;
+							}
+						});
+		return (Query<Object>) Proxy.newProxyInstance(
+				Query.class.getClassLoader(), new Class<?>[] { Query.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws InterruptedException {
+						if (remaining.getAndDecrement() > 0) {
+							Thread.sleep(sleepMillis);
+						}
+						return result;
+					}
+				});
+	}
+
 	@BeforeClass
 	public static void setup() throws TTransportException, IOException,
 			InterruptedException, ConfigurationException {
@@ -256,7 +1691,9 @@ public class IndexTest {
 	}
 
 	/**
-	 * Create the four required column families for values and indexes.
+	 * Create the four required column families for values and indexes, and
+	 * the optional time-ordered membership, index definition and change log
+	 * column families.
 	 * 
 	 * @param cfDefList
 	 */
@@ -276,6 +1713,16 @@ public class IndexTest {
 				DYNAMICCOMPOSITETYPE.getTypeName()
 						+ DEFAULT_DYNAMIC_COMPOSITE_ALIASES, cfDefList);
 
+		createCF(IndexedCollections.DEFAULT_COLLECTION_BY_TIME_CF,
+				DYNAMICCOMPOSITETYPE.getTypeName()
+						+ DEFAULT_DYNAMIC_COMPOSITE_ALIASES, cfDefList);
+
+		createCF(IndexDefinitions.DEFAULT_INDEX_DEFINITIONS_CF,
+				BytesType.class.getSimpleName(), cfDefList);
+
+		createCF(IndexChangeLog.DEFAULT_CHANGE_LOG_CF,
+				TimeUUIDType.class.getSimpleName(), cfDefList);
+
 	}
 
 	public static void createCF(String name, String comparator_type,